@@ -0,0 +1,214 @@
+package org.unlaxer.calculator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded LRU cache of parse and analysis results keyed by expression text.
+ *
+ * <p>Lookups hash the text and confirm a hit by comparing it with the stored text, so two
+ * documents (or two versions of one document, as with undo/redo) that contain the same text share
+ * one entry. Entries are weighed by text length, which the retained token tree and AST grow with,
+ * and the least recently used entries are evicted once the total weight exceeds the limit.</p>
+ *
+ * <p>Cached results are in expression-local coordinates: line 0, offsets from 0.</p>
+ *
+ * <p>The cache is thread-safe, and {@link #computeIfAbsent} analyzes a text only once however
+ * many threads ask for it at the same time, so one cache can serve many sessions.</p>
+ *
+ * <p>Several caches can share one {@link Store}, as those of {@link SharedAnalysisCaches} do:
+ * each keeps its entries apart under its own settings, but the weight limit, the LRU order and
+ * the eviction count are those of the store.</p>
+ */
+public final class AnalysisCache {
+
+    /**
+     * Default weight limit: four million characters of cached text.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 4L * 1024 * 1024;
+
+    private final Store store;
+    /** Settings that tell this cache's entries apart from others in the store; null if alone. */
+    private final Object settings;
+    private long hits;
+    private long misses;
+
+    public AnalysisCache(long maxWeight) {
+        this(new Store(maxWeight), null);
+    }
+
+    AnalysisCache(Store store, Object settings) {
+        this.store = store;
+        this.settings = settings;
+    }
+
+    public CalculatorLanguageServer.ExpressionState get(String text) {
+        synchronized (store) {
+            CalculatorLanguageServer.ExpressionState cached = store.entries.get(new Key(settings, text));
+            if (cached == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return cached;
+        }
+    }
+
+    public void put(String text, CalculatorLanguageServer.ExpressionState result) {
+        store.put(new Key(settings, text), result);
+    }
+
+    /**
+     * The cached result for {@code text}, or the result of {@code analysis} stored for the next
+     * caller. A caller that finds the same text being analyzed by another thread waits for that
+     * result instead of analyzing it again.
+     */
+    public CalculatorLanguageServer.ExpressionState computeIfAbsent(String text,
+            Function<String, CalculatorLanguageServer.ExpressionState> analysis) {
+        CalculatorLanguageServer.ExpressionState cached = get(text);
+        if (cached != null) {
+            return cached;
+        }
+        Key key = new Key(settings, text);
+        CompletableFuture<CalculatorLanguageServer.ExpressionState> mine = new CompletableFuture<>();
+        CompletableFuture<CalculatorLanguageServer.ExpressionState> running = store.inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException ex) {
+                // The other analysis failed; fail the same way.
+                throw ex.getCause() instanceof RuntimeException cause ? cause : ex;
+            }
+        }
+        try {
+            // Another thread may have stored it between the lookup and the claim.
+            CalculatorLanguageServer.ExpressionState result;
+            synchronized (store) {
+                result = store.entries.get(key);
+            }
+            if (result == null) {
+                result = analysis.apply(text);
+                store.put(key, result);
+            }
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException | Error ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            store.inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Remove this cache's entries; those of other caches in the store stay.
+     */
+    public void clear() {
+        synchronized (store) {
+            Iterator<Map.Entry<Key, CalculatorLanguageServer.ExpressionState>> entries =
+                    store.entries.entrySet().iterator();
+            while (entries.hasNext()) {
+                Key key = entries.next().getKey();
+                if (Objects.equals(key.settings, settings)) {
+                    store.weight -= weigh(key.text);
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries of every cache in the store.
+     */
+    public int size() {
+        synchronized (store) {
+            return store.entries.size();
+        }
+    }
+
+    /**
+     * Weight of every cache in the store.
+     */
+    public long getWeight() {
+        return store.getWeight();
+    }
+
+    public long getMaxWeight() {
+        return store.maxWeight;
+    }
+
+    public long getHits() {
+        synchronized (store) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (store) {
+            return misses;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized (store) {
+            return store.evictions;
+        }
+    }
+
+    private static long weigh(String text) {
+        // Count a minimum per entry so that many tiny expressions are bounded as well.
+        return Math.max(text.length(), 16);
+    }
+
+    private record Key(Object settings, String text) {
+    }
+
+    /**
+     * Entries and weight limit that one or more caches share. All state is guarded by the
+     * store's monitor.
+     */
+    static final class Store {
+
+        private final long maxWeight;
+        private final LinkedHashMap<Key, CalculatorLanguageServer.ExpressionState> entries =
+                new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+        private long evictions;
+        /** Analyses running in {@link #computeIfAbsent}, by settings and text. */
+        private final Map<Key, CompletableFuture<CalculatorLanguageServer.ExpressionState>> inFlight =
+                new ConcurrentHashMap<>();
+
+        Store(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized long getWeight() {
+            return weight;
+        }
+
+        private synchronized void put(Key key, CalculatorLanguageServer.ExpressionState result) {
+            long entryWeight = weigh(key.text);
+            if (entryWeight > maxWeight) {
+                return;
+            }
+            CalculatorLanguageServer.ExpressionState previous = entries.put(key, result);
+            if (previous == null) {
+                weight += entryWeight;
+            }
+
+            Iterator<Map.Entry<Key, CalculatorLanguageServer.ExpressionState>> eldest = entries.entrySet().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                Map.Entry<Key, CalculatorLanguageServer.ExpressionState> entry = eldest.next();
+                weight -= weigh(entry.getKey().text);
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+}
@@ -2,15 +2,17 @@ package org.unlaxer.calculator;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
-import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
+import org.unlaxer.Parsed;
 import org.unlaxer.Token;
 import org.unlaxer.TokenList;
-import org.unlaxer.ast.ASTMapper;
-import org.unlaxer.ast.ASTMapperContext;
 import org.unlaxer.parser.Parser;
 import org.unlaxer.parser.ascii.MinusParser;
 import org.unlaxer.parser.ascii.PlusParser;
@@ -20,212 +22,413 @@ import org.unlaxer.parser.elementary.MultipleParser;
 public final class CalculatorAstAnalyzer {
 
     public AnalysisResult analyze(String content, CalculatorLanguageServer.ParseResult parseResult) {
-        List<AstError> errors = new ArrayList<>();
-        errors.addAll(findParenthesisErrors(content));
-        errors.addAll(findMissingOperandErrors(content));
+        return analyze(content, LineIndex.of(content), parseResult);
+    }
 
+    public AnalysisResult analyze(String content, LineIndex lineIndex,
+            CalculatorLanguageServer.ParseResult parseResult) {
+        return analyze(content, lineIndex, parseResult, Precision.DOUBLE);
+    }
+
+    /**
+     * Analyze and evaluate in {@code precision}; the exact modes cost nothing unless used.
+     */
+    public AnalysisResult analyze(String content, LineIndex lineIndex,
+            CalculatorLanguageServer.ParseResult parseResult, Precision precision) {
+        List<AstError> errors = new ArrayList<>();
         Token astRoot = null;
-        Double value = null;
+        CalculatorAstNode ast = null;
+        Number value = null;
+        Evaluation<?> evaluation;
 
         if (parseResult != null
-                && parseResult.parsed != null
-                && parseResult.isFullyValid()
-                && errors.isEmpty()) {
-            Token rootToken = parseResult.parsed.getRootToken();
-            ASTMapperContext context = ASTMapperContext.create(new CalculatorAstMapper());
-            Token mapped = context.toAST(rootToken);
-            astRoot = mapped;
-            value = evaluate(mapped, content, errors);
+                && (parseResult.ast != null || parseResult.parsed != null)
+                && parseResult.isFullyValid()) {
+            if (parseResult.ast != null) {
+                ast = parseResult.ast;
+            } else {
+                astRoot = mapTokenAst(parseResult.parsed);
+                ast = toAstNode(astRoot, content);
+            }
+            evaluation = evaluate(ast, content, lineIndex, errors, precision);
+            value = (Number) evaluation.value();
+        } else {
+            // Recover a partial AST so that every syntax error is reported and the valid
+            // subexpressions are still evaluated for their own errors.
+            CalculatorRecoveringParser.Result recovered = CalculatorRecoveringParser.parse(content);
+            for (CalculatorRecoveringParser.SyntaxError error : recovered.errors()) {
+                errors.add(new AstError(toRange(lineIndex, error.start(), error.end()), error.message()));
+            }
+            ast = recovered.ast();
+            evaluation = evaluate(ast, content, lineIndex, errors, precision);
         }
 
-        if (false == errors.isEmpty()) {
-            value = null;
+        Subexpressions subexpressions = evaluation == null ? null : new Subexpressions(content, lineIndex,
+                evaluation.nodes(), evaluation.identities(), evaluation.values(), errors);
+        if (false == errors.isEmpty() || value == null) {
+            return new AnalysisResult(errors, astRoot, ast, null, null, subexpressions);
         }
+        if (precision.mode() == Precision.Mode.DOUBLE) {
+            return new AnalysisResult(errors, astRoot, ast, (Double) value, null, subexpressions);
+        }
+        return new AnalysisResult(errors, astRoot, ast, value.doubleValue(), value, subexpressions);
+    }
 
-        return new AnalysisResult(errors, astRoot, value);
+    /**
+     * Map the combinator parse tree of {@code content} and convert it into the parser-independent
+     * node tree.
+     */
+    CalculatorAstNode mapAst(Parsed parsed, CharSequence content) {
+        return toAstNode(mapTokenAst(parsed), content);
     }
 
-    private List<AstError> findParenthesisErrors(String content) {
-        List<AstError> errors = new ArrayList<>();
-        Deque<Integer> stack = new ArrayDeque<>();
-        for (int index = 0; index < content.length(); index++) {
-            char current = content.charAt(index);
-            if (current == '(') {
-                stack.push(index);
-            } else if (current == ')') {
-                if (stack.isEmpty()) {
-                    errors.add(new AstError(toRange(content, index, index + 1),
-                            "閉じ括弧に対応する開き括弧がありません"));
-                } else {
-                    stack.pop();
-                }
-            }
-        }
+    private Token mapTokenAst(Parsed parsed) {
+        Token rootToken = parsed.getRootToken();
+        return new CalculatorAstMapper().map(rootToken);
+    }
 
-        while (false == stack.isEmpty()) {
-            int index = stack.pop();
-            errors.add(new AstError(toRange(content, index, index + 1),
-                    "開き括弧が閉じられていません"));
+    /**
+     * Convert a mapped unlaxer AST of {@code content} into the parser-independent node tree.
+     * Returns null for tokens that carry no evaluable structure.
+     *
+     * <p>Tokens are converted in post-order from an explicit stack; each conversion pops its
+     * children's nodes from a result stack, so the depth of the tree does not use Java stack.
+     * Offsets and operator characters come from {@link #layOut}, not from the tokens.</p>
+     */
+    CalculatorAstNode toAstNode(Token token, CharSequence content) {
+        if (token == null) {
+            return null;
         }
 
-        return errors;
-    }
-
-    private List<AstError> findMissingOperandErrors(String content) {
-        List<AstError> errors = new ArrayList<>();
-        for (int index = 0; index < content.length(); index++) {
-            char current = content.charAt(index);
-            if (false == isBinaryOperator(current)) {
+        Map<Token, int[]> offsets = layOut(token, content);
+        List<CalculatorAstNode> results = new ArrayList<>();
+        for (Token current : postOrder(token)) {
+            int[] own = offsets.get(current);
+            if (current.getParser().getClass() == CalculatorParsers.NumberParser.class) {
+                results.add(CalculatorAstNode.number(current.getSource().sourceAsString(), own[0], own[1]));
                 continue;
             }
-
-            int previous = findPreviousNonSpaceIndex(content, index - 1);
-            if (previous < 0) {
+            if (current.getParser().getClass() == CalculatorParsers.VariableParser.class) {
+                results.add(CalculatorAstNode.variable(current.getSource().sourceAsString(), own[0], own[1]));
                 continue;
             }
+            int childCount = current.getAstNodeChildren().size();
+            List<CalculatorAstNode> operands = results.subList(results.size() - childCount, results.size());
+            CalculatorAstNode converted = convert(current, own, content, operands);
+            operands.clear();
+            results.add(converted);
+        }
+        return results.get(0);
+    }
 
-            char previousChar = content.charAt(previous);
-            if (false == isOperandEnd(previousChar)) {
+    /**
+     * Source offsets of each token's own text in {@code content}: start and end for numbers,
+     * variables, unary operators and function names, and the offset of each operator character
+     * between the operands of a binary token.
+     *
+     * <p>The tokens cannot tell: the cursor range of a token is relative to the source it was
+     * parsed from, and an operator token rebuilt by {@link CalculatorAstMapper} spans its
+     * operands. So the tree is walked in source order next to {@code content} instead, skipping
+     * the parentheses and whitespace it has no tokens for; a token's own text is at the cursor
+     * when the walk reaches it.</p>
+     */
+    private Map<Token, int[]> layOut(Token root, CharSequence content) {
+        Map<Token, int[]> offsets = new IdentityHashMap<>();
+        Deque<Token> pending = new ArrayDeque<>();
+        // Children of the token on top of pending that were laid out so far.
+        Deque<Integer> visited = new ArrayDeque<>();
+        pending.push(root);
+        visited.push(0);
+        int cursor = 0;
+        while (false == pending.isEmpty()) {
+            Token current = pending.peek();
+            int child = visited.pop();
+            Parser parser = current.getParser();
+            Class<? extends Parser> parserClass = parser.getClass();
+            if (parserClass == CalculatorParsers.NumberParser.class
+                    || parserClass == CalculatorParsers.VariableParser.class) {
+                cursor = skipUntokenized(content, cursor);
+                int end = Math.min(cursor + current.getSource().sourceAsString().length(), content.length());
+                offsets.put(current, new int[] {cursor, end});
+                cursor = end;
+                pending.pop();
                 continue;
             }
 
-            int next = findNextNonSpaceIndex(content, index + 1);
-            if (next < 0) {
-                errors.add(new AstError(toRange(content, index, index + 1),
-                        "右辺のない二項演算子: " + current));
+            TokenList children = current.getAstNodeChildren();
+            if (child == 0 && children.size() == 1 && (parser instanceof PlusParser
+                    || parser instanceof MinusParser || parser instanceof CalculatorParsers.FunctionSuggestable)) {
+                // A unary operator or function name precedes its operand.
+                cursor = skipUntokenized(content, cursor);
+                int length = parser instanceof CalculatorParsers.FunctionSuggestable
+                        ? ((CalculatorParsers.FunctionSuggestable) parser).getFunctionCompletion().name().length()
+                        : 1;
+                int end = Math.min(cursor + length, content.length());
+                offsets.put(current, new int[] {cursor, end});
+                cursor = end;
+            } else if (child > 0 && child < children.size()) {
+                // A binary operator character follows each operand but the last.
+                cursor = skipUntokenized(content, cursor);
+                offsets.computeIfAbsent(current, token -> new int[children.size() - 1])[child - 1] = cursor;
+                cursor = Math.min(cursor + 1, content.length());
+            }
+            if (child == children.size()) {
+                pending.pop();
                 continue;
             }
-
-            char nextChar = content.charAt(next);
-            if (nextChar == ')' || nextChar == '*' || nextChar == '/') {
-                errors.add(new AstError(toRange(content, index, index + 1),
-                        "右辺のない二項演算子: " + current));
-            }
+            visited.push(child + 1);
+            pending.push(children.get(child));
+            visited.push(0);
         }
-
-        return errors;
+        return offsets;
     }
 
-    private int findPreviousNonSpaceIndex(String content, int index) {
-        int current = index;
-        while (current >= 0) {
-            if (false == Character.isWhitespace(content.charAt(current))) {
-                return current;
-            }
-            current--;
+    private static int skipUntokenized(CharSequence content, int offset) {
+        while (offset < content.length() && (content.charAt(offset) == '(' || content.charAt(offset) == ')'
+                || Character.isWhitespace(content.charAt(offset)))) {
+            offset++;
         }
-        return -1;
+        return offset;
     }
 
-    private int findNextNonSpaceIndex(String content, int index) {
-        int current = index;
-        while (current < content.length()) {
-            if (false == Character.isWhitespace(content.charAt(current))) {
-                return current;
+    /**
+     * Tokens of the tree in left-to-right post-order; number and variable tokens are leaves.
+     */
+    private List<Token> postOrder(Token root) {
+        List<Token> reversed = new ArrayList<>();
+        Deque<Token> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (false == pending.isEmpty()) {
+            Token current = pending.pop();
+            reversed.add(current);
+            Class<? extends Parser> parserClass = current.getParser().getClass();
+            if (parserClass == CalculatorParsers.NumberParser.class
+                    || parserClass == CalculatorParsers.VariableParser.class) {
+                continue;
+            }
+            for (Token child : current.getAstNodeChildren()) {
+                pending.push(child);
             }
-            current++;
         }
-        return -1;
+        Collections.reverse(reversed);
+        return reversed;
     }
 
-    private boolean isBinaryOperator(char current) {
-        return current == '+' || current == '-' || current == '*' || current == '/';
-    }
-
-    private boolean isOperandEnd(char current) {
-        return Character.isDigit(current) || current == ')' || Character.isLetter(current) || current == '.';
-    }
-
-    private Double evaluate(Token astRoot, String content, List<AstError> errors) {
-        if (astRoot == null) {
+    /**
+     * @param own the token's offsets from {@link #layOut}
+     */
+    private CalculatorAstNode convert(Token token, int[] own, CharSequence content,
+            List<CalculatorAstNode> operands) {
+        if (operands.isEmpty()) {
             return null;
         }
 
-        if (astRoot.getParser().getClass() == CalculatorParsers.NumberParser.class) {
-            return parseNumber(astRoot, content, errors);
-        }
-
-        TokenList children = astRoot.getAstNodeChildren();
-        if (children.isEmpty()) {
-            return null;
-        }
-
-        if (children.size() == 1) {
-            Double operand = evaluate(children.get(0), content, errors);
+        Parser parser = token.getParser();
+        if (operands.size() == 1) {
+            CalculatorAstNode operand = operands.get(0);
             if (operand == null) {
                 return null;
             }
-            if (astRoot.getParser() instanceof PlusParser) {
-                return operand;
+            if (parser instanceof PlusParser) {
+                return CalculatorAstNode.unary("+", own[0], own[1], operand);
             }
-            if (astRoot.getParser() instanceof MinusParser) {
-                return -operand;
+            if (parser instanceof MinusParser) {
+                return CalculatorAstNode.unary("-", own[0], own[1], operand);
             }
-            if (astRoot.getParser() instanceof CalculatorParsers.FunctionSuggestable) {
-                CalculatorParsers.FunctionSuggestable function =
-                        (CalculatorParsers.FunctionSuggestable) astRoot.getParser();
-                return evaluateFunction(function.getFunctionCompletion().name(), operand, astRoot, content, errors);
+            if (parser instanceof CalculatorParsers.FunctionSuggestable) {
+                CalculatorParsers.FunctionSuggestable function = (CalculatorParsers.FunctionSuggestable) parser;
+                return CalculatorAstNode.function(function.getFunctionCompletion().name(),
+                        own[0], own[1], operand);
             }
             return operand;
         }
 
-        if (children.size() == 2) {
-            Double left = evaluate(children.get(0), content, errors);
-            Double right = evaluate(children.get(1), content, errors);
-            if (left == null || right == null) {
-                return null;
-            }
-            return evaluateBinary(astRoot, left, right, content, errors);
-        }
-
-        Double aggregated = evaluate(children.get(0), content, errors);
-        for (int index = 1; index < children.size(); index++) {
-            Double right = evaluate(children.get(index), content, errors);
+        CalculatorAstNode aggregated = operands.get(0);
+        for (int index = 1; index < operands.size(); index++) {
+            CalculatorAstNode right = operands.get(index);
             if (aggregated == null || right == null) {
                 return null;
             }
-            aggregated = evaluateBinary(astRoot, aggregated, right, content, errors);
+            int operator = own[index - 1];
+            char character = operator < content.length() ? content.charAt(operator) : ' ';
+            aggregated = CalculatorAstNode.binary(binaryOperatorSymbol(parser, character),
+                    operator, operator + 1, aggregated, right);
         }
         return aggregated;
     }
 
-    private Double parseNumber(Token token, String content, List<AstError> errors) {
-        if (token.getParser().getClass() != CalculatorParsers.NumberParser.class) {
-            return null;
+    /**
+     * @param character the operator character in the source, which a rebuilt operator token no
+     *                  longer has as its text
+     */
+    private String binaryOperatorSymbol(Parser parser, char character) {
+        if (parser instanceof PlusParser) {
+            return "+";
         }
-        try {
-            return Double.parseDouble(token.getSource().sourceAsString());
-        } catch (NumberFormatException ex) {
-            errors.add(new AstError(toRange(content, token), "数値を解析できません"));
-            return null;
+        if (parser instanceof MinusParser) {
+            return "-";
         }
+        if (parser instanceof MultipleParser) {
+            return "*";
+        }
+        if (parser instanceof CalculatorParsers.DivisionParser) {
+            return "/";
+        }
+        if (parser instanceof CalculatorParsers.UnknownOperatorParser) {
+            return CalculatorPrattParser.operatorSymbol(character);
+        }
+        return null;
     }
 
-    private Double evaluateBinary(Token operator, Double left, Double right, String content, List<AstError> errors) {
-        if (operator.getParser() instanceof PlusParser) {
-            return left + right;
-        }
-        if (operator.getParser() instanceof MinusParser) {
-            return left - right;
+    /**
+     * Evaluates one node from its operands' values, or returns null after reporting an error.
+     */
+    private interface NodeEvaluator<T> {
+        T evaluate(CalculatorAstNode node, T first, T second, LineIndex lineIndex, List<AstError> errors);
+    }
+
+    /**
+     * Value of the root, and what {@link Subexpressions} needs to find the value of every node.
+     *
+     * @param nodes the tree in post-order
+     * @param identities the {@link SubexpressionTable} identity of each node, by post-order position
+     * @param values the value of each identity, null where evaluation failed
+     */
+    private record Evaluation<T>(T value, List<CalculatorAstNode> nodes, int[] identities, List<T> values) {
+    }
+
+    private Evaluation<?> evaluate(CalculatorAstNode root, String content, LineIndex lineIndex,
+            List<AstError> errors, Precision precision) {
+        if (precision.mode() == Precision.Mode.DOUBLE) {
+            return evaluate(root, lineIndex, errors, new SubexpressionTable(), this::evaluateNode);
         }
-        if (operator.getParser() instanceof MultipleParser) {
-            return left * right;
+        return evaluateExact(root, content, lineIndex, errors, ExactArithmetic.of(precision));
+    }
+
+    private <T extends Number> Evaluation<T> evaluateExact(CalculatorAstNode root, String content,
+            LineIndex lineIndex, List<AstError> errors, ExactArithmetic<T> arithmetic) {
+        return evaluate(root, lineIndex, errors, new SubexpressionTable(content),
+                (node, first, second, lines, found) ->
+                        evaluateExactNode(node, first, second, content, lines, found, arithmetic));
+    }
+
+    /**
+     * Evaluate in post-order from an explicit stack, so the depth of the tree does not use Java stack.
+     *
+     * <p>Subtrees are hash-consed on the way (see {@link SubexpressionTable}), so each distinct
+     * subexpression is evaluated once however often it is repeated; a repeat reuses the value
+     * and reports the same error, if any, at its own position.</p>
+     */
+    private <T> Evaluation<T> evaluate(CalculatorAstNode root, LineIndex lineIndex, List<AstError> errors,
+            SubexpressionTable table, NodeEvaluator<T> evaluator) {
+        if (root == null) {
+            return null;
         }
-        if (operator.getParser() instanceof CalculatorParsers.DivisionParser) {
-            if (right == 0.0d) {
-                errors.add(new AstError(toRange(content, operator), "0 で除算できません"));
+
+        List<CalculatorAstNode> nodes = root.postOrder();
+        List<T> values = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+        int[] operandIds = new int[nodes.size()];
+        int[] identities = new int[nodes.size()];
+        int top = 0;
+
+        for (int position = 0; position < nodes.size(); position++) {
+            CalculatorAstNode node = nodes.get(position);
+            int arity = node.children().size();
+            top -= arity;
+            int first = arity > 0 ? operandIds[top] : -1;
+            int second = arity > 1 ? operandIds[top + 1] : -1;
+            int identity = table.identify(node, first, second);
+
+            if (identity == SubexpressionTable.NEW) {
+                int errorCount = errors.size();
+                T value = evaluator.evaluate(node, first < 0 ? null : values.get(first),
+                        second < 0 ? null : values.get(second), lineIndex, errors);
+                identity = table.newIdentity();
+                values.add(value);
+                messages.add(errors.size() > errorCount ? errors.get(errors.size() - 1).message() : null);
+            } else if (messages.get(identity) != null) {
+                errors.add(new AstError(toRange(lineIndex, node), messages.get(identity)));
+            }
+            identities[position] = identity;
+            operandIds[top++] = identity;
+        }
+        return new Evaluation<>(values.get(operandIds[0]), nodes, identities, values);
+    }
+
+    private Double evaluateNode(CalculatorAstNode node, Double first, Double second, LineIndex lineIndex,
+            List<AstError> errors) {
+        switch (node.kind()) {
+            case ERROR:
                 return null;
+            case NUMBER:
+                return parseNumber(node, lineIndex, errors);
+            case VARIABLE:
+                return checkVariable(node, lineIndex, errors);
+            case UNARY:
+            case FUNCTION: {
+                if (first == null) {
+                    return null;
+                }
+                if (node.kind() == CalculatorAstNode.Kind.FUNCTION) {
+                    return evaluateFunction(node.symbol(), first, node, lineIndex, errors);
+                }
+                return "-".equals(node.symbol()) ? -first : first;
+            }
+            default: {
+                if (first == null || second == null) {
+                    return null;
+                }
+                return evaluateBinary(node, first, second, lineIndex, errors);
             }
-            return left / right;
         }
+    }
 
-        errors.add(new AstError(toRange(content, operator), "不明な二項演算子"));
+    private Double parseNumber(CalculatorAstNode node, LineIndex lineIndex, List<AstError> errors) {
+        if (Double.isNaN(node.value())) {
+            errors.add(new AstError(toRange(lineIndex, node), "数値を解析できません"));
+            return null;
+        }
+        return node.value();
+    }
+
+    /**
+     * A free variable has no value here. A function name in its place is a call missing its
+     * argument, reported as {@link CalculatorRecoveringParser} reports it.
+     */
+    private Double checkVariable(CalculatorAstNode node, LineIndex lineIndex, List<AstError> errors) {
+        if (CalculatorPrattParser.isFunctionName(node.symbol())) {
+            errors.add(new AstError(toRange(lineIndex, node), "関数の後に開き括弧がありません: " + node.symbol()));
+        }
         return null;
     }
 
-    private Double evaluateFunction(String name, Double operand, Token token, String content, List<AstError> errors) {
+    private Double evaluateBinary(CalculatorAstNode operator, Double left, Double right, LineIndex lineIndex,
+            List<AstError> errors) {
+        String symbol = operator.symbol() == null ? "" : operator.symbol();
+        switch (symbol) {
+            case "+":
+                return left + right;
+            case "-":
+                return left - right;
+            case "*":
+                return left * right;
+            case "/":
+                if (right == 0.0d) {
+                    errors.add(new AstError(toRange(lineIndex, operator), "0 で除算できません"));
+                    return null;
+                }
+                return left / right;
+            default:
+                errors.add(new AstError(toRange(lineIndex, operator), "不明な二項演算子"));
+                return null;
+        }
+    }
+
+    private Double evaluateFunction(String name, Double operand, CalculatorAstNode node, LineIndex lineIndex,
+            List<AstError> errors) {
         if (name == null) {
-            errors.add(new AstError(toRange(content, token), "不明な関数"));
+            errors.add(new AstError(toRange(lineIndex, node), "不明な関数"));
             return null;
         }
         switch (name) {
@@ -233,7 +436,7 @@ public final class CalculatorAstAnalyzer {
                 return Math.sin(operand);
             case "sqrt":
                 if (operand < 0.0d) {
-                    errors.add(new AstError(toRange(content, token), "負の数の平方根は計算できません"));
+                    errors.add(new AstError(toRange(lineIndex, node), "負の数の平方根は計算できません"));
                     return null;
                 }
                 return Math.sqrt(operand);
@@ -243,155 +446,341 @@ public final class CalculatorAstAnalyzer {
                 return Math.tan(operand);
             case "log":
                 if (operand <= 0.0d) {
-                    errors.add(new AstError(toRange(content, token), "0 以下の対数は計算できません"));
+                    errors.add(new AstError(toRange(lineIndex, node), "0 以下の対数は計算できません"));
                     return null;
                 }
                 return Math.log(operand);
             default:
-                errors.add(new AstError(toRange(content, token), "不明な関数: " + name));
+                errors.add(new AstError(toRange(lineIndex, node), "不明な関数: " + name));
                 return null;
         }
     }
 
-    private Range toRange(String content, Token token) {
-        int start = token.getSource().cursorRange().startIndexInclusive.position().value();
-        int end = token.getSource().cursorRange().endIndexExclusive.position().value();
-        return toRange(content, start, end);
+    /**
+     * {@link #evaluateNode} in an exact {@link Precision}: literals are read from {@code content},
+     * and errors are reported with the same messages.
+     */
+    private <T extends Number> T evaluateExactNode(CalculatorAstNode node, T first, T second, String content,
+            LineIndex lineIndex, List<AstError> errors, ExactArithmetic<T> arithmetic) {
+        switch (node.kind()) {
+            case ERROR:
+                return null;
+            case NUMBER: {
+                if (parseNumber(node, lineIndex, errors) == null) {
+                    return null;
+                }
+                return arithmetic.literal(content.substring(node.start(), node.end()));
+            }
+            case VARIABLE:
+                checkVariable(node, lineIndex, errors);
+                return null;
+            case UNARY:
+                if (first == null) {
+                    return null;
+                }
+                return "-".equals(node.symbol()) ? arithmetic.negate(first) : first;
+            case FUNCTION:
+                if (first == null) {
+                    return null;
+                }
+                return evaluateExactFunction(node, first, lineIndex, errors, arithmetic);
+            default: {
+                if (first == null || second == null) {
+                    return null;
+                }
+                String symbol = node.symbol() == null ? "" : node.symbol();
+                switch (symbol) {
+                    case "+":
+                        return arithmetic.add(first, second);
+                    case "-":
+                        return arithmetic.subtract(first, second);
+                    case "*":
+                        return arithmetic.multiply(first, second);
+                    case "/":
+                        if (arithmetic.signum(second) == 0) {
+                            errors.add(new AstError(toRange(lineIndex, node), "0 で除算できません"));
+                            return null;
+                        }
+                        return arithmetic.divide(first, second);
+                    default:
+                        errors.add(new AstError(toRange(lineIndex, node), "不明な二項演算子"));
+                        return null;
+                }
+            }
+        }
     }
 
-    private Range toRange(String content, int startOffset, int endOffset) {
-        Position start = offsetToPosition(content, startOffset);
-        Position end = offsetToPosition(content, endOffset);
-        return new Range(start, end);
+    private <T extends Number> T evaluateExactFunction(CalculatorAstNode node, T operand, LineIndex lineIndex,
+            List<AstError> errors, ExactArithmetic<T> arithmetic) {
+        String name = node.symbol();
+        if (name == null) {
+            errors.add(new AstError(toRange(lineIndex, node), "不明な関数"));
+            return null;
+        }
+        double result;
+        switch (name) {
+            case "sqrt":
+                if (arithmetic.signum(operand) < 0) {
+                    errors.add(new AstError(toRange(lineIndex, node), "負の数の平方根は計算できません"));
+                    return null;
+                }
+                T root = arithmetic.sqrt(operand);
+                if (root != null) {
+                    return root;
+                }
+                result = Math.sqrt(operand.doubleValue());
+                break;
+            case "log":
+                if (arithmetic.signum(operand) <= 0) {
+                    errors.add(new AstError(toRange(lineIndex, node), "0 以下の対数は計算できません"));
+                    return null;
+                }
+                result = Math.log(operand.doubleValue());
+                break;
+            case "sin":
+                result = Math.sin(operand.doubleValue());
+                break;
+            case "cos":
+                result = Math.cos(operand.doubleValue());
+                break;
+            case "tan":
+                result = Math.tan(operand.doubleValue());
+                break;
+            default:
+                errors.add(new AstError(toRange(lineIndex, node), "不明な関数: " + name));
+                return null;
+        }
+        if (Double.isNaN(result) || Double.isInfinite(result)) {
+            // The operand is beyond the double range that the function is computed in.
+            errors.add(new AstError(toRange(lineIndex, node), "関数の引数が大きすぎます: " + name));
+            return null;
+        }
+        return arithmetic.fromDouble(result);
     }
 
-    private Position offsetToPosition(String content, int offset) {
-        int line = 0;
-        int column = 0;
-        for (int index = 0; index < offset && index < content.length(); index++) {
-            if (content.charAt(index) == '\n') {
-                line++;
-                column = 0;
-            } else {
-                column++;
-            }
-        }
-        return new Position(line, column);
+    /**
+     * Offsets of a token in the source it was parsed from, read from its cursor range without
+     * copying its text. Only for the root token are they offsets in the expression; below it, use
+     * their difference, the length.
+     */
+    static int startOf(Token token) {
+        return token.getSource().cursorRange().startIndexInclusive.position().value();
+    }
+
+    static int endOf(Token token) {
+        return token.getSource().cursorRange().endIndexExclusive.position().value();
+    }
+
+    private Range toRange(LineIndex lineIndex, CalculatorAstNode node) {
+        return lineIndex.toRange(node.start(), node.end());
+    }
+
+    private Range toRange(LineIndex lineIndex, int startOffset, int endOffset) {
+        return lineIndex.toRange(startOffset, endOffset);
     }
 
     public record AstError(Range range, String message) {}
 
-    public record AnalysisResult(List<AstError> errors, Token astRoot, Double value) {
+    /**
+     * @param astRoot mapped unlaxer AST, or null when the parser built {@code ast} directly
+     * @param ast parser-independent AST that {@code value} was evaluated from; for input that does
+     *            not parse, the partial AST of {@link CalculatorRecoveringParser}
+     * @param value the value, in an exact {@link Precision} the nearest {@code double} to it
+     * @param exactValue the {@link java.math.BigDecimal} or {@link Rational} value in an exact
+     *                   precision; null in {@link Precision#DOUBLE}
+     * @param subexpressions values and errors by position, for hover; null when nothing was evaluated
+     */
+    public record AnalysisResult(List<AstError> errors, Token astRoot, CalculatorAstNode ast, Double value,
+            Number exactValue, Subexpressions subexpressions) {
+
+        public AnalysisResult(List<AstError> errors, Token astRoot, CalculatorAstNode ast, Double value) {
+            this(errors, astRoot, ast, value, null, null);
+        }
+
+        public AnalysisResult(List<AstError> errors, Token astRoot, CalculatorAstNode ast, Double value,
+                Number exactValue) {
+            this(errors, astRoot, ast, value, exactValue, null);
+        }
+
         public boolean hasValue() {
             return value != null;
         }
+
+        /**
+         * The value as shown to users: the exact value when there is one.
+         */
+        public String displayValue() {
+            return exactValue != null ? exactValue.toString() : String.valueOf(value);
+        }
     }
 
-    private static final class CalculatorAstMapper implements ASTMapper {
+    /**
+     * Maps the combinator parse tree to an AST whose binary, unary and function tokens are
+     * rebuilt with {@link Token#newCreatesOf} over their mapped operands, and whose parentheses
+     * and factor wrappers are gone.
+     *
+     * <p>{@link org.unlaxer.ast.ASTMapperContext} would map each operand by calling back into the
+     * mapper, one Java frame chain per level of parentheses and unary signs. Here each token's
+     * {@link Step} names the operands it is built from, and an explicit stack maps those first, so
+     * the depth of the tree does not use Java stack.</p>
+     */
+    private static final class CalculatorAstMapper {
+
+        /**
+         * How one token maps. Without operands it maps to {@code result}. Otherwise to its mapped
+         * first operand, then each of {@code operators} applied to the mapping so far and the
+         * next operand, and finally {@code prefix}, a unary operator or function name, if any.
+         */
+        private record Step(Token token, Token result, Token prefix, List<Token> operands, List<Token> operators) {
+
+            static Step as(Token token, Token result) {
+                return new Step(token, result, null, List.of(), List.of());
+            }
+
+            static Step to(Token token, Token operand) {
+                return new Step(token, null, null, List.of(operand), List.of());
+            }
+
+            static Step applying(Token token, Token prefix, Token operand) {
+                return new Step(token, null, prefix, List.of(operand), List.of());
+            }
+        }
+
+        Token map(Token root) {
+            Map<Token, Token> mapped = new IdentityHashMap<>();
+            Deque<Step> pending = new ArrayDeque<>();
+            pending.push(plan(root));
+            while (false == pending.isEmpty()) {
+                Step step = pending.peek();
+                boolean ready = true;
+                for (Token operand : step.operands()) {
+                    if (false == mapped.containsKey(operand)) {
+                        pending.push(plan(operand));
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    pending.pop();
+                    mapped.put(step.token(), build(step, mapped));
+                }
+            }
+            return mapped.get(root);
+        }
 
-        @Override
-        public boolean canASTMapping(Token parsedToken) {
-            Class<? extends Parser> parserClass = parsedToken.getParser().getClass();
-            return parserClass == CalculatorParsers.ExprParser.class
-                    || parserClass == CalculatorParsers.TermParser.class
-                    || parserClass == CalculatorParsers.UnaryParser.class
-                    || parserClass == CalculatorParsers.FunctionParser.class
-                    || parserClass == CalculatorParsers.ParenExprParser.class
-                    || parserClass == CalculatorParsers.FactorParser.class;
+        private Token build(Step step, Map<Token, Token> mapped) {
+            if (step.operands().isEmpty()) {
+                return step.result();
+            }
+            Token current = mapped.get(step.operands().get(0));
+            for (int index = 0; index < step.operators().size(); index++) {
+                current = step.operators().get(index).newCreatesOf(current, mapped.get(step.operands().get(index + 1)));
+            }
+            return step.prefix() == null ? current : step.prefix().newCreatesOf(current);
         }
 
-        @Override
-        public Token toAST(ASTMapperContext context, Token parsedToken) {
+        private Step plan(Token parsedToken) {
             Class<? extends Parser> parserClass = parsedToken.getParser().getClass();
             if (parserClass == CalculatorParsers.ExprParser.class) {
-                return buildBinaryAst(context, parsedToken, CalculatorParsers.TermParser.class);
+                return planBinary(parsedToken, CalculatorParsers.TermParser.class);
             }
             if (parserClass == CalculatorParsers.TermParser.class) {
-                return buildBinaryAst(context, parsedToken, CalculatorParsers.FactorParser.class);
+                return planBinary(parsedToken, CalculatorParsers.FactorParser.class);
             }
             if (parserClass == CalculatorParsers.UnaryParser.class) {
-                return buildUnaryAst(context, parsedToken);
+                return planUnary(parsedToken);
             }
             if (parserClass == CalculatorParsers.FunctionParser.class) {
-                return buildFunctionAst(context, parsedToken);
+                return planFunction(parsedToken);
             }
             if (parserClass == CalculatorParsers.ParenExprParser.class) {
                 Token exprToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.ExprParser.class);
-                if (exprToken == null) {
-                    return parsedToken;
-                }
-                return context.toAST(exprToken);
+                return exprToken == null ? Step.as(parsedToken, parsedToken) : Step.to(parsedToken, exprToken);
             }
             if (parserClass == CalculatorParsers.FactorParser.class) {
-                return buildFactorAst(context, parsedToken);
+                return planFactor(parsedToken);
             }
-            return parsedToken;
+            return Step.as(parsedToken, parsedToken);
         }
 
-        private Token buildBinaryAst(ASTMapperContext context, Token parsedToken,
-                Class<? extends Parser> operandClass) {
+        private Step planBinary(Token parsedToken, Class<? extends Parser> operandClass) {
             Token leftToken = findDirectChildByParserClass(parsedToken, operandClass);
             if (leftToken == null) {
-                return parsedToken;
+                return Step.as(parsedToken, parsedToken);
             }
 
-            Token leftAst = context.toAST(leftToken);
+            List<Token> operands = new ArrayList<>();
+            List<Token> operators = new ArrayList<>();
+            operands.add(leftToken);
             Token zeroOrMoreToken = findDirectChildByParserClass(parsedToken, ZeroOrMore.class);
-            if (zeroOrMoreToken == null) {
-                return leftAst;
-            }
-
-            Token current = leftAst;
-            for (Token chainToken : zeroOrMoreToken.getAstNodeChildren()) {
-                Token operatorToken = findOperatorToken(chainToken);
-                Token rightToken = findFirstTokenByParserClass(chainToken, operandClass);
-                if (operatorToken == null || rightToken == null) {
-                    continue;
+            if (zeroOrMoreToken != null) {
+                for (Token chainToken : zeroOrMoreToken.getAstNodeChildren()) {
+                    Token rightToken = findFirstTokenByParserClass(chainToken, operandClass);
+                    Token operatorToken = findOperatorTokenOutside(chainToken, rightToken);
+                    if (operatorToken == null || rightToken == null) {
+                        continue;
+                    }
+                    operands.add(rightToken);
+                    operators.add(operatorToken);
                 }
-                Token rightAst = context.toAST(rightToken);
-                current = operatorToken.newCreatesOf(current, rightAst);
             }
-            return current;
+            return new Step(parsedToken, null, null, operands, operators);
         }
 
-        private Token buildUnaryAst(ASTMapperContext context, Token parsedToken) {
-            Token operatorToken = findOperatorToken(parsedToken);
+        private Step planUnary(Token parsedToken) {
             Token operandToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.FactorParser.class);
+            Token operatorToken = findOperatorTokenOutside(parsedToken, operandToken);
             if (operatorToken == null || operandToken == null) {
-                return parsedToken;
+                return Step.as(parsedToken, parsedToken);
             }
-            Token operandAst = context.toAST(operandToken);
-            return operatorToken.newCreatesOf(operandAst);
+            return Step.applying(parsedToken, operatorToken, operandToken);
         }
 
-        private Token buildFunctionAst(ASTMapperContext context, Token parsedToken) {
+        private Step planFunction(Token parsedToken) {
             Token functionToken = findFirstFunctionToken(parsedToken);
             Token argumentToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.ExprParser.class);
             if (functionToken == null || argumentToken == null) {
-                return parsedToken;
+                return Step.as(parsedToken, parsedToken);
             }
-            Token argumentAst = context.toAST(argumentToken);
-            return functionToken.newCreatesOf(argumentAst);
+            return Step.applying(parsedToken, functionToken, argumentToken);
         }
 
-        private Token buildFactorAst(ASTMapperContext context, Token parsedToken) {
+        private Step planFactor(Token parsedToken) {
+            // The matched alternative is a direct child. Searching the whole subtree first would
+            // pick up tokens nested inside it, e.g. the number 1 in "(1+2)".
+            for (Token child : parsedToken.getAstNodeChildren()) {
+                Class<? extends Parser> childClass = child.getParser().getClass();
+                if (childClass == CalculatorParsers.NumberParser.class
+                        || childClass == CalculatorParsers.VariableParser.class) {
+                    return Step.as(parsedToken, child);
+                }
+                if (childClass == CalculatorParsers.FunctionParser.class
+                        || childClass == CalculatorParsers.UnaryParser.class
+                        || childClass == CalculatorParsers.ParenExprParser.class) {
+                    return Step.to(parsedToken, child);
+                }
+            }
+
             Token functionToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.FunctionParser.class);
             if (functionToken != null) {
-                return context.toAST(functionToken);
+                return Step.to(parsedToken, functionToken);
             }
             Token unaryToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.UnaryParser.class);
             if (unaryToken != null) {
-                return context.toAST(unaryToken);
+                return Step.to(parsedToken, unaryToken);
             }
             Token numberToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.NumberParser.class);
             if (numberToken != null) {
-                return numberToken;
+                return Step.as(parsedToken, numberToken);
             }
             Token parenToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.ParenExprParser.class);
             if (parenToken != null) {
-                return context.toAST(parenToken);
+                return Step.to(parsedToken, parenToken);
             }
-            return parsedToken;
+            Token variableToken = findFirstTokenByParserClass(parsedToken, CalculatorParsers.VariableParser.class);
+            if (variableToken != null) {
+                return Step.as(parsedToken, variableToken);
+            }
+            return Step.as(parsedToken, parsedToken);
         }
 
         private Token findDirectChildByParserClass(Token token, Class<? extends Parser> parserClass) {
@@ -404,13 +793,21 @@ public final class CalculatorAstAnalyzer {
         }
 
         private Token findFirstTokenByParserClass(Token token, Class<? extends Parser> parserClass) {
-            if (token.getParser().getClass() == parserClass) {
-                return token;
-            }
+            return findFirst(token, candidate -> candidate.getParser().getClass() == parserClass);
+        }
+
+        /**
+         * Find the operator among the children that do not contain {@code operand},
+         * so that operators nested inside the operand (e.g. the '+' in "1-(2+3)") are ignored.
+         */
+        private Token findOperatorTokenOutside(Token token, Token operand) {
             for (Token child : token.getAstNodeChildren()) {
-                Token found = findFirstTokenByParserClass(child, parserClass);
-                if (found != null) {
-                    return found;
+                if (child == operand) {
+                    continue;
+                }
+                Token operator = findOperatorToken(child);
+                if (operator != null) {
+                    return operator;
                 }
             }
             return null;
@@ -437,13 +834,24 @@ public final class CalculatorAstAnalyzer {
         }
 
         private Token findFirstFunctionToken(Token token) {
-            if (token.getParser() instanceof CalculatorParsers.FunctionSuggestable) {
-                return token;
-            }
-            for (Token child : token.getAstNodeChildren()) {
-                Token found = findFirstFunctionToken(child);
-                if (found != null) {
-                    return found;
+            return findFirst(token, candidate -> candidate.getParser() instanceof CalculatorParsers.FunctionSuggestable);
+        }
+
+        /**
+         * Depth-first, left-to-right search with an explicit stack, so deep token trees cannot
+         * overflow the Java stack.
+         */
+        private Token findFirst(Token token, Predicate<Token> matches) {
+            Deque<Token> pending = new ArrayDeque<>();
+            pending.push(token);
+            while (false == pending.isEmpty()) {
+                Token current = pending.pop();
+                if (matches.test(current)) {
+                    return current;
+                }
+                TokenList children = current.getAstNodeChildren();
+                for (int index = children.size() - 1; index >= 0; index--) {
+                    pending.push(children.get(index));
                 }
             }
             return null;
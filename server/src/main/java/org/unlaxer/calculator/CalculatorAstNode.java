@@ -0,0 +1,143 @@
+package org.unlaxer.calculator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parser-independent AST node for calculator expressions.
+ *
+ * <p>Both parser backends produce this shape: the unlaxer combinator path by mapping its
+ * {@code Token} AST (see {@link CalculatorAstAnalyzer}), and {@link CalculatorPrattParser}
+ * directly. {@code start}/{@code end} are the source offsets of the node's own token
+ * (the number literal, the variable or function name, or the operator character), which is
+ * where evaluation errors are reported.</p>
+ *
+ * <p>{@link Kind#ERROR} nodes only appear in the partial trees of {@link CalculatorRecoveringParser}:
+ * they stand for a missing operand or skipped characters, and the top-level one collects the
+ * fragments of an input that recovery could not join into one expression.</p>
+ *
+ * @param kind node kind
+ * @param symbol operator character, function name or variable name; null for numbers, for an
+ *               operator or function the grammar does not know, and for errors
+ * @param value value of a number literal, NaN when the literal does not parse; 0 for other kinds
+ * @param start start offset of the node's token (inclusive)
+ * @param end end offset of the node's token (exclusive)
+ * @param children operands: none for numbers and variables, one for unary operators and functions,
+ *                 two for binary operators, any number of recovered fragments for errors
+ */
+public record CalculatorAstNode(Kind kind, String symbol, double value, int start, int end,
+        List<CalculatorAstNode> children) {
+
+    public enum Kind {
+        NUMBER,
+        VARIABLE,
+        UNARY,
+        BINARY,
+        FUNCTION,
+        ERROR
+    }
+
+    public static CalculatorAstNode number(double value, int start, int end) {
+        return new CalculatorAstNode(Kind.NUMBER, null, value, start, end, List.of());
+    }
+
+    public static CalculatorAstNode number(String literal, int start, int end) {
+        return number(NumberLiterals.parse(literal), start, end);
+    }
+
+    /**
+     * A free variable such as {@code x}; it has no value until one is supplied, e.g. by
+     * {@link CalculatorSweep}.
+     */
+    public static CalculatorAstNode variable(String name, int start, int end) {
+        return new CalculatorAstNode(Kind.VARIABLE, name, 0, start, end, List.of());
+    }
+
+    public static CalculatorAstNode unary(String operator, int start, int end, CalculatorAstNode operand) {
+        return new CalculatorAstNode(Kind.UNARY, operator, 0, start, end, List.of(operand));
+    }
+
+    public static CalculatorAstNode binary(String operator, int start, int end,
+            CalculatorAstNode left, CalculatorAstNode right) {
+        return new CalculatorAstNode(Kind.BINARY, operator, 0, start, end, List.of(left, right));
+    }
+
+    public static CalculatorAstNode function(String name, int start, int end, CalculatorAstNode argument) {
+        return new CalculatorAstNode(Kind.FUNCTION, name, 0, start, end, List.of(argument));
+    }
+
+    public static CalculatorAstNode error(int start, int end, List<CalculatorAstNode> fragments) {
+        return new CalculatorAstNode(Kind.ERROR, null, 0, start, end, List.copyOf(fragments));
+    }
+
+    /**
+     * Nodes of this tree in left-to-right post-order (operands before their operator),
+     * collected with an explicit stack so that any depth is safe.
+     */
+    public List<CalculatorAstNode> postOrder() {
+        List<CalculatorAstNode> reversed = new ArrayList<>();
+        Deque<CalculatorAstNode> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (false == pending.isEmpty()) {
+            CalculatorAstNode node = pending.pop();
+            reversed.add(node);
+            for (CalculatorAstNode child : node.children) {
+                pending.push(child);
+            }
+        }
+        Collections.reverse(reversed);
+        return reversed;
+    }
+
+    /**
+     * Names of the free variables of this tree, each once, in order of first occurrence.
+     */
+    public List<String> variableNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (CalculatorAstNode node : postOrder()) {
+            if (node.kind == Kind.VARIABLE) {
+                names.add(node.symbol);
+            }
+        }
+        return List.copyOf(names);
+    }
+
+    /**
+     * Render the tree as an s-expression, e.g. {@code (+ 1 (* 2 3))}.
+     */
+    public String toSExpression() {
+        StringBuilder builder = new StringBuilder();
+        appendSExpression(builder);
+        return builder.toString();
+    }
+
+    private void appendSExpression(StringBuilder builder) {
+        if (kind == Kind.NUMBER) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                builder.append((long) value);
+            } else {
+                builder.append(value);
+            }
+            return;
+        }
+        if (kind == Kind.VARIABLE) {
+            builder.append(symbol);
+            return;
+        }
+        if (kind == Kind.ERROR) {
+            builder.append("(error");
+        } else {
+            builder.append('(').append(symbol == null ? "?" : symbol);
+        }
+        for (CalculatorAstNode child : children) {
+            builder.append(' ');
+            child.appendSExpression(builder);
+        }
+        builder.append(')');
+    }
+}
@@ -0,0 +1,370 @@
+package org.unlaxer.calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Batch mode of {@link CalculatorLspLauncher}: evaluates one expression per line of files or
+ * standard input, without an LSP session.
+ *
+ * <p>Input is cut into chunks of lines that a fork-join pool parses and analyzes in parallel,
+ * with the same engine and diagnostics as the language server. Files are memory-mapped and a
+ * chunk is only a slice of the mapping, so the reading thread never decodes text; standard
+ * input is read line by line. Results are written in input order: at most a fixed number of
+ * chunks per worker are in flight, and the oldest is written as soon as it completes, so
+ * memory stays bounded however long the input is.</p>
+ *
+ * <p>With {@code --evaluator bytecode} a line is compiled to {@link CalculatorBytecode} and run
+ * on its stack machine instead of being evaluated by {@link CalculatorAstAnalyzer}, which also
+ * builds the per-subexpression values that only the editor shows. A line that does not compile
+ * or faults is analyzed as without the option, so its output is the same either way.</p>
+ *
+ * <p>Output has one line per non-blank input line: {@code source:line: = value} for a result,
+ * {@code source:line:column: error: message} for each error. The exit code is 1 when any line
+ * has an error, 2 for invalid arguments, unreadable input, unwritable output or a line that
+ * could not be evaluated, 0 otherwise.</p>
+ */
+public final class CalculatorBatch {
+
+    public static final String USAGE =
+            "Usage: --batch [--parser combinator|pratt] [--precision double|decimal[:<digits>]|rational]"
+            + " [--evaluator tree|bytecode] [--threads <n>] [<file>...]  ('-' or no file: stdin)";
+
+    /** Lines per chunk read from standard input. */
+    private static final int CHUNK_LINES = 4096;
+    /** Approximate bytes per chunk of a mapped file; chunks end at a line break. */
+    private static final int CHUNK_BYTES = 1 << 20;
+    /** Bytes mapped at a time, so that files of any size can be read. */
+    private static final long MAP_WINDOW = 1L << 30;
+    /** Chunks in flight per worker thread. */
+    private static final int PENDING_PER_THREAD = 4;
+
+    /**
+     * Evaluated chunk: its number of input lines and its output, numbered relative to the chunk.
+     */
+    private record ChunkResult(int lineCount, List<Line> lines, boolean failed) {}
+
+    private record Line(int index, int column, String text) {}
+
+    private final CalculatorLanguageServer server;
+    /** Run lines on {@link CalculatorBytecode} before falling back to the analyzer. */
+    private final boolean bytecode;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final Writer out;
+    private final Deque<ForkJoinTask<ChunkResult>> pending = new ArrayDeque<>();
+    private final Deque<String> pendingSources = new ArrayDeque<>();
+    private String writtenSource;
+    private long writtenLines;
+    private boolean failed;
+
+    private CalculatorBatch(CalculatorLanguageServer server, boolean bytecode, ForkJoinPool pool, Writer out) {
+        this.server = server;
+        this.bytecode = bytecode;
+        this.pool = pool;
+        this.maxPending = pool.getParallelism() * PENDING_PER_THREAD;
+        this.out = out;
+    }
+
+    /**
+     * Run batch mode with the arguments that follow {@code --batch}.
+     *
+     * @return the process exit code
+     */
+    public static int run(String[] args, InputStream in, Writer out, PrintStream err) {
+        // Every line is independent and mostly distinct, so a cache would only add contention:
+        // lines are analyzed uncached, and the server's own cache stays empty.
+        CalculatorLanguageServer server = new CalculatorLanguageServer(new AnalysisCache(0));
+        boolean bytecode = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> sources = new ArrayList<>();
+        for (int index = 0; index < args.length; index++) {
+            String arg = args[index];
+            if ("--parser".equals(arg) && index + 1 < args.length) {
+                String parser = args[++index];
+                if ("pratt".equalsIgnoreCase(parser)) {
+                    server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+                } else if (false == "combinator".equalsIgnoreCase(parser)) {
+                    err.println(USAGE);
+                    return 2;
+                }
+            } else if ("--precision".equals(arg) && index + 1 < args.length) {
+                try {
+                    server.setPrecision(Precision.parse(args[++index]));
+                } catch (IllegalArgumentException ex) {
+                    err.println(USAGE);
+                    return 2;
+                }
+            } else if ("--evaluator".equals(arg) && index + 1 < args.length) {
+                String evaluator = args[++index];
+                bytecode = "bytecode".equalsIgnoreCase(evaluator);
+                if (false == bytecode && false == "tree".equalsIgnoreCase(evaluator)) {
+                    err.println(USAGE);
+                    return 2;
+                }
+            } else if ("--threads".equals(arg) && index + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++index]);
+                } catch (NumberFormatException ex) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    err.println(USAGE);
+                    return 2;
+                }
+            } else if (arg.startsWith("--")) {
+                err.println(USAGE);
+                return 2;
+            } else {
+                sources.add(arg);
+            }
+        }
+        if (bytecode && server.getPrecision().mode() != Precision.Mode.DOUBLE) {
+            // The bytecode computes in doubles only.
+            err.println(USAGE);
+            return 2;
+        }
+        if (sources.isEmpty()) {
+            sources.add("-");
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            CalculatorBatch batch = new CalculatorBatch(server, bytecode, pool, out);
+            for (String source : sources) {
+                if ("-".equals(source)) {
+                    batch.readStream("<stdin>", in);
+                } else {
+                    batch.readFile(source, Path.of(source));
+                }
+            }
+            batch.drain(0);
+            out.flush();
+            return batch.failed ? 1 : 0;
+        } catch (IOException ex) {
+            err.println("calculator batch: " + ex.getMessage());
+            return 2;
+        } catch (UncheckedIOException ex) {
+            // Thrown by write.
+            err.println("calculator batch: " + ex.getCause().getMessage());
+            return 2;
+        } catch (RuntimeException ex) {
+            // A worker failed; join rethrows its exception.
+            err.println("calculator batch: " + ex);
+            return 2;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void readStream(String source, InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<String> lines = new ArrayList<>(CHUNK_LINES);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+            if (lines.size() == CHUNK_LINES) {
+                String[] chunk = lines.toArray(String[]::new);
+                submit(source, () -> evaluate(chunk));
+                lines.clear();
+            }
+        }
+        if (false == lines.isEmpty()) {
+            String[] chunk = lines.toArray(String[]::new);
+            submit(source, () -> evaluate(chunk));
+        }
+    }
+
+    private void readFile(String source, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long window = MAP_WINDOW;
+            while (position < size) {
+                long length = Math.min(window, size - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int consumed = submitChunks(source, mapped, last);
+                if (consumed == 0) {
+                    // A single line longer than the window: map more of it at once.
+                    if (window >= Integer.MAX_VALUE) {
+                        throw new IOException(source + ": line longer than " + Integer.MAX_VALUE + " bytes");
+                    }
+                    window = Math.min(window * 2, Integer.MAX_VALUE);
+                    continue;
+                }
+                position += consumed;
+            }
+        }
+    }
+
+    /**
+     * Submit the complete lines of {@code mapped} as chunks of about {@link #CHUNK_BYTES}.
+     *
+     * @param last whether the mapping ends the file, so that its final line is complete
+     * @return bytes submitted
+     */
+    private int submitChunks(String source, MappedByteBuffer mapped, boolean last) {
+        int limit = mapped.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = Math.min(start + CHUNK_BYTES, limit);
+            while (end < limit && mapped.get(end - 1) != '\n') {
+                end++;
+            }
+            if (end == limit && false == last && mapped.get(end - 1) != '\n') {
+                // The final line continues in the next window; back up to its start.
+                end = lastLineBreak(mapped, start, limit);
+                if (end == start) {
+                    return start;
+                }
+            }
+            ByteBuffer slice = mapped.slice(start, end - start);
+            submit(source, () -> evaluate(slice));
+            start = end;
+        }
+        return start;
+    }
+
+    private static int lastLineBreak(ByteBuffer buffer, int from, int to) {
+        for (int index = to; index > from; index--) {
+            if (buffer.get(index - 1) == '\n') {
+                return index;
+            }
+        }
+        return from;
+    }
+
+    private void submit(String source, Callable<ChunkResult> chunk) {
+        drain(maxPending - 1);
+        pending.add(pool.submit(chunk));
+        pendingSources.add(source);
+    }
+
+    /**
+     * Write completed chunks in order until at most {@code remaining} are in flight.
+     */
+    private void drain(int remaining) {
+        while (pending.size() > remaining) {
+            ChunkResult result = pending.removeFirst().join();
+            write(pendingSources.removeFirst(), result);
+        }
+    }
+
+    private void write(String source, ChunkResult result) {
+        if (false == source.equals(writtenSource)) {
+            writtenSource = source;
+            writtenLines = 0;
+        }
+        try {
+            StringBuilder text = new StringBuilder();
+            for (Line line : result.lines()) {
+                text.append(source).append(':').append(writtenLines + line.index() + 1);
+                if (line.column() >= 0) {
+                    text.append(':').append(line.column() + 1);
+                }
+                text.append(": ").append(line.text()).append('\n');
+            }
+            out.write(text.toString());
+            out.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        writtenLines += result.lineCount();
+        failed |= result.failed();
+    }
+
+    private ChunkResult evaluate(ByteBuffer bytes) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int limit = bytes.limit();
+        for (int index = 0; index <= limit; index++) {
+            if (index == limit ? start < limit : bytes.get(index) == '\n') {
+                byte[] line = new byte[index - start];
+                bytes.get(start, line);
+                lines.add(new String(line, StandardCharsets.UTF_8));
+                start = index + 1;
+            }
+        }
+        return evaluate(lines.toArray(String[]::new));
+    }
+
+    private ChunkResult evaluate(String[] lines) {
+        List<Line> output = new ArrayList<>();
+        boolean chunkFailed = false;
+        for (int index = 0; index < lines.length; index++) {
+            String line = lines[index];
+            int start = 0;
+            int end = line.length();
+            while (start < end && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            if (start == end) {
+                continue;
+            }
+
+            String text = line.substring(start, end);
+            Double value = bytecode ? runBytecode(text) : null;
+            if (value != null) {
+                output.add(new Line(index, -1, "= " + value));
+                continue;
+            }
+
+            CalculatorLanguageServer.ExpressionState expression = server.analyzeUncached(text);
+            CalculatorAstAnalyzer.AnalysisResult analysis = expression.analysis;
+            if (analysis.hasValue()) {
+                output.add(new Line(index, -1, "= " + analysis.displayValue()));
+                continue;
+            }
+            chunkFailed = true;
+            if (analysis.errors().isEmpty()) {
+                List<String> variables = analysis.ast() == null ? List.of() : analysis.ast().variableNames();
+                output.add(new Line(index, start, variables.isEmpty()
+                        ? "error: Invalid expression"
+                        : "error: Unbound variables: " + String.join(", ", variables)));
+            }
+            for (CalculatorAstAnalyzer.AstError error : analysis.errors()) {
+                output.add(new Line(index, start + error.range().getStart().getCharacter(),
+                        "error: " + error.message()));
+            }
+        }
+        return new ChunkResult(lines.length, output, chunkFailed);
+    }
+
+    /**
+     * Value of {@code text} run on {@link CalculatorBytecode}, or null when it does not parse or
+     * compile, has free variables or faults; the analyzer then reports every error.
+     */
+    private Double runBytecode(String text) {
+        CalculatorBytecode program = CalculatorBytecode.compile(server.parseAst(text));
+        if (program == null || false == program.variableNames().isEmpty()) {
+            return null;
+        }
+        try {
+            return program.run();
+        } catch (CalculatorBytecode.Fault fault) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.unlaxer.calculator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An expression compiled to flat bytecode, run by a loop over a primitive {@code double} stack.
+ *
+ * <p>Each instruction is one {@code int}: the opcode in the low 8 bits and, for {@link #CONST}
+ * and {@link #LOAD}, an index into the constant pool or the variables above them. The
+ * instructions are the AST in post-order, so operands are on the stack when their operator runs.
+ * A program is three arrays and no object graph, which makes it compact to keep per expression
+ * and cheap to re-run.</p>
+ *
+ * <p>The interpreter checks division and function domains as {@link CalculatorAstAnalyzer} does.
+ * The first failing instruction stops the run with a {@link Fault} that carries the source range
+ * of its AST node, looked up in a side table indexed by instruction.</p>
+ *
+ * <p>Batch mode evaluates with it in place of the analyzer when run with
+ * {@code --evaluator bytecode} (see {@link CalculatorBatch}); {@link CalculatorSweep} runs it
+ * over columns of variable values.</p>
+ */
+public final class CalculatorBytecode {
+
+    static final int CONST = 0;
+    static final int NEG = 1;
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+    static final int SIN = 6;
+    static final int COS = 7;
+    static final int TAN = 8;
+    static final int SQRT = 9;
+    static final int LOG = 10;
+    /** Push a variable's value; its index is into {@link #variableNames()}. */
+    static final int LOAD = 11;
+
+    private static final int OPCODE_BITS = 8;
+    private static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+    private static final double[] NO_VARIABLES = new double[0];
+
+    /**
+     * Evaluation error at source offsets {@code [start, end)}.
+     */
+    public static final class Fault extends ArithmeticException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        Fault(int start, int end, String message) {
+            super(message);
+            this.start = start;
+            this.end = end;
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // Faults report user input, not a bug; the stack trace would only cost time.
+            return this;
+        }
+    }
+
+    private final int[] code;
+    private final double[] constants;
+    /** Source range of the AST node each instruction was compiled from. */
+    private final int[] sourceStarts;
+    private final int[] sourceEnds;
+    private final int maxStack;
+    private final List<String> variableNames;
+
+    private CalculatorBytecode(int[] code, double[] constants, int[] sourceStarts, int[] sourceEnds,
+            int maxStack, List<String> variableNames) {
+        this.code = code;
+        this.constants = constants;
+        this.sourceStarts = sourceStarts;
+        this.sourceEnds = sourceEnds;
+        this.maxStack = maxStack;
+        this.variableNames = variableNames;
+    }
+
+    /**
+     * Compile {@code ast}, or return null when it contains error nodes, unparsable numbers,
+     * unknown operators, unknown functions or a function name without its call.
+     */
+    public static CalculatorBytecode compile(CalculatorAstNode ast) {
+        if (ast == null) {
+            return null;
+        }
+        List<CalculatorAstNode> nodes = ast.postOrder();
+        List<String> variableNames = ast.variableNames();
+        Map<String, Integer> variableIndexes = new HashMap<>();
+        for (String name : variableNames) {
+            variableIndexes.put(name, variableIndexes.size());
+        }
+        int[] code = new int[nodes.size()];
+        double[] constants = new double[nodes.size()];
+        int[] sourceStarts = new int[nodes.size()];
+        int[] sourceEnds = new int[nodes.size()];
+        int length = 0;
+        int constantCount = 0;
+        int depth = 0;
+        int maxStack = 0;
+
+        for (CalculatorAstNode node : nodes) {
+            int instruction;
+            if (node.kind() == CalculatorAstNode.Kind.NUMBER) {
+                if (Double.isNaN(node.value())) {
+                    return null;
+                }
+                constants[constantCount] = node.value();
+                instruction = CONST | (constantCount++ << OPCODE_BITS);
+            } else if (node.kind() == CalculatorAstNode.Kind.VARIABLE) {
+                if (CalculatorPrattParser.isFunctionName(node.symbol())) {
+                    return null;
+                }
+                instruction = LOAD | (variableIndexes.get(node.symbol()) << OPCODE_BITS);
+            } else {
+                instruction = opcode(node);
+                if (instruction < 0) {
+                    return null;
+                }
+                if (node.kind() == CalculatorAstNode.Kind.UNARY && instruction == CONST) {
+                    // Unary '+' leaves its operand as it is.
+                    continue;
+                }
+            }
+            depth += 1 - node.children().size();
+            maxStack = Math.max(maxStack, depth);
+            code[length] = instruction;
+            sourceStarts[length] = node.start();
+            sourceEnds[length] = node.end();
+            length++;
+        }
+        return new CalculatorBytecode(Arrays.copyOf(code, length), Arrays.copyOf(constants, constantCount),
+                Arrays.copyOf(sourceStarts, length), Arrays.copyOf(sourceEnds, length), maxStack, variableNames);
+    }
+
+    /**
+     * Opcode for an operator or function node, {@link #CONST} for unary '+', -1 when unknown.
+     */
+    private static int opcode(CalculatorAstNode node) {
+        String symbol = node.symbol() == null ? "" : node.symbol();
+        return switch (node.kind()) {
+            case UNARY -> switch (symbol) {
+                case "-" -> NEG;
+                case "+" -> CONST;
+                default -> -1;
+            };
+            case BINARY -> switch (symbol) {
+                case "+" -> ADD;
+                case "-" -> SUB;
+                case "*" -> MUL;
+                case "/" -> DIV;
+                default -> -1;
+            };
+            case FUNCTION -> switch (symbol) {
+                case "sin" -> SIN;
+                case "cos" -> COS;
+                case "tan" -> TAN;
+                case "sqrt" -> SQRT;
+                case "log" -> LOG;
+                default -> -1;
+            };
+            default -> -1;
+        };
+    }
+
+    /**
+     * Number of instructions.
+     */
+    public int length() {
+        return code.length;
+    }
+
+    /**
+     * Size of the stack array {@link #run(double[])} needs.
+     */
+    public int maxStack() {
+        return maxStack;
+    }
+
+    /**
+     * Free variables the program reads, in the order their values are passed to
+     * {@link #run(double[], double[])}.
+     */
+    public List<String> variableNames() {
+        return variableNames;
+    }
+
+    int instruction(int pc) {
+        return code[pc];
+    }
+
+    static int opcode(int instruction) {
+        return instruction & OPCODE_MASK;
+    }
+
+    static int operand(int instruction) {
+        return instruction >>> OPCODE_BITS;
+    }
+
+    double constant(int index) {
+        return constants[index];
+    }
+
+    public double run() {
+        return run(new double[maxStack]);
+    }
+
+    /**
+     * Run a program without variables on a caller-provided stack of at least {@link #maxStack()}
+     * elements, so that repeated runs allocate nothing.
+     *
+     * @throws Fault at the first division by zero or domain error
+     */
+    public double run(double[] stack) {
+        return run(stack, NO_VARIABLES);
+    }
+
+    /**
+     * Run with {@code variables[i]} as the value of {@code variableNames().get(i)}.
+     *
+     * @throws Fault at the first division by zero or domain error
+     * @throws IllegalArgumentException when fewer values than variables are given
+     */
+    public double run(double[] stack, double[] variables) {
+        if (variables.length < variableNames.size()) {
+            throw new IllegalArgumentException("expected values for " + variableNames);
+        }
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instruction = code[pc];
+            switch (instruction & OPCODE_MASK) {
+                case CONST -> stack[++top] = constants[instruction >>> OPCODE_BITS];
+                case LOAD -> stack[++top] = variables[instruction >>> OPCODE_BITS];
+                case NEG -> stack[top] = -stack[top];
+                case ADD -> {
+                    top--;
+                    stack[top] += stack[top + 1];
+                }
+                case SUB -> {
+                    top--;
+                    stack[top] -= stack[top + 1];
+                }
+                case MUL -> {
+                    top--;
+                    stack[top] *= stack[top + 1];
+                }
+                case DIV -> {
+                    top--;
+                    if (stack[top + 1] == 0.0d) {
+                        throw fault(pc, "0 で除算できません");
+                    }
+                    stack[top] /= stack[top + 1];
+                }
+                case SIN -> stack[top] = Math.sin(stack[top]);
+                case COS -> stack[top] = Math.cos(stack[top]);
+                case TAN -> stack[top] = Math.tan(stack[top]);
+                case SQRT -> {
+                    if (stack[top] < 0.0d) {
+                        throw fault(pc, "負の数の平方根は計算できません");
+                    }
+                    stack[top] = Math.sqrt(stack[top]);
+                }
+                case LOG -> {
+                    if (stack[top] <= 0.0d) {
+                        throw fault(pc, "0 以下の対数は計算できません");
+                    }
+                    stack[top] = Math.log(stack[top]);
+                }
+                default -> throw new IllegalStateException("unknown opcode at " + pc + ": " + instruction);
+            }
+        }
+        return stack[0];
+    }
+
+    private Fault fault(int pc, String message) {
+        return new Fault(sourceStarts[pc], sourceEnds[pc], message);
+    }
+}
@@ -6,9 +6,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import org.eclipse.lsp4j.CompletionItem;
-import org.eclipse.lsp4j.CompletionItemKind;
 import org.eclipse.lsp4j.CompletionList;
 import org.eclipse.lsp4j.CompletionOptions;
 import org.eclipse.lsp4j.CompletionParams;
@@ -20,10 +30,13 @@ import org.eclipse.lsp4j.Hover;
 import org.eclipse.lsp4j.HoverParams;
 import org.eclipse.lsp4j.MarkupContent;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DiagnosticRegistrationOptions;
 import org.eclipse.lsp4j.DiagnosticSeverity;
 import org.eclipse.lsp4j.DidChangeTextDocumentParams;
 import org.eclipse.lsp4j.DidCloseTextDocumentParams;
 import org.eclipse.lsp4j.DidOpenTextDocumentParams;
+import org.eclipse.lsp4j.DocumentDiagnosticParams;
+import org.eclipse.lsp4j.DocumentDiagnosticReport;
 import org.eclipse.lsp4j.DidSaveTextDocumentParams;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
@@ -31,13 +44,26 @@ import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.SetTraceParams;
+import org.eclipse.lsp4j.PreviousResultId;
+import org.eclipse.lsp4j.RelatedFullDocumentDiagnosticReport;
+import org.eclipse.lsp4j.RelatedUnchangedDocumentDiagnosticReport;
 import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensDeltaParams;
 import org.eclipse.lsp4j.SemanticTokensLegend;
 import org.eclipse.lsp4j.SemanticTokensParams;
+import org.eclipse.lsp4j.SemanticTokensRangeParams;
+import org.eclipse.lsp4j.SemanticTokensServerFull;
 import org.eclipse.lsp4j.SemanticTokensWithRegistrationOptions;
 import org.eclipse.lsp4j.ServerCapabilities;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.WorkspaceDiagnosticParams;
+import org.eclipse.lsp4j.WorkspaceDiagnosticReport;
+import org.eclipse.lsp4j.WorkspaceDocumentDiagnosticReport;
+import org.eclipse.lsp4j.WorkspaceFullDocumentDiagnosticReport;
+import org.eclipse.lsp4j.WorkspaceUnchangedDocumentDiagnosticReport;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.LanguageClientAware;
@@ -46,6 +72,7 @@ import org.eclipse.lsp4j.services.TextDocumentService;
 import org.eclipse.lsp4j.services.WorkspaceService;
 import org.unlaxer.Parsed;
 import org.unlaxer.StringSource;
+import org.unlaxer.Token;
 import org.unlaxer.context.ParseContext;
 import org.unlaxer.parser.Parser;
 
@@ -57,39 +84,192 @@ import org.unlaxer.parser.Parser;
  */
 public class CalculatorLanguageServer implements LanguageServer, LanguageClientAware {
 
+    /**
+     * How a document is split into expressions.
+     */
+    public enum DocumentMode {
+        /** The whole document is one expression. */
+        WHOLE_DOCUMENT,
+        /** Every non-blank line is an independent expression. */
+        LINES
+    }
+
+    /**
+     * Which parser builds the AST.
+     */
+    public enum ParserBackend {
+        /** The unlaxer combinator grammar in {@link CalculatorParsers}. */
+        COMBINATOR,
+        /** The hand-written {@link CalculatorPrattParser}. */
+        PRATT
+    }
+
+    /**
+     * Default limit on the nesting depth of parentheses and unary signs; deeper expressions
+     * get a diagnostic instead of being parsed.
+     */
+    public static final int DEFAULT_MAX_NESTING_DEPTH = 256;
+
+    /**
+     * Highest nesting limit a client can ask for in its initialization options; larger values
+     * are lowered to it. Bounds the parsers' stack use and the settings that sessions of a
+     * multi-tenant server get separate caches for.
+     */
+    public static final int MAX_REQUESTED_NESTING_DEPTH = 1024;
+
+    /**
+     * Default window in which the diagnostics of successive versions of a document are
+     * coalesced into one notification.
+     */
+    public static final long DEFAULT_DIAGNOSTICS_DELAY_MILLIS = 50;
+
     private LanguageClient client;
-    private final Map<String, DocumentState> documents = new HashMap<>();
+    private DocumentMode documentMode = DocumentMode.WHOLE_DOCUMENT;
+    private ParserBackend parserBackend = ParserBackend.COMBINATOR;
+    private int maxNestingDepth = DEFAULT_MAX_NESTING_DEPTH;
+    private Precision precision = Precision.DOUBLE;
+    private volatile long diagnosticsDelayMillis = DEFAULT_DIAGNOSTICS_DELAY_MILLIS;
+    /** Newest analyzed snapshot of every open document; replaced whole, never modified. */
+    private final Map<String, DocumentState> documents = new ConcurrentHashMap<>();
+    /** Newest scheduled analysis of every open document. */
+    private final Map<String, Analysis> analyses = new ConcurrentHashMap<>();
+    private final Executor analysisExecutor;
+    /** Newest snapshot of every document whose diagnostics wait for the end of their window. */
+    private final Map<String, DocumentState> pendingDiagnostics = new ConcurrentHashMap<>();
+    /** Diagnostics last published for every document; guarded by diagnosticsLock. */
+    private final Map<String, List<Diagnostic>> publishedDiagnostics = new HashMap<>();
+    /** Diagnostics last computed for a pull request, by document; reused while the snapshot is current. */
+    private final Map<String, PulledDiagnostics> pulledDiagnostics = new ConcurrentHashMap<>();
+    /** Whether the client pulls diagnostics, in which case none are pushed. */
+    private volatile boolean pullDiagnostics;
+    /** Semantic tokens last sent for every document, the base of the next delta. */
+    final Map<String, CalculatorSemanticTokens> sentSemanticTokens = new ConcurrentHashMap<>();
+    /** Orders taking pending diagnostics with publishing them. */
+    private final Object diagnosticsLock = new Object();
     private final SuggestableParser suggestableParser = new CalculatorSuggestableParser();
     private final CalculatorAstAnalyzer astAnalyzer = new CalculatorAstAnalyzer();
+    /** Caches shared with other sessions, or null when {@link #analysisCache} is this server's own. */
+    private final SharedAnalysisCaches sharedCaches;
+    /** Cache for the current settings; replaced when they change if {@link #sharedCaches} is set. */
+    private volatile AnalysisCache analysisCache;
+    /** Characters of the newest text of every open document. */
+    private final AtomicLong documentWeight = new AtomicLong();
+    private volatile long maxDocumentWeight = Long.MAX_VALUE;
     private final CalculatorTextDocumentService textDocumentService;
 
     public CalculatorLanguageServer() {
+        this(new AnalysisCache(AnalysisCache.DEFAULT_MAX_WEIGHT));
+    }
+
+    /**
+     * @param analysisCache cache of parse and analysis results by expression text
+     */
+    public CalculatorLanguageServer(AnalysisCache analysisCache) {
+        this(analysisCache, Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "calculator-analysis");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param analysisCache cache of parse and analysis results by expression text
+     * @param analysisExecutor runs the analyses that document notifications schedule; shut down
+     *        on {@link #exit()} if it is an {@link ExecutorService}
+     */
+    public CalculatorLanguageServer(AnalysisCache analysisCache, Executor analysisExecutor) {
+        this.sharedCaches = null;
+        this.analysisCache = analysisCache;
+        this.analysisExecutor = analysisExecutor;
+        this.textDocumentService = new CalculatorTextDocumentService(this);
+    }
+
+    /**
+     * A session of a multi-tenant server: results are taken from and stored into caches that
+     * other sessions share, for whatever settings this session initializes with.
+     *
+     * @param sharedCaches caches shared by all sessions
+     * @param analysisExecutor as in {@link #CalculatorLanguageServer(AnalysisCache, Executor)}
+     */
+    public CalculatorLanguageServer(SharedAnalysisCaches sharedCaches, Executor analysisExecutor) {
+        this.sharedCaches = sharedCaches;
+        this.analysisCache = sharedCaches.get(parserBackend, maxNestingDepth, precision);
+        this.analysisExecutor = analysisExecutor;
         this.textDocumentService = new CalculatorTextDocumentService(this);
     }
 
     @Override
     public CompletableFuture<InitializeResult> initialize(InitializeParams params) {
+        String documentModeOption = getInitializationOption(params, "documentMode");
+        if ("lines".equalsIgnoreCase(documentModeOption)) {
+            documentMode = DocumentMode.LINES;
+        } else if ("document".equalsIgnoreCase(documentModeOption)) {
+            documentMode = DocumentMode.WHOLE_DOCUMENT;
+        }
+        String parserOption = getInitializationOption(params, "parser");
+        if ("pratt".equalsIgnoreCase(parserOption)) {
+            setParserBackend(ParserBackend.PRATT);
+        } else if ("combinator".equalsIgnoreCase(parserOption)) {
+            setParserBackend(ParserBackend.COMBINATOR);
+        }
+        String maxNestingDepthOption = getInitializationOption(params, "maxNestingDepth");
+        if (maxNestingDepthOption != null) {
+            try {
+                setMaxNestingDepth(Math.min(Integer.parseInt(maxNestingDepthOption.trim()),
+                        MAX_REQUESTED_NESTING_DEPTH));
+            } catch (IllegalArgumentException ex) {
+                // Not a positive number: keep the current limit.
+            }
+        }
+        String precisionOption = getInitializationOption(params, "precision");
+        if (precisionOption != null) {
+            String decimalDigits = getInitializationOption(params, "decimalDigits");
+            try {
+                setPrecision(Precision.parse("decimal".equalsIgnoreCase(precisionOption.trim()) && decimalDigits != null
+                        ? "decimal:" + decimalDigits
+                        : precisionOption));
+            } catch (IllegalArgumentException ex) {
+                // Unknown mode or digits: keep double precision.
+            }
+        }
+        String diagnosticsDelayOption = getInitializationOption(params, "diagnosticsDelay");
+        if (diagnosticsDelayOption != null) {
+            try {
+                setDiagnosticsDelayMillis(Long.parseLong(diagnosticsDelayOption.trim()));
+            } catch (IllegalArgumentException ex) {
+                // Not a number of milliseconds: keep the current window.
+            }
+        }
+
+        pullDiagnostics = params.getCapabilities() != null
+                && params.getCapabilities().getTextDocument() != null
+                && params.getCapabilities().getTextDocument().getDiagnostic() != null;
+
         ServerCapabilities capabilities = new ServerCapabilities();
 
-        // Text document sync
-        capabilities.setTextDocumentSync(TextDocumentSyncKind.Full);
+        // Text document sync: clients send range edits that are applied to a piece table
+        capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);
 
         // Completion support
         CompletionOptions completionOptions = new CompletionOptions();
         completionOptions.setTriggerCharacters(this.suggestableParser.getTriggerCharacters());
-        completionOptions.setResolveProvider(false);
+        completionOptions.setResolveProvider(true);
         capabilities.setCompletionProvider(completionOptions);
 
         // Semantic tokens for syntax highlighting
         SemanticTokensWithRegistrationOptions semanticTokensOptions =
             new SemanticTokensWithRegistrationOptions();
-        semanticTokensOptions.setFull(true);
+        semanticTokensOptions.setFull(new SemanticTokensServerFull(true));
+        semanticTokensOptions.setRange(true);
         semanticTokensOptions.setLegend(new SemanticTokensLegend(
-            List.of("valid", "invalid", "function", "number", "operator"),
+            CalculatorSemanticTokens.TOKEN_TYPES,
             List.of()
         ));
         capabilities.setSemanticTokensProvider(semanticTokensOptions);
 
+        // Pull diagnostics, for open documents only
+        capabilities.setDiagnosticProvider(new DiagnosticRegistrationOptions(false, true));
+
         // Hover support
         capabilities.setHoverProvider(true);
 
@@ -101,6 +281,21 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
         return CompletableFuture.completedFuture(new InitializeResult(capabilities));
     }
 
+    /**
+     * Read a string value from the client's {@code initializationOptions} object.
+     */
+    private static String getInitializationOption(InitializeParams params, String key) {
+        Object options = params.getInitializationOptions();
+        if (false == options instanceof JsonObject) {
+            return null;
+        }
+        JsonElement value = ((JsonObject) options).get(key);
+        if (value == null || false == value.isJsonPrimitive()) {
+            return null;
+        }
+        return value.getAsString();
+    }
+
     @Override
     public CompletableFuture<Object> shutdown() {
         return CompletableFuture.completedFuture(null);
@@ -108,7 +303,9 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
 
     @Override
     public void exit() {
-        // Clean up
+        if (analysisExecutor instanceof ExecutorService executorService) {
+            executorService.shutdownNow();
+        }
     }
 
     @Override
@@ -118,7 +315,7 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
 
     @Override
     public WorkspaceService getWorkspaceService() {
-        return new CalculatorWorkspaceService();
+        return new CalculatorWorkspaceService(this);
     }
 
     @Override
@@ -130,52 +327,639 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
         return client;
     }
 
+    /**
+     * Newest analyzed snapshot of every open document. Analyses scheduled by document
+     * notifications may not have finished; {@link #getDocument(String)} waits for them.
+     */
     public Map<String, DocumentState> getDocuments() {
         return documents;
     }
 
+    /**
+     * Snapshot of the newest version of a document, completed once that version is analyzed,
+     * or completed with null for a document that is not open.
+     */
+    public CompletableFuture<DocumentState> getDocument(String uri) {
+        Analysis analysis = analyses.get(uri);
+        if (analysis == null) {
+            return CompletableFuture.completedFuture(documents.get(uri));
+        }
+        return analysis.result.exceptionallyCompose(failure -> analyses.get(uri) != analysis
+                // Cancelled by a newer version or by closing: wait for whatever came after.
+                ? getDocument(uri)
+                : CompletableFuture.failedFuture(failure));
+    }
+
+    /**
+     * Text of the newest version of a document, which may not be analyzed yet, or null.
+     */
+    public String getText(String uri) {
+        Analysis analysis = analyses.get(uri);
+        return analysis == null ? null : analysis.text.toString();
+    }
+
+    public DocumentMode getDocumentMode() {
+        return documentMode;
+    }
+
+    public void setDocumentMode(DocumentMode documentMode) {
+        this.documentMode = documentMode;
+    }
+
+    public ParserBackend getParserBackend() {
+        return parserBackend;
+    }
+
+    public void setParserBackend(ParserBackend parserBackend) {
+        if (this.parserBackend != parserBackend) {
+            // Backends report syntax errors differently, so cached results do not carry over.
+            this.parserBackend = parserBackend;
+            settingsChanged();
+        }
+    }
+
+    /**
+     * Cache of results for the current settings.
+     */
+    public AnalysisCache getAnalysisCache() {
+        return analysisCache;
+    }
+
+    /**
+     * Drop cached results, which the changed settings would analyze differently: switch to the
+     * shared cache for the new settings, or clear this server's own cache.
+     */
+    private void settingsChanged() {
+        if (sharedCaches != null) {
+            analysisCache = sharedCaches.get(parserBackend, maxNestingDepth, precision);
+        } else {
+            analysisCache.clear();
+        }
+    }
+
+    /**
+     * Characters of the newest text of every open document, which the memory held by this
+     * session grows with.
+     */
+    public long getDocumentWeight() {
+        return documentWeight.get();
+    }
+
+    public long getMaxDocumentWeight() {
+        return maxDocumentWeight;
+    }
+
+    /**
+     * Limit on {@link #getDocumentWeight()}. While open documents exceed it, new versions are not
+     * analyzed: their snapshots are dropped and a diagnostic reports the limit instead.
+     */
+    public void setMaxDocumentWeight(long maxDocumentWeight) {
+        if (maxDocumentWeight < 0) {
+            throw new IllegalArgumentException("maxDocumentWeight must not be negative: " + maxDocumentWeight);
+        }
+        this.maxDocumentWeight = maxDocumentWeight;
+    }
+
+    public int getMaxNestingDepth() {
+        return maxNestingDepth;
+    }
+
+    /**
+     * Limit on the nesting depth of parentheses and unary signs. Expressions nested deeper are
+     * not parsed but reported with a single diagnostic, which keeps the recursive parsers off
+     * the end of the stack.
+     */
+    public void setMaxNestingDepth(int maxNestingDepth) {
+        if (maxNestingDepth < 1) {
+            throw new IllegalArgumentException("maxNestingDepth must be positive: " + maxNestingDepth);
+        }
+        if (this.maxNestingDepth != maxNestingDepth) {
+            this.maxNestingDepth = maxNestingDepth;
+            settingsChanged();
+        }
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Number representation that expressions are evaluated in; see {@link Precision}.
+     */
+    public void setPrecision(Precision precision) {
+        if (false == this.precision.equals(precision)) {
+            this.precision = precision;
+            settingsChanged();
+        }
+    }
+
+    public long getDiagnosticsDelayMillis() {
+        return diagnosticsDelayMillis;
+    }
+
+    /**
+     * Window in which the diagnostics of successive versions of a document are coalesced: the
+     * first analyzed version opens it, and when it ends only the newest version's diagnostics are
+     * published, and only if they differ from the ones published last. With 0 every analysis
+     * publishes at once, still skipping unchanged diagnostics.
+     */
+    public void setDiagnosticsDelayMillis(long diagnosticsDelayMillis) {
+        if (diagnosticsDelayMillis < 0) {
+            throw new IllegalArgumentException("diagnosticsDelay must not be negative: " + diagnosticsDelayMillis);
+        }
+        this.diagnosticsDelayMillis = diagnosticsDelayMillis;
+    }
+
     /**
      * Parse document and update state.
      */
     public ParseResult parseDocument(String uri, String content) {
+        return parseDocument(uri, new PieceTable(content));
+    }
+
+    /**
+     * Parse the current text of an incrementally edited buffer on the calling thread and update
+     * state, as the version after the newest one. Cancels analyses scheduled for older versions.
+     *
+     * @return the result, or null when open documents exceed {@link #getMaxDocumentWeight()}
+     */
+    public ParseResult parseDocument(String uri, PieceTable buffer) {
+        Analysis previous = analyses.get(uri);
+        Analysis analysis = begin(uri, previous == null ? 0 : previous.version + 1, buffer);
+        run(analysis);
+        try {
+            DocumentState state = analysis.result.join();
+            return state == null ? null : state.parseResult;
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Analyze a version of a document on the analysis executor, cancelling the analysis of any
+     * older version that has not finished. Only the message thread may edit {@code buffer}
+     * afterwards; the analysis reads a snapshot of its text, and only the analysis of a version
+     * that is still the newest when its turn comes copies that text into a string.
+     *
+     * @return the analyzed snapshot, cancelled if a newer version is scheduled first, or null
+     *         when open documents exceed {@link #getMaxDocumentWeight()}
+     */
+    public CompletableFuture<DocumentState> scheduleDocument(String uri, int version, PieceTable buffer) {
+        Analysis analysis = begin(uri, version, buffer);
+        analysisExecutor.execute(() -> run(analysis));
+        return analysis.result;
+    }
+
+    /**
+     * Forget a document and cancel its analysis.
+     */
+    public void closeDocument(String uri) {
+        Analysis analysis = analyses.remove(uri);
+        if (analysis != null) {
+            analysis.result.cancel(false);
+            documentWeight.addAndGet(-analysis.text.length());
+        }
+        // After cancelling, so that an analysis finishing concurrently cannot store it again.
+        documents.remove(uri);
+        sentSemanticTokens.remove(uri);
+        pulledDiagnostics.remove(uri);
+        synchronized (diagnosticsLock) {
+            pendingDiagnostics.remove(uri);
+            publishedDiagnostics.remove(uri);
+        }
+    }
+
+    /**
+     * Buffer that the next change of a document is applied to, or null if it is not open.
+     */
+    PieceTable getBuffer(String uri) {
+        Analysis analysis = analyses.get(uri);
+        return analysis == null ? null : analysis.buffer;
+    }
+
+    private Analysis begin(String uri, int version, PieceTable buffer) {
+        Analysis analysis = new Analysis(uri, version, buffer, buffer.snapshot());
+        Analysis previous = analyses.put(uri, analysis);
+        documentWeight.addAndGet(analysis.text.length() - (previous == null ? 0 : previous.text.length()));
+        if (previous != null) {
+            previous.result.cancel(false);
+        }
+        return analysis;
+    }
+
+    private void run(Analysis analysis) {
+        BooleanSupplier stale = analysis.result::isCancelled;
+        if (stale.getAsBoolean()) {
+            return;
+        }
+        if (documentWeight.get() > maxDocumentWeight) {
+            rejectDocument(analysis);
+            return;
+        }
+        try {
+            DocumentState state = analyzeDocument(analysis, stale);
+            if (state == null) {
+                return;
+            }
+            documents.compute(analysis.uri, (uri, current) ->
+                    stale.getAsBoolean() || current != null && current.version > state.version ? current : state);
+            if (client != null && analyses.get(analysis.uri) == analysis) {
+                scheduleDiagnostics(state);
+            }
+            analysis.result.complete(state);
+        } catch (RuntimeException | StackOverflowError ex) {
+            analysis.result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Leave a version unanalyzed because open documents exceed the limit on their weight: drop
+     * the document's older snapshot too, and say why in place of its diagnostics.
+     */
+    private void rejectDocument(Analysis analysis) {
+        documents.computeIfPresent(analysis.uri, (uri, current) -> analysis.result.isCancelled() ? current : null);
+        if (client != null && false == pullDiagnostics) {
+            Diagnostic diagnostic = new Diagnostic(new Range(new Position(0, 0), new Position(0, 0)),
+                    "Not analyzed: open documents exceed this session's limit of " + maxDocumentWeight
+                            + " characters",
+                    DiagnosticSeverity.Warning, "calculator");
+            synchronized (diagnosticsLock) {
+                pendingDiagnostics.remove(analysis.uri);
+                if (analyses.get(analysis.uri) == analysis) {
+                    publishDiagnostics(analysis.uri, analysis.version, List.of(diagnostic));
+                }
+            }
+        }
+        analysis.result.complete(null);
+    }
+
+    /**
+     * Snapshot of one version, or null when the analysis went stale before it finished.
+     */
+    private DocumentState analyzeDocument(Analysis analysis, BooleanSupplier stale) {
+        String content = analysis.text.toString();
+        LineIndex lineIndex = LineIndex.of(content);
+        DocumentState previous = documents.get(analysis.uri);
+        TokenStream tokens = previous == null
+                ? CalculatorLexer.lex(content)
+                : CalculatorLexer.relex(previous.tokens, previous.content, content);
+
+        if (documentMode == DocumentMode.LINES) {
+            return parseLines(analysis.uri, analysis.version, content, lineIndex, tokens,
+                    previous == null ? Map.of() : previous.lineCache, stale);
+        }
+        ExpressionState expression = parseExpression(content, lineIndex, tokens);
+        return new DocumentState(analysis.uri, analysis.version, content, lineIndex, tokens, List.of(expression),
+                Map.of(), expression.parseResult, expression.analysis);
+    }
+
+    /**
+     * Parse and analyze one expression without storing a document or publishing diagnostics.
+     * Safe to call from several threads as long as the server's settings do not change.
+     */
+    public ExpressionState analyze(String text) {
+        return parseExpression(text, LineIndex.of(text), null);
+    }
+
+    /**
+     * {@link #analyze(String)} without the analysis cache, for callers whose texts rarely repeat,
+     * such as batch mode. Safe to call from several threads in the same way.
+     */
+    public ExpressionState analyzeUncached(String text) {
+        return analyzeExpression(text, LineIndex.of(text), null, precision);
+    }
+
+    /**
+     * The AST of {@code text} if it parses completely within the nesting limit, otherwise null;
+     * {@link #analyzeUncached} then reports why. Nothing is analyzed or cached, for callers that
+     * evaluate the AST themselves, such as batch mode with {@link CalculatorBytecode}.
+     */
+    public CalculatorAstNode parseAst(String text) {
+        TokenStream tokens = CalculatorLexer.lex(text);
+        if (NestingDepth.findExcess(tokens, maxNestingDepth) >= 0) {
+            return null;
+        }
+
+        if (parserBackend == ParserBackend.PRATT) {
+            ParseResult parseResult = CalculatorPrattParser.parse(tokens, text);
+            return parseResult.isFullyValid() ? parseResult.ast : null;
+        }
+
+        Parser parser = CalculatorParsers.getRootParser();
+        ParseContext context = new ParseContext(StringSource.createRootSource(text));
+        Parsed result = parser.parse(context);
+        CalculatorAstNode ast = null;
+        if (result.isSucceeded()) {
+            Token consumed = result.getConsumed();
+            if (CalculatorAstAnalyzer.endOf(consumed) - CalculatorAstAnalyzer.startOf(consumed) == text.length()) {
+                ast = astAnalyzer.mapAst(result, text);
+            }
+        }
+        context.close();
+        return ast;
+    }
+
+    /**
+     * {@link #analyze(String)} in another precision than the server's, e.g. for one request.
+     * Results in a precision other than the server's are not cached.
+     */
+    public ExpressionState analyze(String text, Precision precision) {
+        if (precision.equals(this.precision)) {
+            return analyze(text);
+        }
+        return analyzeExpression(text, LineIndex.of(text), null, precision);
+    }
+
+    /**
+     * Parse and analyze a single expression whose text starts at offset 0,
+     * reusing the result for text that was analyzed before.
+     *
+     * @param tokens tokens of {@code text}, or null to lex it on a cache miss
+     */
+    private ExpressionState parseExpression(String text, LineIndex lineIndex, TokenStream tokens) {
+        return analysisCache.computeIfAbsent(text, key -> analyzeExpression(key, lineIndex, tokens, precision));
+    }
+
+    private ExpressionState analyzeExpression(String text, LineIndex lineIndex, TokenStream tokens,
+            Precision precision) {
+        if (tokens == null) {
+            tokens = CalculatorLexer.lex(text);
+        }
+        int excess = NestingDepth.findExcess(tokens, maxNestingDepth);
+        if (excess >= 0) {
+            ParseResult parseResult = new ParseResult(false, 0, text.length(), null);
+            CalculatorAstAnalyzer.AstError error = new CalculatorAstAnalyzer.AstError(
+                    lineIndex.toRange(excess, excess + 1),
+                    "式の入れ子が深すぎます (上限 " + maxNestingDepth + ")");
+            return new ExpressionState(0, 0, text.length(), parseResult,
+                    new CalculatorAstAnalyzer.AnalysisResult(List.of(error), null, null, null));
+        }
+
+        if (parserBackend == ParserBackend.PRATT) {
+            ParseResult parseResult = CalculatorPrattParser.parse(tokens, text);
+            CalculatorAstAnalyzer.AnalysisResult analysis = astAnalyzer.analyze(text, lineIndex, parseResult,
+                    precision);
+            return new ExpressionState(0, 0, text.length(), parseResult, analysis);
+        }
+
         Parser parser = CalculatorParsers.getRootParser();
-        ParseContext context = new ParseContext(StringSource.createRootSource(content));
+        ParseContext context = new ParseContext(StringSource.createRootSource(text));
 
         Parsed result = parser.parse(context);
 
         int consumedLength = 0;
         if (result.isSucceeded()) {
-            consumedLength = result.getConsumed().source.sourceAsString().length();
+            Token consumed = result.getConsumed();
+            consumedLength = CalculatorAstAnalyzer.endOf(consumed) - CalculatorAstAnalyzer.startOf(consumed);
         }
 
         ParseResult parseResult = new ParseResult(
             result.isSucceeded(),
             consumedLength,
-            content.length(),
+            text.length(),
             result
         );
 
-        CalculatorAstAnalyzer.AnalysisResult analysis = astAnalyzer.analyze(content, parseResult);
-        DocumentState state = new DocumentState(uri, content, parseResult, analysis);
-        documents.put(uri, state);
-
+        CalculatorAstAnalyzer.AnalysisResult analysis = astAnalyzer.analyze(text, lineIndex, parseResult, precision);
         context.close();
 
-        // Publish diagnostics
-        if (client != null) {
-            publishDiagnostics(state);
+        return new ExpressionState(0, 0, text.length(), parseResult, analysis);
+    }
+
+    /**
+     * Parse every non-blank line as an independent expression.
+     * Lines whose text was already parsed in the previous version are taken from its cache,
+     * so an edit only re-parses the lines it changed.
+     *
+     * @return the snapshot, or null when {@code stale} turned true between two lines
+     */
+    private DocumentState parseLines(String uri, int version, String content, LineIndex lineIndex,
+            TokenStream tokens, Map<String, ExpressionState> previousCache, BooleanSupplier stale) {
+        List<ExpressionState> expressions = new ArrayList<>();
+        Map<String, ExpressionState> lineCache = new HashMap<>();
+        List<CalculatorAstAnalyzer.AstError> errors = new ArrayList<>();
+        boolean succeeded = true;
+        int validLength = content.length();
+
+        for (int line = 0; line < lineIndex.lineCount(); line++) {
+            int start = lineIndex.lineStart(line);
+            int end = lineIndex.lineEnd(line);
+            while (start < end && Character.isWhitespace(content.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(content.charAt(end - 1))) {
+                end--;
+            }
+            if (start == end) {
+                continue;
+            }
+
+            String text = content.substring(start, end);
+            ExpressionState local = lineCache.get(text);
+            if (local == null) {
+                local = previousCache.get(text);
+            }
+            if (local == null) {
+                if (stale.getAsBoolean()) {
+                    return null;
+                }
+                local = parseExpression(text, LineIndex.of(text), null);
+            }
+            lineCache.put(text, local);
+
+            ExpressionState expression = local.moveTo(line, start, start - lineIndex.lineStart(line));
+            expressions.add(expression);
+            errors.addAll(expression.analysis.errors());
+            if (false == expression.parseResult.isFullyValid()) {
+                validLength = Math.min(validLength, start + expression.parseResult.consumedLength);
+                succeeded &= expression.parseResult.succeeded;
+            }
         }
 
-        return parseResult;
+        CalculatorAstAnalyzer.AnalysisResult single = expressions.size() == 1 && errors.isEmpty()
+                ? expressions.get(0).analysis
+                : null;
+        ParseResult parseResult = new ParseResult(succeeded, validLength, content.length(), null);
+        CalculatorAstAnalyzer.AnalysisResult analysis = new CalculatorAstAnalyzer.AnalysisResult(
+                List.copyOf(errors), null, null, single == null ? null : single.value(),
+                single == null ? null : single.exactValue());
+        return new DocumentState(uri, version, content, lineIndex, tokens, List.copyOf(expressions), lineCache,
+                parseResult, analysis);
     }
 
     /**
-     * Publish diagnostics (errors) to the client.
+     * Publish the diagnostics of a snapshot at the end of its document's window, unless a newer
+     * snapshot replaces it first.
      */
-    private void publishDiagnostics(DocumentState state) {
+    private void scheduleDiagnostics(DocumentState state) {
+        if (pullDiagnostics) {
+            return;
+        }
+        long delay = diagnosticsDelayMillis;
+        if (pendingDiagnostics.put(state.uri, state) != null) {
+            // A window is already open and will publish this snapshot instead.
+            return;
+        }
+        if (delay == 0) {
+            publishDiagnostics(state.uri);
+        } else {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, analysisExecutor)
+                    .execute(() -> publishDiagnostics(state.uri));
+        }
+    }
+
+    /**
+     * Publish diagnostics (errors) of the pending snapshot of a document to the client, skipping
+     * them when they equal the diagnostics published last.
+     */
+    private void publishDiagnostics(String uri) {
+        synchronized (diagnosticsLock) {
+            DocumentState state = pendingDiagnostics.remove(uri);
+            if (state == null || false == analyses.containsKey(uri)) {
+                return;
+            }
+            publishDiagnostics(uri, state.version, computeDiagnostics(state));
+        }
+    }
+
+    private List<Diagnostic> computeDiagnostics(DocumentState state) {
         List<Diagnostic> diagnostics = new ArrayList<>();
+        for (ExpressionState expression : state.expressions) {
+            addDiagnostics(expression, state.lineIndex, diagnostics);
+        }
+        return diagnostics;
+    }
 
-        List<CalculatorAstAnalyzer.AstError> astErrors = state.analysis.errors();
+    public boolean isPullDiagnostics() {
+        return pullDiagnostics;
+    }
+
+    /**
+     * Whether diagnostics are pulled by the client instead of pushed after every analysis;
+     * set by {@link #initialize} from the client's capabilities.
+     */
+    public void setPullDiagnostics(boolean pullDiagnostics) {
+        this.pullDiagnostics = pullDiagnostics;
+    }
+
+    /**
+     * Diagnostics of the newest version of an open document for a {@code textDocument/diagnostic}
+     * request. The report is "unchanged", with no items, when {@code previousResultId} names a
+     * report with the same diagnostics; see {@link PulledDiagnostics}.
+     */
+    public CompletableFuture<DocumentDiagnosticReport> pullDiagnostics(String uri, String previousResultId) {
+        return getDocument(uri).thenApply(state -> {
+            if (state == null) {
+                return new DocumentDiagnosticReport(new RelatedFullDocumentDiagnosticReport(List.of()));
+            }
+            PulledDiagnostics pulled = pulledDiagnostics(state);
+            if (pulled.sameAs(previousResultId)) {
+                return new DocumentDiagnosticReport(new RelatedUnchangedDocumentDiagnosticReport(pulled.resultId));
+            }
+            RelatedFullDocumentDiagnosticReport report = new RelatedFullDocumentDiagnosticReport(pulled.items);
+            report.setResultId(pulled.resultId);
+            return new DocumentDiagnosticReport(report);
+        });
+    }
+
+    /**
+     * Diagnostics of every open document for a {@code workspace/diagnostic} request, with the
+     * documents whose previous result IDs are still current reported as unchanged.
+     */
+    public CompletableFuture<WorkspaceDiagnosticReport> pullWorkspaceDiagnostics(
+            List<PreviousResultId> previousResultIds) {
+        Map<String, String> previous = new HashMap<>();
+        if (previousResultIds != null) {
+            for (PreviousResultId resultId : previousResultIds) {
+                previous.put(resultId.getUri(), resultId.getValue());
+            }
+        }
+        List<CompletableFuture<WorkspaceDocumentDiagnosticReport>> reports = new ArrayList<>();
+        for (String uri : analyses.keySet()) {
+            reports.add(getDocument(uri).handle((state, failure) -> {
+                if (state == null) {
+                    // Closed, or not analyzed past the session limit.
+                    return null;
+                }
+                PulledDiagnostics pulled = pulledDiagnostics(state);
+                if (pulled.sameAs(previous.get(uri))) {
+                    return new WorkspaceDocumentDiagnosticReport(
+                            new WorkspaceUnchangedDocumentDiagnosticReport(pulled.resultId, uri, state.version));
+                }
+                WorkspaceFullDocumentDiagnosticReport report =
+                        new WorkspaceFullDocumentDiagnosticReport(pulled.items, uri, state.version);
+                report.setResultId(pulled.resultId);
+                return new WorkspaceDocumentDiagnosticReport(report);
+            }));
+        }
+        return CompletableFuture.allOf(reports.toArray(CompletableFuture[]::new)).handle((ignored, failure) -> {
+            List<WorkspaceDocumentDiagnosticReport> items = new ArrayList<>();
+            for (CompletableFuture<WorkspaceDocumentDiagnosticReport> report : reports) {
+                WorkspaceDocumentDiagnosticReport item = report.getNow(null);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return new WorkspaceDiagnosticReport(items);
+        });
+    }
+
+    private PulledDiagnostics pulledDiagnostics(DocumentState state) {
+        PulledDiagnostics pulled = pulledDiagnostics.get(state.uri);
+        if (pulled != null && pulled.state == state) {
+            return pulled;
+        }
+        pulled = new PulledDiagnostics(state, computeDiagnostics(state), pulled);
+        pulledDiagnostics.put(state.uri, pulled);
+        return pulled;
+    }
+
+    /**
+     * Diagnostics of one snapshot with their result ID: the document version, a colon, and the
+     * hash of the diagnostics. The report of the snapshot before is kept, so that a client still
+     * holding its result ID is told "unchanged" when the diagnostics are equal, and edits that
+     * leave the diagnostics as they were send none. Equal hashes alone do not make them equal.
+     */
+    private static final class PulledDiagnostics {
+        final DocumentState state;
+        final List<Diagnostic> items;
+        final String resultId;
+        private final String previousResultId;
+        private final List<Diagnostic> previousItems;
+
+        PulledDiagnostics(DocumentState state, List<Diagnostic> items, PulledDiagnostics previous) {
+            this.state = state;
+            this.items = items;
+            this.resultId = state.version + ":" + Integer.toHexString(items.hashCode());
+            this.previousResultId = previous == null ? null : previous.resultId;
+            this.previousItems = previous == null ? null : previous.items;
+        }
+
+        boolean sameAs(String resultId) {
+            if (resultId == null) {
+                return false;
+            }
+            return resultId.equals(this.resultId)
+                    || (resultId.equals(previousResultId) && items.equals(previousItems));
+        }
+    }
+
+    /**
+     * Publish unless equal to the diagnostics published last. Holds diagnosticsLock.
+     */
+    private void publishDiagnostics(String uri, int version, List<Diagnostic> diagnostics) {
+        List<Diagnostic> previous = publishedDiagnostics.put(uri, diagnostics);
+        if (diagnostics.equals(previous)) {
+            return;
+        }
+        client.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics, version));
+    }
+
+    private void addDiagnostics(ExpressionState expression, LineIndex lineIndex, List<Diagnostic> diagnostics) {
+        List<CalculatorAstAnalyzer.AstError> astErrors = expression.analysis.errors();
         for (CalculatorAstAnalyzer.AstError astError : astErrors) {
             Diagnostic diagnostic = new Diagnostic();
             diagnostic.setRange(astError.range());
@@ -185,20 +969,19 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
             diagnostics.add(diagnostic);
         }
 
-        ParseResult result = state.parseResult;
-        String content = state.content;
-        String uri = state.uri;
+        ParseResult result = expression.parseResult;
+        if (false == astErrors.isEmpty()) {
+            // Syntax errors were already reported one by one from the recovered parse
+            return;
+        }
 
         if (result.consumedLength < result.totalLength) {
             // Part of the input is invalid
-            int errorStart = result.consumedLength;
-            int errorEnd = result.totalLength;
-
-            Position startPos = offsetToPosition(content, errorStart);
-            Position endPos = offsetToPosition(content, errorEnd);
+            int errorStart = expression.startOffset + result.consumedLength;
+            int errorEnd = expression.startOffset + result.totalLength;
 
             Diagnostic diagnostic = new Diagnostic();
-            diagnostic.setRange(new Range(startPos, endPos));
+            diagnostic.setRange(lineIndex.toRange(errorStart, errorEnd));
             diagnostic.setSeverity(DiagnosticSeverity.Error);
             diagnostic.setMessage("Invalid expression: unexpected characters" + createParseFailureHint(result));
             diagnostic.setSource("calculator");
@@ -206,17 +989,12 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
         } else if (false == result.succeeded && result.totalLength > 0) {
             // Entire input is invalid
             Diagnostic diagnostic = new Diagnostic();
-            diagnostic.setRange(new Range(
-                new Position(0, 0),
-                offsetToPosition(content, content.length())
-            ));
+            diagnostic.setRange(lineIndex.toRange(expression.startOffset, expression.endOffset));
             diagnostic.setSeverity(DiagnosticSeverity.Error);
             diagnostic.setMessage("Invalid expression" + createParseFailureHint(result));
             diagnostic.setSource("calculator");
             diagnostics.add(diagnostic);
         }
-
-        client.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics));
     }
 
     
@@ -321,38 +1099,140 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
     }
 
     /**
-     * Convert character offset to LSP Position.
+     * One scheduled analysis of a document version.
      */
-    private Position offsetToPosition(String content, int offset) {
-        int line = 0;
-        int column = 0;
-        for (int i = 0; i < offset && i < content.length(); i++) {
-            if (content.charAt(i) == '\n') {
-                line++;
-                column = 0;
-            } else {
-                column++;
-            }
+    private static final class Analysis {
+        final String uri;
+        final int version;
+        /** Edited in place by later changes, on the message thread only. */
+        final PieceTable buffer;
+        /** Text of this version, copied into a string only when it is analyzed. */
+        final PieceTable.Snapshot text;
+        /** Cancelled once a newer version is scheduled or the document is closed. */
+        final CompletableFuture<DocumentState> result = new CompletableFuture<>();
+
+        Analysis(String uri, int version, PieceTable buffer, PieceTable.Snapshot text) {
+            this.uri = uri;
+            this.version = version;
+            this.buffer = buffer;
+            this.text = text;
         }
-        return new Position(line, column);
     }
 
     /**
-     * Document state holder.
+     * Immutable snapshot of one analyzed version of a document; safe to read from any thread.
      */
     public static class DocumentState {
         public final String uri;
+        /** Version from the client's notifications, or counted up by {@link #parseDocument}. */
+        public final int version;
         public final String content;
+        public final LineIndex lineIndex;
+        /**
+         * Tokens of {@link #content}, re-lexed from the previous version around the edit.
+         */
+        public final TokenStream tokens;
+        /**
+         * Expressions in document order: the whole text in {@link DocumentMode#WHOLE_DOCUMENT},
+         * one entry per non-blank line in {@link DocumentMode#LINES}.
+         */
+        public final List<ExpressionState> expressions;
+        /**
+         * Document-wide result. In {@link DocumentMode#LINES} this aggregates the expressions:
+         * {@code consumedLength} ends at the first invalid character and {@code parsed} is null.
+         */
         public final ParseResult parseResult;
         public final CalculatorAstAnalyzer.AnalysisResult analysis;
+        /**
+         * Line-mode results keyed by expression text, in line-local coordinates.
+         */
+        final Map<String, ExpressionState> lineCache;
+        private CalculatorSemanticTokens semanticTokens;
 
-        public DocumentState(String uri, String content, ParseResult parseResult,
-                CalculatorAstAnalyzer.AnalysisResult analysis) {
+        public DocumentState(String uri, int version, String content, LineIndex lineIndex,
+                TokenStream tokens, List<ExpressionState> expressions, Map<String, ExpressionState> lineCache,
+                ParseResult parseResult, CalculatorAstAnalyzer.AnalysisResult analysis) {
             this.uri = uri;
+            this.version = version;
             this.content = content;
+            this.lineIndex = lineIndex;
+            this.tokens = tokens;
+            this.expressions = expressions;
+            this.lineCache = lineCache;
+            this.parseResult = parseResult;
+            this.analysis = analysis;
+        }
+
+        /**
+         * Semantic tokens of this version, encoded on first use.
+         */
+        public synchronized CalculatorSemanticTokens semanticTokens() {
+            if (semanticTokens == null) {
+                semanticTokens = CalculatorSemanticTokens.of(this);
+            }
+            return semanticTokens;
+        }
+
+        /**
+         * Find the expression whose text covers the offset, or null.
+         */
+        public ExpressionState expressionAt(int offset) {
+            int low = 0;
+            int high = expressions.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                ExpressionState expression = expressions.get(middle);
+                if (offset < expression.startOffset) {
+                    high = middle - 1;
+                } else if (offset > expression.endOffset) {
+                    low = middle + 1;
+                } else {
+                    return expression;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One independently parsed expression of a document.
+     */
+    public static class ExpressionState {
+        public final int line;
+        public final int startOffset;
+        public final int endOffset;
+        public final ParseResult parseResult;
+        public final CalculatorAstAnalyzer.AnalysisResult analysis;
+
+        public ExpressionState(int line, int startOffset, int endOffset, ParseResult parseResult,
+                CalculatorAstAnalyzer.AnalysisResult analysis) {
+            this.line = line;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
             this.parseResult = parseResult;
             this.analysis = analysis;
         }
+
+        /**
+         * Place a line-local result at a document position, shifting its error ranges.
+         * AST offsets stay relative to {@link #startOffset}.
+         */
+        ExpressionState moveTo(int targetLine, int targetOffset, int targetColumn) {
+            List<CalculatorAstAnalyzer.AstError> errors = analysis.errors();
+            List<CalculatorAstAnalyzer.AstError> moved = new ArrayList<>(errors.size());
+            for (CalculatorAstAnalyzer.AstError error : errors) {
+                Range range = error.range();
+                moved.add(new CalculatorAstAnalyzer.AstError(new Range(
+                        new Position(targetLine, targetColumn + range.getStart().getCharacter()),
+                        new Position(targetLine, targetColumn + range.getEnd().getCharacter())),
+                        error.message()));
+            }
+            CalculatorAstAnalyzer.AnalysisResult movedAnalysis =
+                    new CalculatorAstAnalyzer.AnalysisResult(moved, analysis.astRoot(), analysis.ast(),
+                            analysis.value(), analysis.exactValue(), analysis.subexpressions());
+            return new ExpressionState(targetLine, targetOffset, targetOffset + parseResult.totalLength,
+                    parseResult, movedAnalysis);
+        }
     }
 
     /**
@@ -363,12 +1243,22 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
         public final int consumedLength;
         public final int totalLength;
         public final Parsed parsed;
+        /**
+         * AST built directly by the parser, or null when it has to be mapped from {@link #parsed}.
+         */
+        public final CalculatorAstNode ast;
 
         public ParseResult(boolean succeeded, int consumedLength, int totalLength, Parsed parsed) {
+            this(succeeded, consumedLength, totalLength, parsed, null);
+        }
+
+        public ParseResult(boolean succeeded, int consumedLength, int totalLength, Parsed parsed,
+                CalculatorAstNode ast) {
             this.succeeded = succeeded;
             this.consumedLength = consumedLength;
             this.totalLength = totalLength;
             this.parsed = parsed;
+            this.ast = ast;
         }
 
         public boolean isFullyValid() {
@@ -391,19 +1281,34 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
         public void didOpen(DidOpenTextDocumentParams params) {
             String uri = params.getTextDocument().getUri();
             String content = params.getTextDocument().getText();
-            server.parseDocument(uri, content);
+            server.scheduleDocument(uri, params.getTextDocument().getVersion(), new PieceTable(content));
         }
 
         @Override
         public void didChange(DidChangeTextDocumentParams params) {
             String uri = params.getTextDocument().getUri();
-            String content = params.getContentChanges().get(0).getText();
-            server.parseDocument(uri, content);
+            PieceTable buffer = server.getBuffer(uri);
+            if (buffer == null) {
+                buffer = new PieceTable("");
+            }
+
+            // Changes are applied in order; each range refers to the text after the previous change.
+            for (TextDocumentContentChangeEvent change : params.getContentChanges()) {
+                Range range = change.getRange();
+                if (range == null) {
+                    buffer = new PieceTable(change.getText());
+                    continue;
+                }
+                int start = buffer.offsetAt(range.getStart().getLine(), range.getStart().getCharacter());
+                int end = buffer.offsetAt(range.getEnd().getLine(), range.getEnd().getCharacter());
+                buffer.replace(start, end, change.getText());
+            }
+            server.scheduleDocument(uri, params.getTextDocument().getVersion(), buffer);
         }
 
         @Override
         public void didClose(DidCloseTextDocumentParams params) {
-            server.getDocuments().remove(params.getTextDocument().getUri());
+            server.closeDocument(params.getTextDocument().getUri());
         }
 
         @Override
@@ -415,63 +1320,91 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
         public CompletableFuture<Hover> hover(HoverParams params) {
             String uri = params.getTextDocument().getUri();
             Position position = params.getPosition();
+            return server.getDocument(uri).thenApply(state -> hover(state, position));
+        }
 
-            DocumentState state = server.getDocuments().get(uri);
+        private Hover hover(DocumentState state, Position position) {
             if (state == null) {
-                return CompletableFuture.completedFuture(null);
+                return null;
+            }
+
+            int offset = state.lineIndex.toOffset(position);
+            ExpressionState expression = state.expressionAt(offset);
+            if (expression == null) {
+                return null;
             }
 
+            // An error under the cursor, else the value of the innermost subexpression there,
+            // else that of the whole expression; offsets in the analysis are expression-local.
             String hoverText = null;
-            for (CalculatorAstAnalyzer.AstError error : state.analysis.errors()) {
-                if (isPositionInRange(position, error.range())) {
+            Subexpressions subexpressions = expression.analysis.subexpressions();
+            if (subexpressions != null) {
+                int local = offset - expression.startOffset;
+                CalculatorAstAnalyzer.AstError error = subexpressions.errorAt(local);
+                if (error != null) {
                     hoverText = error.message();
-                    break;
+                } else {
+                    String value = subexpressions.valueAt(local);
+                    hoverText = value == null ? null : "= " + value;
+                }
+            } else {
+                for (CalculatorAstAnalyzer.AstError error : expression.analysis.errors()) {
+                    if (isPositionInRange(position, error.range())) {
+                        hoverText = error.message();
+                        break;
+                    }
                 }
             }
 
-            if (hoverText == null && state.analysis.hasValue()) {
-                hoverText = "= " + state.analysis.value();
+            if (hoverText == null && expression.analysis.hasValue()) {
+                hoverText = "= " + expression.analysis.displayValue();
             }
 
             if (hoverText == null) {
-                return CompletableFuture.completedFuture(null);
+                return null;
             }
 
             MarkupContent content = new MarkupContent();
             content.setKind("plaintext");
             content.setValue(hoverText);
-            Hover hover = new Hover(content);
-            return CompletableFuture.completedFuture(hover);
+            return new Hover(content);
         }
 
         @Override
         public CompletableFuture<List<? extends CodeLens>> codeLens(CodeLensParams params) {
             String uri = params.getTextDocument().getUri();
-            DocumentState state = server.getDocuments().get(uri);
+            return server.getDocument(uri).thenApply(this::codeLenses);
+        }
+
+        private List<? extends CodeLens> codeLenses(DocumentState state) {
             if (state == null) {
-                return CompletableFuture.completedFuture(Collections.emptyList());
+                return Collections.emptyList();
             }
 
             if (state.content.isEmpty()) {
-                return CompletableFuture.completedFuture(Collections.emptyList());
+                return Collections.emptyList();
             }
 
-            String title = null;
-            if (false == state.analysis.errors().isEmpty()) {
-                title = "Error: " + state.analysis.errors().get(0).message();
-            } else if (state.analysis.hasValue()) {
-                title = "= " + state.analysis.value();
-            }
+            List<CodeLens> lenses = new ArrayList<>();
+            for (ExpressionState expression : state.expressions) {
+                String title = null;
+                if (false == expression.analysis.errors().isEmpty()) {
+                    title = "Error: " + expression.analysis.errors().get(0).message();
+                } else if (expression.analysis.hasValue()) {
+                    title = "= " + expression.analysis.displayValue();
+                }
 
-            if (title == null) {
-                return CompletableFuture.completedFuture(Collections.emptyList());
-            }
+                if (title == null) {
+                    continue;
+                }
 
-            Range range = new Range(new Position(0, 0), new Position(0, 0));
-            Command command = new Command(title, "calculator.showResult");
-            CodeLens lens = new CodeLens(range);
-            lens.setCommand(command);
-            return CompletableFuture.completedFuture(List.of(lens));
+                Position lineStart = new Position(expression.line, 0);
+                Command command = new Command(title, "calculator.showResult");
+                CodeLens lens = new CodeLens(new Range(lineStart, lineStart));
+                lens.setCommand(command);
+                lenses.add(lens);
+            }
+            return lenses;
         }
 
         @Override
@@ -481,122 +1414,75 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
             String uri = params.getTextDocument().getUri();
             Position position = params.getPosition();
 
-            DocumentState state = server.getDocuments().get(uri);
-            if (state == null) {
+            // Completion needs only the word left of the cursor, so it reads that from the newest
+            // buffer instead of waiting for the analysis or copying the whole text.
+            PieceTable buffer = server.getBuffer(uri);
+            if (buffer == null || position.getLine() >= buffer.lineCount()) {
                 return CompletableFuture.completedFuture(Either.forLeft(Collections.emptyList()));
             }
 
-            List<CompletionItem> items = getCompletionItems(state.content, position);
+            int offset = buffer.offsetAt(position.getLine(), position.getCharacter());
+            String word = buffer.textBefore(offset, server.suggestableParser::isWordCharacter);
+            List<CompletionItem> items = server.suggestableParser.completeWord(word);
             return CompletableFuture.completedFuture(Either.forLeft(items));
         }
 
-        /**
-         * Get completion items based on current position.
-         */
-        private List<CompletionItem> getCompletionItems(String content, Position position) {
-            List<CompletionItem> items = new ArrayList<>();
-
-            // Get the text before cursor
-            int offset = positionToOffset(content, position);
-            String textBefore = content.substring(0, offset);
-
-            // Find the start of current word
-            int wordStart = offset;
-            while (wordStart > 0 && Character.isLetter(content.charAt(wordStart - 1))) {
-                wordStart--;
-            }
-            String currentWord = content.substring(wordStart, offset).toLowerCase();
-
-            // Function completions
-            List<CalculatorParsers.FunctionCompletion> functions =
-                    CalculatorParsers.getFunctionCompletions();
-
-            for (CalculatorParsers.FunctionCompletion func : functions) {
-                if (func.name().startsWith(currentWord)) {
-                    CompletionItem item = new CompletionItem(func.name());
-                    item.setKind(CompletionItemKind.Function);
-                    item.setDetail(func.description());
-                    item.setInsertText(func.insertText());
-                    items.add(item);
-                }
-            }
-
-            return items;
+        @Override
+        public CompletableFuture<CompletionItem> resolveCompletionItem(CompletionItem unresolved) {
+            return CompletableFuture.completedFuture(server.suggestableParser.resolve(unresolved));
         }
 
-        /**
-         * Convert LSP Position to character offset.
-         */
-        private int positionToOffset(String content, Position position) {
-            int offset = 0;
-            int line = 0;
-            int column = 0;
-
-            while (offset < content.length()) {
-                if (line == position.getLine() && column == position.getCharacter()) {
-                    return offset;
-                }
-                if (content.charAt(offset) == '\n') {
-                    line++;
-                    column = 0;
-                } else {
-                    column++;
+        @Override
+        public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {
+            String uri = params.getTextDocument().getUri();
+            return server.getDocument(uri).thenApply(state -> {
+                if (state == null) {
+                    return new SemanticTokens(Collections.emptyList());
                 }
-                offset++;
-            }
+                CalculatorSemanticTokens tokens = state.semanticTokens();
+                server.sentSemanticTokens.put(uri, tokens);
+                return tokens.toSemanticTokens();
+            });
+        }
 
-            return offset;
+        @Override
+        public CompletableFuture<DocumentDiagnosticReport> diagnostic(DocumentDiagnosticParams params) {
+            return server.pullDiagnostics(params.getTextDocument().getUri(), params.getPreviousResultId());
         }
 
+        /**
+         * Tokens of the visible range only; the whole document is encoded when the client asks
+         * for it with a full request.
+         */
         @Override
-        public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {
+        public CompletableFuture<SemanticTokens> semanticTokensRange(SemanticTokensRangeParams params) {
             String uri = params.getTextDocument().getUri();
-            DocumentState state = server.getDocuments().get(uri);
-
-            if (state == null) {
-                return CompletableFuture.completedFuture(new SemanticTokens(Collections.emptyList()));
-            }
-
-            List<Integer> data = buildSemanticTokens(state.content, state.parseResult);
-            return CompletableFuture.completedFuture(new SemanticTokens(data));
+            return server.getDocument(uri).thenApply(state -> state == null
+                    ? new SemanticTokens(Collections.emptyList())
+                    : CalculatorSemanticTokens.range(state,
+                            state.lineIndex.toOffset(params.getRange().getStart()),
+                            state.lineIndex.toOffset(params.getRange().getEnd())));
         }
 
         /**
-         * Build semantic tokens data.
-         * Format: [deltaLine, deltaStart, length, tokenType, tokenModifiers]
-         * tokenType: 0=valid, 1=invalid
+         * Edits from the tokens last sent for the document, if the client still has those;
+         * otherwise all tokens.
          */
-        private List<Integer> buildSemanticTokens(String content, ParseResult result) {
-            List<Integer> data = new ArrayList<>();
-
-            if (content.isEmpty()) {
-                return data;
-            }
-
-            int validEnd = result.consumedLength;
-
-            // Valid portion (green)
-            if (validEnd > 0) {
-                // deltaLine=0, deltaStart=0, length=validEnd, tokenType=0 (valid), modifiers=0
-                data.add(0);
-                data.add(0);
-                data.add(validEnd);
-                data.add(0); // valid
-                data.add(0);
-            }
-
-            // Invalid portion (red)
-            if (validEnd < content.length()) {
-                int invalidLength = content.length() - validEnd;
-                // deltaLine=0, deltaStart=validEnd (relative to previous), length, tokenType=1 (invalid)
-                data.add(0);
-                data.add(validEnd);
-                data.add(invalidLength);
-                data.add(1); // invalid
-                data.add(0);
-            }
-
-            return data;
+        @Override
+        public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
+                SemanticTokensDeltaParams params) {
+            String uri = params.getTextDocument().getUri();
+            return server.getDocument(uri).thenApply(state -> {
+                if (state == null) {
+                    return Either.forLeft(new SemanticTokens(Collections.emptyList()));
+                }
+                CalculatorSemanticTokens tokens = state.semanticTokens();
+                CalculatorSemanticTokens previous = server.sentSemanticTokens.put(uri, tokens);
+                if (previous != null && false == previous.getResultId().equals(params.getPreviousResultId())) {
+                    previous = null;
+                }
+                return tokens.deltaFrom(previous);
+            });
         }
     }
 
@@ -604,6 +1490,17 @@ public class CalculatorLanguageServer implements LanguageServer, LanguageClientA
      * Workspace service implementation.
      */
     public static class CalculatorWorkspaceService implements WorkspaceService {
+        private final CalculatorLanguageServer server;
+
+        public CalculatorWorkspaceService(CalculatorLanguageServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public CompletableFuture<WorkspaceDiagnosticReport> diagnostic(WorkspaceDiagnosticParams params) {
+            return server.pullWorkspaceDiagnostics(params.getPreviousResultIds());
+        }
+
         @Override
         public void didChangeConfiguration(org.eclipse.lsp4j.DidChangeConfigurationParams params) {
         }
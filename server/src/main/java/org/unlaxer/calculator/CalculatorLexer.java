@@ -0,0 +1,150 @@
+package org.unlaxer.calculator;
+
+/**
+ * Splits text into a {@link TokenStream} in one pass over its characters.
+ *
+ * <p>Token boundaries follow the character classes of {@link CalculatorParsers}: digits and the
+ * decimal point of {@code NumberParser}, the single-character operators and parentheses, and the
+ * symbols {@code UnknownOperatorParser} accepts. The lexer looks ahead but never behind, so the
+ * tokens from a given offset depend only on the text from that offset on; {@link #relex} relies
+ * on this to re-lex only the window around an edit.</p>
+ */
+public final class CalculatorLexer {
+
+    private static final String[] FUNCTION_NAMES = CalculatorParsers.getFunctionCompletions()
+            .stream()
+            .map(CalculatorParsers.FunctionCompletion::name)
+            .toArray(String[]::new);
+
+    private CalculatorLexer() {
+    }
+
+    public static TokenStream lex(CharSequence text) {
+        TokenStream tokens = new TokenStream(text.length() / 2);
+        int position = 0;
+        while (position < text.length()) {
+            position = lexToken(text, position, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * Tokens of {@code text}, re-lexing only around the region in which it differs from
+     * {@code previousText}, whose tokens are {@code previous}.
+     */
+    public static TokenStream relex(TokenStream previous, CharSequence previousText, CharSequence text) {
+        int prefix = 0;
+        int limit = Math.min(previousText.length(), text.length());
+        while (prefix < limit && previousText.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < limit - prefix
+                && previousText.charAt(previousText.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        if (prefix == previousText.length() && prefix == text.length()) {
+            return previous;
+        }
+        return relex(previous, text, prefix, previousText.length() - suffix, text.length() - suffix);
+    }
+
+    /**
+     * Tokens after {@code [start, previousEnd)} of the previous text was replaced by
+     * {@code [start, end)} of {@code text}.
+     */
+    static TokenStream relex(TokenStream previous, CharSequence text, int start, int previousEnd, int end) {
+        int shift = end - previousEnd;
+        TokenStream tokens = new TokenStream(previous.size() + Math.max(shift, 0));
+
+        // A number looks two characters past its end ("1." + "5"), so the tokens ending
+        // up to two characters before the edit are re-lexed too.
+        int first = previous.indexAt(Math.max(start - 2, 0));
+        tokens.addAll(previous, 0, first, 0);
+
+        int position = first < previous.size() ? previous.start(first) : 0;
+        int resume = first;
+        while (position < text.length()) {
+            position = lexToken(text, position, tokens);
+            if (position < end) {
+                continue;
+            }
+            // Past the edit the old tokens are valid again once a boundary lines up with one of them.
+            while (resume < previous.size() && previous.start(resume) + shift < position) {
+                resume++;
+            }
+            if (resume < previous.size() && previous.start(resume) + shift == position
+                    && previous.start(resume) >= previousEnd) {
+                tokens.addAll(previous, resume, previous.size(), shift);
+                return tokens;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Lex one token at {@code position}, append it and return its end.
+     */
+    private static int lexToken(CharSequence text, int position, TokenStream tokens) {
+        char current = text.charAt(position);
+        int end = position + 1;
+        int kind;
+        if (CalculatorPrattParser.isDigit(current)) {
+            end = skipDigits(text, end);
+            if (end + 1 < text.length() && text.charAt(end) == '.' && CalculatorPrattParser.isDigit(text.charAt(end + 1))) {
+                end = skipDigits(text, end + 1);
+            }
+            kind = TokenStream.NUMBER;
+        } else if (Character.isLetter(current)) {
+            while (end < text.length() && Character.isLetter(text.charAt(end))) {
+                end++;
+            }
+            kind = isFunctionName(text, position, end) ? TokenStream.FUNCTION : TokenStream.IDENTIFIER;
+        } else if (current == '\n') {
+            kind = TokenStream.NEWLINE;
+        } else if (Character.isWhitespace(current)) {
+            while (end < text.length() && text.charAt(end) != '\n' && Character.isWhitespace(text.charAt(end))) {
+                end++;
+            }
+            kind = TokenStream.WHITESPACE;
+        } else {
+            kind = switch (current) {
+                case '+' -> TokenStream.PLUS;
+                case '-' -> TokenStream.MINUS;
+                case '*' -> TokenStream.STAR;
+                case '/' -> TokenStream.SLASH;
+                case '(' -> TokenStream.LEFT_PAREN;
+                case ')' -> TokenStream.RIGHT_PAREN;
+                case '.' -> TokenStream.INVALID;
+                default -> Character.isLetterOrDigit(current) ? TokenStream.INVALID : TokenStream.UNKNOWN_OPERATOR;
+            };
+        }
+        tokens.add(kind, position, end - position);
+        return end;
+    }
+
+    private static int skipDigits(CharSequence text, int position) {
+        while (position < text.length() && CalculatorPrattParser.isDigit(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isFunctionName(CharSequence text, int start, int end) {
+        for (String name : FUNCTION_NAMES) {
+            if (name.length() == end - start && regionMatches(text, start, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(CharSequence text, int start, String word) {
+        for (int index = 0; index < word.length(); index++) {
+            if (text.charAt(start + index) != word.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
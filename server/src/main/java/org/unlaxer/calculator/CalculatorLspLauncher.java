@@ -1,11 +1,12 @@
 package org.unlaxer.calculator;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.concurrent.Future;
 
 import org.eclipse.lsp4j.jsonrpc.Launcher;
@@ -17,14 +18,46 @@ import org.eclipse.lsp4j.services.LanguageClient;
  *
  * Usage:
  *   - Standard I/O mode (default): java CalculatorLspLauncher
- *   - Socket mode: java CalculatorLspLauncher --socket <port>
+ *   - Socket mode: java CalculatorLspLauncher --socket <port> [--max-sessions n] [--idle-timeout seconds]
+ *     [--multi-tenant] [--session-limit chars]
+ *     serves many clients at once on virtual threads (see {@link CalculatorSocketServer}); with
+ *     --multi-tenant the sessions share their analyses
+ *   - Batch mode: java CalculatorLspLauncher --batch [--parser combinator|pratt] [--threads n] [file...]
+ *     evaluates one expression per line without an LSP session (see {@link CalculatorBatch})
  */
 public class CalculatorLspLauncher {
 
     public static void main(String[] args) throws Exception {
-        if (args.length >= 2 && "--socket".equals(args[0])) {
+        if (args.length >= 1 && "--batch".equals(args[0])) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            System.exit(CalculatorBatch.run(Arrays.copyOfRange(args, 1, args.length), System.in, out, System.err));
+        } else if (args.length >= 2 && "--socket".equals(args[0])) {
             int port = Integer.parseInt(args[1]);
-            startSocketMode(port);
+            int maxSessions = CalculatorSocketServer.DEFAULT_MAX_SESSIONS;
+            Duration idleTimeout = CalculatorSocketServer.DEFAULT_IDLE_TIMEOUT;
+            boolean multiTenant = false;
+            long sessionLimit = CalculatorSocketServer.DEFAULT_MAX_SESSION_WEIGHT;
+            for (int index = 2; index < args.length; index++) {
+                if ("--multi-tenant".equals(args[index])) {
+                    multiTenant = true;
+                } else if (index + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for socket option: " + args[index]);
+                } else if ("--max-sessions".equals(args[index])) {
+                    maxSessions = Integer.parseInt(args[++index]);
+                } else if ("--idle-timeout".equals(args[index])) {
+                    idleTimeout = Duration.ofSeconds(Long.parseLong(args[++index]));
+                } else if ("--session-limit".equals(args[index])) {
+                    sessionLimit = Long.parseLong(args[++index]);
+                } else {
+                    throw new IllegalArgumentException("Unknown socket option: " + args[index]);
+                }
+            }
+            CalculatorSocketServer socketServer = new CalculatorSocketServer(maxSessions, idleTimeout);
+            if (multiTenant) {
+                socketServer.setSharedCaches(new SharedAnalysisCaches());
+            }
+            socketServer.setMaxSessionWeight(sessionLimit);
+            startSocketMode(port, socketServer);
         } else {
             startStdioMode();
         }
@@ -56,50 +89,16 @@ public class CalculatorLspLauncher {
 
     /**
      * Start LSP server on a TCP socket.
-     * Useful for debugging and testing.
+     * Useful for debugging and testing, and for sharing one server between many editors.
      */
-    private static void startSocketMode(int port) throws Exception {
+    private static void startSocketMode(int port, CalculatorSocketServer socketServer) throws Exception {
         System.err.println("Calculator LSP Server starting on port " + port + "...");
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.err.println("Waiting for client connection on port " + port + "...");
-
-            ExecutorService threadPool = Executors.newCachedThreadPool();
-
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.err.println("Client connected from " + socket.getRemoteSocketAddress());
-
-                threadPool.submit(() -> {
-                    try {
-                        handleClient(socket);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                });
-            }
+            System.err.println("Waiting for client connections on port " + port + " (at most "
+                    + socketServer.getMaxSessions() + " sessions, idle timeout " + socketServer.getIdleTimeout()
+                    + (socketServer.getSharedCaches() != null ? ", multi-tenant" : "") + ")...");
+            socketServer.serve(serverSocket);
         }
     }
-
-    private static void handleClient(Socket socket) throws Exception {
-        InputStream in = socket.getInputStream();
-        OutputStream out = socket.getOutputStream();
-
-        CalculatorLanguageServer server = new CalculatorLanguageServer();
-
-        Launcher<LanguageClient> launcher = LSPLauncher.createServerLauncher(
-            server,
-            in,
-            out
-        );
-
-        LanguageClient client = launcher.getRemoteProxy();
-        server.connect(client);
-
-        Future<?> startListening = launcher.startListening();
-        System.err.println("Client session started.");
-
-        startListening.get();
-        System.err.println("Client session ended.");
-    }
 }
@@ -30,10 +30,11 @@ import org.unlaxer.parser.posix.DigitParser;
  * Grammar:
  * expr     = term (('+' | '-') term)*
  * term     = factor (('*' | '/') factor)*
- * factor   = unary | number | '(' expr ')' | function
+ * factor   = function | unary | number | '(' expr ')' | variable
  * unary    = ('+' | '-') factor
  * function = ('sin' | 'sqrt' | 'cos' | 'tan' | 'log') '(' expr ')'
  * number   = digit+ ('.' digit+)?
+ * variable = letter+
  */
 public class CalculatorParsers {
 
@@ -43,15 +44,26 @@ public class CalculatorParsers {
      * - the grammar (FunctionNameParser)
      * - LSP completion (CalculatorSuggestableParser)
      * - documentation/examples
+     *
+     * Built once and immutable, so every session of a multi-tenant server reads the same list.
      */
     public static List<FunctionCompletion> getFunctionCompletions() {
-        List<Class<? extends FunctionSuggestable>> parserClasses = getFunctionParserClasses();
-        List<FunctionCompletion> completions = new ArrayList<>();
-        for (Class<? extends FunctionSuggestable> parserClass : parserClasses) {
-            FunctionSuggestable parser = Parser.get(parserClass);
-            completions.add(parser.getFunctionCompletion());
+        return FunctionRegistry.COMPLETIONS;
+    }
+
+    /** Holder whose initialization the JVM runs once, whichever thread asks first. */
+    private static final class FunctionRegistry {
+
+        static final List<FunctionCompletion> COMPLETIONS = createFunctionCompletions();
+
+        private static List<FunctionCompletion> createFunctionCompletions() {
+            List<FunctionCompletion> completions = new ArrayList<>();
+            for (Class<? extends FunctionSuggestable> parserClass : getFunctionParserClasses()) {
+                FunctionSuggestable parser = Parser.get(parserClass);
+                completions.add(parser.getFunctionCompletion());
+            }
+            return List.copyOf(completions);
         }
-        return List.copyOf(completions);
     }
 
     public record FunctionCompletion(String name, String description, String insertText) {}
@@ -132,6 +144,7 @@ public class CalculatorParsers {
     public static final Name TERM = Name.of("term");
     public static final Name FACTOR = Name.of("factor");
     public static final Name NUMBER = Name.of("number");
+    public static final Name VARIABLE = Name.of("variable");
     public static final Name FUNCTION = Name.of("function");
     public static final Name FUNCTION_NAME = Name.of("functionName");
     public static final Name OPERATOR = Name.of("operator");
@@ -196,6 +209,36 @@ public class CalculatorParsers {
         }
     }
 
+    /**
+     * Letter parser (accepts what {@link Character#isLetter(char)} accepts).
+     */
+    public static class LetterParser extends SingleCharacterParser {
+        @Override
+        public boolean isMatch(char target) {
+            return Character.isLetter(target);
+        }
+    }
+
+    /**
+     * Variable parser: letter+
+     *
+     * Tried after function, so a function name only becomes a variable when no '(' follows it;
+     * evaluation reports that case.
+     */
+    public static class VariableParser extends LazyChain {
+        @Override
+        public Parsers getLazyParsers() {
+            return new Parsers(
+                new OneOrMore(LetterParser.class)
+            );
+        }
+
+        @Override
+        public Optional<RecursiveMode> getNotAstNodeSpecifier() {
+            return Optional.empty();
+        }
+    }
+
     /**
      * Function name parser: 'sin' | 'sqrt' | 'cos' | 'tan' | 'log'
      */
@@ -280,7 +323,7 @@ public class CalculatorParsers {
     }
 
     /**
-     * Factor parser: function | unary | number | '(' expr ')'
+     * Factor parser: function | unary | number | '(' expr ')' | variable
      */
     public static class FactorParser extends LazyChoice {
         @Override
@@ -289,7 +332,8 @@ public class CalculatorParsers {
                 Parser.get(FunctionParser.class),
                 Parser.get(UnaryParser.class),
                 Parser.get(NumberParser.class),
-                Parser.get(ParenExprParser.class)
+                Parser.get(ParenExprParser.class),
+                Parser.get(VariableParser.class)
             );
         }
 
@@ -372,8 +416,17 @@ public class CalculatorParsers {
 
     /**
      * Get the root parser for calculator expressions.
+     *
+     * <p>The parser graph is built once and holds no parse state, which lives in each parse's
+     * context, so all sessions and threads parse with the same graph.</p>
      */
     public static Parser getRootParser() {
-        return Parser.get(ExprParser.class);
+        return RootParser.INSTANCE;
+    }
+
+    /** Holder whose initialization the JVM runs once, whichever thread asks first. */
+    private static final class RootParser {
+
+        static final Parser INSTANCE = Parser.get(ExprParser.class);
     }
 }
@@ -0,0 +1,246 @@
+package org.unlaxer.calculator;
+
+/**
+ * Hand-written single-pass parser for the calculator grammar.
+ *
+ * <p>Accepts exactly the language of {@link CalculatorParsers} with the same ordered-choice
+ * semantics, including how far a partially valid input is consumed, and builds the same
+ * {@link CalculatorAstNode} tree the combinator path maps to. It reads the {@link TokenStream}
+ * of {@link CalculatorLexer} rather than characters. Binary operators are parsed by
+ * precedence climbing:</p>
+ * <ul>
+ *   <li>precedence 1: {@code +}, {@code -} and any unknown operator symbol (see
+ *       {@link CalculatorParsers.UnknownOperatorParser}); evaluation reports the latter</li>
+ *   <li>precedence 2: {@code *}, {@code /}</li>
+ * </ul>
+ * <p>Factors are told apart by their first token, so no alternative is ever re-scanned.</p>
+ */
+public final class CalculatorPrattParser {
+
+    static final int ADDITIVE = 1;
+    static final int MULTIPLICATIVE = 2;
+
+    private static final String[] FUNCTION_NAMES = CalculatorParsers.getFunctionCompletions()
+            .stream()
+            .map(CalculatorParsers.FunctionCompletion::name)
+            .toArray(String[]::new);
+
+    private final TokenStream tokens;
+    private final CharSequence text;
+    /**
+     * Index of the next token.
+     */
+    private int position;
+    /**
+     * Token index of an operator whose right operand is known not to parse.
+     * Every enclosing precedence level would retry it at the same token, so they stop there instead.
+     */
+    private int failedOperator = -1;
+
+    private CalculatorPrattParser(TokenStream tokens, CharSequence text) {
+        this.tokens = tokens;
+        this.text = text;
+    }
+
+    /**
+     * Parse the longest valid expression prefix of {@code text}.
+     */
+    public static CalculatorLanguageServer.ParseResult parse(CharSequence text) {
+        return parse(CalculatorLexer.lex(text), text);
+    }
+
+    /**
+     * Parse already lexed text.
+     *
+     * @param tokens tokens of {@code text}
+     */
+    public static CalculatorLanguageServer.ParseResult parse(TokenStream tokens, CharSequence text) {
+        CalculatorPrattParser parser = new CalculatorPrattParser(tokens, text);
+        CalculatorAstNode root = parser.parseExpression(0);
+        if (root == null) {
+            return new CalculatorLanguageServer.ParseResult(false, 0, text.length(), null, null);
+        }
+        return new CalculatorLanguageServer.ParseResult(true, parser.offset(), text.length(), null, root);
+    }
+
+    private CalculatorAstNode parseExpression(int minimumPrecedence) {
+        CalculatorAstNode left = parseFactor();
+        if (left == null) {
+            return null;
+        }
+
+        while (position < tokens.size() && position != failedOperator) {
+            int precedence = infixPrecedence(tokens.kind(position));
+            if (precedence == 0 || precedence < minimumPrecedence) {
+                break;
+            }
+
+            int operator = position;
+            position++;
+            CalculatorAstNode right = parseExpression(precedence + 1);
+            if (right == null) {
+                position = operator;
+                failedOperator = operator;
+                break;
+            }
+            int operatorStart = tokens.start(operator);
+            left = CalculatorAstNode.binary(operatorSymbol(text.charAt(operatorStart)),
+                    operatorStart, operatorStart + 1, left, right);
+        }
+        return left;
+    }
+
+    private CalculatorAstNode parseFactor() {
+        if (position >= tokens.size()) {
+            return null;
+        }
+        return switch (tokens.kind(position)) {
+            case TokenStream.FUNCTION -> parseFunction();
+            case TokenStream.PLUS, TokenStream.MINUS -> parseUnary();
+            case TokenStream.NUMBER -> parseNumber();
+            case TokenStream.LEFT_PAREN -> parseParenthesized();
+            case TokenStream.IDENTIFIER -> parseVariable();
+            default -> null;
+        };
+    }
+
+    private CalculatorAstNode parseFunction() {
+        int function = position;
+        position++;
+        CalculatorAstNode argument = parseParenthesized();
+        if (argument == null) {
+            // Without a call, the grammar's last alternative takes the name as a variable.
+            position = function;
+            return parseVariable();
+        }
+        int start = tokens.start(function);
+        return CalculatorAstNode.function(matchFunctionName(text, start), start, tokens.end(function), argument);
+    }
+
+    private CalculatorAstNode parseVariable() {
+        int start = tokens.start(position);
+        int end = tokens.end(position);
+        position++;
+        return CalculatorAstNode.variable(text.subSequence(start, end).toString(), start, end);
+    }
+
+    private CalculatorAstNode parseUnary() {
+        int operator = position;
+        position++;
+        CalculatorAstNode operand = parseFactor();
+        if (operand == null) {
+            position = operator;
+            return null;
+        }
+        int start = tokens.start(operator);
+        return CalculatorAstNode.unary(operatorSymbol(text.charAt(start)), start, start + 1, operand);
+    }
+
+    private CalculatorAstNode parseNumber() {
+        int start = tokens.start(position);
+        int end = tokens.end(position);
+        position++;
+        return CalculatorAstNode.number(NumberLiterals.parse(text, start, end), start, end);
+    }
+
+    private CalculatorAstNode parseParenthesized() {
+        int open = position;
+        if (position >= tokens.size() || tokens.kind(position) != TokenStream.LEFT_PAREN) {
+            return null;
+        }
+        position++;
+        CalculatorAstNode inner = parseExpression(0);
+        if (inner == null || position >= tokens.size() || tokens.kind(position) != TokenStream.RIGHT_PAREN) {
+            position = open;
+            return null;
+        }
+        position++;
+        return inner;
+    }
+
+    /**
+     * Source offset where the next token starts.
+     */
+    private int offset() {
+        return position < tokens.size() ? tokens.start(position) : text.length();
+    }
+
+    /**
+     * Function name the grammar knows that starts at {@code position}, or null.
+     */
+    static String matchFunctionName(CharSequence text, int position) {
+        for (String name : FUNCTION_NAMES) {
+            if (regionMatches(text, position, name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    static boolean isFunctionName(String name) {
+        for (String functionName : FUNCTION_NAMES) {
+            if (functionName.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(CharSequence text, int position, String word) {
+        if (position + word.length() > text.length()) {
+            return false;
+        }
+        for (int index = 0; index < word.length(); index++) {
+            if (text.charAt(position + index) != word.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int infixPrecedence(int kind) {
+        return switch (kind) {
+            case TokenStream.STAR, TokenStream.SLASH -> MULTIPLICATIVE;
+            case TokenStream.PLUS, TokenStream.MINUS, TokenStream.UNKNOWN_OPERATOR -> ADDITIVE;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Binding power of {@code operator} in infix position; 0 when it is not an infix operator.
+     */
+    static int infixPrecedence(char operator) {
+        if (operator == '*' || operator == '/') {
+            return MULTIPLICATIVE;
+        }
+        if (operator == '+' || operator == '-' || isUnknownOperator(operator)) {
+            return ADDITIVE;
+        }
+        return 0;
+    }
+
+    /**
+     * Mirrors {@link CalculatorParsers.UnknownOperatorParser#isMatch(char)}.
+     */
+    private static boolean isUnknownOperator(char target) {
+        if (Character.isLetterOrDigit(target) || Character.isWhitespace(target)) {
+            return false;
+        }
+        return target != '(' && target != ')' && target != '.'
+                && target != '+' && target != '-' && target != '*' && target != '/';
+    }
+
+    static String operatorSymbol(char operator) {
+        return switch (operator) {
+            case '+' -> "+";
+            case '-' -> "-";
+            case '*' -> "*";
+            case '/' -> "/";
+            default -> String.valueOf(operator);
+        };
+    }
+
+    static boolean isDigit(char current) {
+        return current >= '0' && current <= '9';
+    }
+}
@@ -0,0 +1,259 @@
+package org.unlaxer.calculator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Error-recovering variant of {@link CalculatorPrattParser} for input that does not parse.
+ *
+ * <p>Where the grammar cannot continue, the parser records a syntax error, resynchronizes and
+ * goes on, so one input yields every syntax error plus a partial AST whose valid subexpressions
+ * can still be evaluated. Recovery works at three kinds of synchronization points:</p>
+ * <ul>
+ *   <li>a missing operand becomes a zero-width {@link CalculatorAstNode.Kind#ERROR} node and
+ *       parsing resumes at the next operator or {@code )}</li>
+ *   <li>characters that cannot start or continue an expression are skipped up to the next
+ *       operator, {@code )}, factor or line end, and reported as one error per run</li>
+ *   <li>an unclosed {@code (} closes where its contents end; a surplus {@code )} is dropped</li>
+ * </ul>
+ * <p>On input the grammar accepts, the tree equals the one {@link CalculatorPrattParser} builds
+ * and no errors are reported.</p>
+ */
+public final class CalculatorRecoveringParser {
+
+    /**
+     * Syntax error at source offsets {@code [start, end)}.
+     */
+    public record SyntaxError(int start, int end, String message) {}
+
+    /**
+     * @param ast partial AST, or null for empty input
+     * @param errors syntax errors in source order
+     */
+    public record Result(CalculatorAstNode ast, List<SyntaxError> errors) {}
+
+    /**
+     * What was being parsed when an operand turned out to be missing; selects the message.
+     */
+    private enum Operand {
+        EXPRESSION,
+        BINARY,
+        UNARY,
+        PARENTHESIZED
+    }
+
+    private final CharSequence text;
+    private final List<SyntaxError> errors = new ArrayList<>();
+    private int position;
+    /**
+     * Offset where parsing last resumed after skipping input; no separate "missing operator"
+     * error is reported for a factor that starts there.
+     */
+    private int resumedAt = -1;
+
+    private CalculatorRecoveringParser(CharSequence text) {
+        this.text = text;
+    }
+
+    public static Result parse(CharSequence text) {
+        if (text.length() == 0) {
+            return new Result(null, List.of());
+        }
+        CalculatorRecoveringParser parser = new CalculatorRecoveringParser(text);
+        CalculatorAstNode ast = parser.parseFragments();
+        List<SyntaxError> errors = new ArrayList<>(parser.errors);
+        errors.sort(Comparator.comparingInt(SyntaxError::start));
+        return new Result(ast, List.copyOf(errors));
+    }
+
+    private CalculatorAstNode parseFragments() {
+        List<CalculatorAstNode> fragments = new ArrayList<>();
+
+        while (position < text.length()) {
+            char current = text.charAt(position);
+            boolean operator = CalculatorPrattParser.infixPrecedence(current) > 0;
+            if (current == ')') {
+                error(position, position + 1, "閉じ括弧に対応する開き括弧がありません");
+                position++;
+                resumedAt = position;
+            } else if (operator && false == fragments.isEmpty()) {
+                // An operator after a surplus ')' continues the last fragment.
+                int last = fragments.size() - 1;
+                fragments.set(last, parseOperators(fragments.get(last), 0));
+            } else if (startsFactor()) {
+                if (false == fragments.isEmpty() && resumedAt != position) {
+                    error(position, position + 1, "演算子がありません");
+                }
+                fragments.add(parseExpression(0, -1, Operand.EXPRESSION));
+            } else if (operator) {
+                missingOperand(-1, Operand.EXPRESSION);
+                fragments.add(parseOperators(CalculatorAstNode.error(position, position, List.of()), 0));
+            } else {
+                skipUnexpected();
+            }
+        }
+
+        if (fragments.size() == 1) {
+            return fragments.get(0);
+        }
+        return CalculatorAstNode.error(0, text.length(), fragments);
+    }
+
+    private CalculatorAstNode parseExpression(int minimumPrecedence, int anchor, Operand operand) {
+        CalculatorAstNode left = parseFactor(anchor, operand);
+        if (minimumPrecedence > CalculatorPrattParser.MULTIPLICATIVE) {
+            return left;
+        }
+        return parseOperators(left, minimumPrecedence);
+    }
+
+    private CalculatorAstNode parseOperators(CalculatorAstNode left, int minimumPrecedence) {
+        while (position < text.length()) {
+            char operator = text.charAt(position);
+            if (atUnexpected()) {
+                skipUnexpected();
+                continue;
+            }
+            int precedence = CalculatorPrattParser.infixPrecedence(operator);
+            if (precedence == 0 || precedence < minimumPrecedence) {
+                break;
+            }
+
+            int operatorStart = position;
+            position++;
+            CalculatorAstNode right = parseExpression(precedence + 1, operatorStart, Operand.BINARY);
+            left = CalculatorAstNode.binary(CalculatorPrattParser.operatorSymbol(operator),
+                    operatorStart, operatorStart + 1, left, right);
+        }
+        return left;
+    }
+
+    /**
+     * Parse a factor; never fails. {@code anchor} is the offset of the token that needs the operand.
+     */
+    private CalculatorAstNode parseFactor(int anchor, Operand operand) {
+        int skippedStart = position;
+        if (atUnexpected()) {
+            skipUnexpected();
+        }
+        int skippedEnd = position;
+
+        if (false == startsFactor()) {
+            missingOperand(anchor, operand);
+            return CalculatorAstNode.error(skippedStart, skippedEnd, List.of());
+        }
+
+        char current = text.charAt(position);
+        if (Character.isLetter(current)) {
+            return parseName();
+        }
+        if (current == '+' || current == '-') {
+            int start = position;
+            position++;
+            CalculatorAstNode inner = parseFactor(start, Operand.UNARY);
+            return CalculatorAstNode.unary(CalculatorPrattParser.operatorSymbol(current), start, start + 1, inner);
+        }
+        if (current == '(') {
+            return parseParenthesized();
+        }
+        return parseNumber();
+    }
+
+    /**
+     * Parse a run of letters: a function call when it is a function name, a variable otherwise.
+     */
+    private CalculatorAstNode parseName() {
+        int start = position;
+        while (position < text.length() && Character.isLetter(text.charAt(position))) {
+            position++;
+        }
+        String name = text.subSequence(start, position).toString();
+        if (false == CalculatorPrattParser.isFunctionName(name)) {
+            return CalculatorAstNode.variable(name, start, position);
+        }
+        CalculatorAstNode argument;
+        if (position < text.length() && text.charAt(position) == '(') {
+            argument = parseParenthesized();
+        } else {
+            error(start, position, "関数の後に開き括弧がありません: " + name);
+            argument = CalculatorAstNode.error(position, position, List.of());
+        }
+        return CalculatorAstNode.function(name, start, start + name.length(), argument);
+    }
+
+    private CalculatorAstNode parseParenthesized() {
+        int start = position;
+        position++;
+        CalculatorAstNode inner = parseExpression(0, start, Operand.PARENTHESIZED);
+        if (position < text.length() && text.charAt(position) == ')') {
+            position++;
+        } else {
+            error(start, start + 1, "開き括弧が閉じられていません");
+        }
+        return inner;
+    }
+
+    private CalculatorAstNode parseNumber() {
+        int start = position;
+        while (position < text.length() && CalculatorPrattParser.isDigit(text.charAt(position))) {
+            position++;
+        }
+        if (position + 1 < text.length() && text.charAt(position) == '.'
+                && CalculatorPrattParser.isDigit(text.charAt(position + 1))) {
+            position++;
+            while (position < text.length() && CalculatorPrattParser.isDigit(text.charAt(position))) {
+                position++;
+            }
+        }
+        return CalculatorAstNode.number(NumberLiterals.parse(text, start, position), start, position);
+    }
+
+    private void missingOperand(int anchor, Operand operand) {
+        switch (operand) {
+            case BINARY -> error(anchor, anchor + 1, "右辺のない二項演算子: " + text.charAt(anchor));
+            case UNARY -> error(anchor, anchor + 1, "単項演算子のオペランドがありません: " + text.charAt(anchor));
+            case PARENTHESIZED -> error(anchor, anchor + 1, "括弧の中に式がありません");
+            default -> error(position, Math.min(position + 1, text.length()), "式がありません");
+        }
+    }
+
+    /**
+     * Skip one run of characters that cannot start or continue an expression.
+     * A line break ends the run, so each line reports its own errors.
+     */
+    private void skipUnexpected() {
+        int start = position;
+        boolean lineBreak = text.charAt(position) == '\n';
+        position++;
+        while (false == lineBreak && position < text.length()
+                && text.charAt(position) != '\n' && atUnexpected()) {
+            position++;
+        }
+        error(start, position, "予期しない文字です");
+        resumedAt = position;
+    }
+
+    private boolean atUnexpected() {
+        if (position >= text.length()) {
+            return false;
+        }
+        char current = text.charAt(position);
+        return current != ')'
+                && CalculatorPrattParser.infixPrecedence(current) == 0
+                && false == startsFactor();
+    }
+
+    private boolean startsFactor() {
+        if (position >= text.length()) {
+            return false;
+        }
+        char current = text.charAt(position);
+        return CalculatorPrattParser.isDigit(current) || Character.isLetter(current)
+                || current == '(' || current == '+' || current == '-';
+    }
+
+    private void error(int start, int end, String message) {
+        errors.add(new SyntaxError(start, end, message));
+    }
+}
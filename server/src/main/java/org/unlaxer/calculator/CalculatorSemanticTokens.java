@@ -0,0 +1,231 @@
+package org.unlaxer.calculator;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+
+/**
+ * Encoded semantic tokens of one document version.
+ *
+ * <p>Built from the version's {@link TokenStream}: numbers, function names, variables and
+ * operators get their own types, and every token the parser did not consume is
+ * {@code invalid}. Whitespace and parentheses are left to the client's grammar. The data is
+ * the LSP relative encoding, five ints per token, in a primitive array; it is sent through a
+ * list view instead of being copied into boxed lists.</p>
+ *
+ * <p>Each instance has a result ID unique within the process, which a client sends back to ask
+ * for a {@link #deltaFrom delta}: the common prefix and suffix of the two encodings are kept
+ * and only the span between them is sent. A {@link #range} is encoded on its own, without
+ * encoding the rest of the document.</p>
+ */
+public final class CalculatorSemanticTokens {
+
+    /** Token types in legend order; the indexes below refer to this list. */
+    public static final List<String> TOKEN_TYPES =
+            List.of("valid", "invalid", "function", "number", "operator", "variable");
+    public static final int INVALID = 1;
+    public static final int FUNCTION = 2;
+    public static final int NUMBER = 3;
+    public static final int OPERATOR = 4;
+    public static final int VARIABLE = 5;
+
+    /** Ints per encoded token: deltaLine, deltaStart, length, tokenType, tokenModifiers. */
+    static final int TOKEN_WIDTH = 5;
+    /** Not a legend index: parentheses, which are only highlighted when invalid. */
+    private static final int PARENTHESIS = -2;
+
+    private static final AtomicLong RESULT_IDS = new AtomicLong();
+
+    private final String resultId;
+    private final int[] data;
+
+    private CalculatorSemanticTokens(int[] data) {
+        this.resultId = Long.toString(RESULT_IDS.incrementAndGet());
+        this.data = data;
+    }
+
+    public String getResultId() {
+        return resultId;
+    }
+
+    /**
+     * The encoded tokens; not to be modified.
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    public SemanticTokens toSemanticTokens() {
+        return new SemanticTokens(resultId, new IntList(data, 0, data.length));
+    }
+
+    /**
+     * Edits turning {@code previous} into these tokens, or all of them if there is no previous.
+     */
+    public Either<SemanticTokens, SemanticTokensDelta> deltaFrom(CalculatorSemanticTokens previous) {
+        if (previous == null) {
+            return Either.forLeft(toSemanticTokens());
+        }
+        int[] before = previous.data;
+        int limit = Math.min(before.length, data.length);
+        int prefix = 0;
+        while (prefix < limit && before[prefix] == data[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < limit - prefix && before[before.length - 1 - suffix] == data[data.length - 1 - suffix]) {
+            suffix++;
+        }
+        List<SemanticTokensEdit> edits = prefix == before.length && prefix == data.length
+                ? List.of()
+                : List.of(new SemanticTokensEdit(prefix, before.length - suffix - prefix,
+                        new IntList(data, prefix, data.length - suffix)));
+        return Either.forRight(new SemanticTokensDelta(edits, resultId));
+    }
+
+    /**
+     * Encode the tokens of an analyzed document version.
+     */
+    public static CalculatorSemanticTokens of(CalculatorLanguageServer.DocumentState state) {
+        return new CalculatorSemanticTokens(encode(state, 0, state.content.length()));
+    }
+
+    /**
+     * Encode only the tokens that overlap {@code [startOffset, endOffset)}, as for a viewport.
+     * The first token and expression are found by binary search, so the cost depends on the
+     * size of the range rather than of the document.
+     */
+    public static SemanticTokens range(CalculatorLanguageServer.DocumentState state, int startOffset,
+            int endOffset) {
+        int[] data = encode(state, startOffset, endOffset);
+        return new SemanticTokens(new IntList(data, 0, data.length));
+    }
+
+    private static int[] encode(CalculatorLanguageServer.DocumentState state, int startOffset, int endOffset) {
+        TokenStream tokens = state.tokens;
+        int first = tokens.indexAt(startOffset);
+        int last = tokens.indexAt(endOffset);
+        if (last < tokens.size() && tokens.start(last) < endOffset) {
+            last++;
+        }
+        int[] data = new int[Math.max(last - first, 0) * TOKEN_WIDTH];
+        int size = 0;
+        int line = state.lineIndex.lineOf(first < tokens.size() ? tokens.start(first) : startOffset);
+        int lineStart = state.lineIndex.lineStart(line);
+        int previousLine = 0;
+        int previousStart = 0;
+
+        List<CalculatorLanguageServer.ExpressionState> expressions = state.expressions;
+        int expressionIndex = firstExpressionEndingAfter(expressions, startOffset);
+        for (int index = first; index < last; index++) {
+            int kind = tokens.kind(index);
+            int start = tokens.start(index);
+            if (kind == TokenStream.NEWLINE) {
+                line++;
+                lineStart = start + 1;
+                continue;
+            }
+            int type = typeOf(kind);
+            if (type == -1) {
+                continue;
+            }
+            while (expressionIndex < expressions.size() && expressions.get(expressionIndex).endOffset <= start) {
+                expressionIndex++;
+            }
+            if (expressionIndex < expressions.size()) {
+                CalculatorLanguageServer.ExpressionState expression = expressions.get(expressionIndex);
+                if (start >= expression.startOffset + expression.parseResult.consumedLength) {
+                    type = INVALID;
+                }
+            }
+            if (type == PARENTHESIS) {
+                continue;
+            }
+
+            int character = start - lineStart;
+            data[size++] = line - previousLine;
+            data[size++] = line == previousLine ? character - previousStart : character;
+            data[size++] = tokens.length(index);
+            data[size++] = type;
+            data[size++] = 0;
+            previousLine = line;
+            previousStart = character;
+        }
+        return size == data.length ? data : Arrays.copyOf(data, size);
+    }
+
+    private static int firstExpressionEndingAfter(List<CalculatorLanguageServer.ExpressionState> expressions,
+            int offset) {
+        int low = 0;
+        int high = expressions.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (expressions.get(middle).endOffset <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Legend index for a token kind, {@link #PARENTHESIS}, or {@code -1} for whitespace.
+     */
+    private static int typeOf(int kind) {
+        switch (kind) {
+            case TokenStream.NUMBER:
+                return NUMBER;
+            case TokenStream.FUNCTION:
+                return FUNCTION;
+            case TokenStream.IDENTIFIER:
+                return VARIABLE;
+            case TokenStream.PLUS:
+            case TokenStream.MINUS:
+            case TokenStream.STAR:
+            case TokenStream.SLASH:
+            case TokenStream.UNKNOWN_OPERATOR:
+                return OPERATOR;
+            case TokenStream.LEFT_PAREN:
+            case TokenStream.RIGHT_PAREN:
+                return PARENTHESIS;
+            case TokenStream.INVALID:
+                return INVALID;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Read-only list view of a range of an int array, boxing each value as it is read.
+     */
+    private static final class IntList extends AbstractList<Integer> implements RandomAccess {
+
+        private final int[] values;
+        private final int from;
+        private final int to;
+
+        IntList(int[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return values[from + index];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+}
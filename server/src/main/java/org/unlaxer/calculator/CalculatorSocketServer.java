@@ -0,0 +1,239 @@
+package org.unlaxer.calculator;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.lsp4j.jsonrpc.Launcher;
+import org.eclipse.lsp4j.launch.LSPLauncher;
+import org.eclipse.lsp4j.services.LanguageClient;
+
+/**
+ * Serves one LSP session per accepted socket, every session on virtual threads.
+ *
+ * <p>A session's message loop, lsp4j's request handling and the analyses its documents schedule
+ * all run on virtual threads, so an idle session parks instead of holding platform threads.
+ * At most {@code maxSessions} sessions run at once; a connection beyond that is closed right
+ * after it is accepted. A session whose client sends nothing for {@code idleTimeout} is closed
+ * by a reaper that checks every {@link #REAP_INTERVAL_DIVISOR}th of the timeout.</p>
+ *
+ * <p>In multi-tenant mode ({@link #setSharedCaches}) sessions take analyses from caches they all
+ * share, so a text that many clients open is analyzed once; the parser graph and the function
+ * registry are shared by every session in any mode. Each session's open documents are limited
+ * to {@link #getMaxSessionWeight()} characters, past which its new versions are not analyzed.</p>
+ */
+public final class CalculatorSocketServer {
+
+    public static final int DEFAULT_MAX_SESSIONS = 256;
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(30);
+    /** Default limit on the open documents of one session: eight million characters. */
+    public static final long DEFAULT_MAX_SESSION_WEIGHT = 8L * 1024 * 1024;
+    /** The reaper wakes up this many times per idle timeout. */
+    static final int REAP_INTERVAL_DIVISOR = 4;
+
+    private final int maxSessions;
+    private final Duration idleTimeout;
+    private final Semaphore permits;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile SharedAnalysisCaches sharedCaches;
+    private volatile long maxSessionWeight = DEFAULT_MAX_SESSION_WEIGHT;
+
+    public CalculatorSocketServer() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxSessions limit on concurrent sessions
+     * @param idleTimeout time without input from a client after which its session is closed
+     */
+    public CalculatorSocketServer(int maxSessions, Duration idleTimeout) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+        }
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("idleTimeout must be positive: " + idleTimeout);
+        }
+        this.maxSessions = maxSessions;
+        this.idleTimeout = idleTimeout;
+        this.permits = new Semaphore(maxSessions);
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    public SharedAnalysisCaches getSharedCaches() {
+        return sharedCaches;
+    }
+
+    /**
+     * Caches that sessions started from now on share, or null for a cache of their own each.
+     */
+    public void setSharedCaches(SharedAnalysisCaches sharedCaches) {
+        this.sharedCaches = sharedCaches;
+    }
+
+    public long getMaxSessionWeight() {
+        return maxSessionWeight;
+    }
+
+    /**
+     * Limit on the characters of one session's open documents, for sessions started from now on.
+     * See {@link CalculatorLanguageServer#setMaxDocumentWeight(long)}.
+     */
+    public void setMaxSessionWeight(long maxSessionWeight) {
+        if (maxSessionWeight < 0) {
+            throw new IllegalArgumentException("maxSessionWeight must not be negative: " + maxSessionWeight);
+        }
+        this.maxSessionWeight = maxSessionWeight;
+    }
+
+    /**
+     * Accept connections until the server socket is closed, then close every session.
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        Thread reaper = Thread.ofVirtual().name("calculator-session-reaper").start(this::reapIdleSessions);
+        try {
+            while (false == serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException ex) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw ex;
+                }
+                if (false == permits.tryAcquire()) {
+                    System.err.println("Rejected " + socket.getRemoteSocketAddress()
+                            + ": " + maxSessions + " sessions are active");
+                    closeQuietly(socket);
+                    continue;
+                }
+                System.err.println("Client connected from " + socket.getRemoteSocketAddress());
+                virtualThreads.execute(() -> runSession(socket));
+            }
+        } finally {
+            reaper.interrupt();
+            for (Session session : sessions) {
+                closeQuietly(session.socket);
+            }
+            virtualThreads.shutdown();
+        }
+    }
+
+    private void runSession(Socket socket) {
+        Session session = null;
+        try {
+            ActivityInputStream in = new ActivityInputStream(new BufferedInputStream(socket.getInputStream()));
+            session = new Session(socket, in);
+            sessions.add(session);
+
+            // Not an ExecutorService, so the server's exit() leaves the shared executor running.
+            Executor analyses = virtualThreads::execute;
+            SharedAnalysisCaches shared = sharedCaches;
+            CalculatorLanguageServer server = shared != null
+                    ? new CalculatorLanguageServer(shared, analyses)
+                    : new CalculatorLanguageServer(new AnalysisCache(AnalysisCache.DEFAULT_MAX_WEIGHT), analyses);
+            server.setMaxDocumentWeight(maxSessionWeight);
+            Launcher<LanguageClient> launcher = new LSPLauncher.Builder<LanguageClient>()
+                    .setLocalService(server)
+                    .setRemoteInterface(LanguageClient.class)
+                    .setInput(in)
+                    .setOutput(socket.getOutputStream())
+                    .setExecutorService(virtualThreads)
+                    .create();
+            server.connect(launcher.getRemoteProxy());
+
+            System.err.println("Client session started.");
+            launcher.startListening().get();
+        } catch (IOException | ExecutionException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (session != null) {
+                sessions.remove(session);
+            }
+            closeQuietly(socket);
+            permits.release();
+            System.err.println("Client session ended.");
+        }
+    }
+
+    private void reapIdleSessions() {
+        long timeout = idleTimeout.toNanos();
+        try {
+            while (true) {
+                Thread.sleep(Duration.ofNanos(Math.max(timeout / REAP_INTERVAL_DIVISOR, 1_000_000)));
+                long now = System.nanoTime();
+                for (Session session : sessions) {
+                    if (now - session.in.lastRead > timeout) {
+                        System.err.println("Closing idle session from " + session.socket.getRemoteSocketAddress());
+                        // Ends the session's message loop, which then cleans up.
+                        closeQuietly(session.socket);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Server stopped.
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Closing anyway.
+        }
+    }
+
+    private record Session(Socket socket, ActivityInputStream in) {
+    }
+
+    /**
+     * Input stream that records when it last returned data.
+     */
+    private static final class ActivityInputStream extends FilterInputStream {
+
+        volatile long lastRead = System.nanoTime();
+
+        ActivityInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            lastRead = System.nanoTime();
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            lastRead = System.nanoTime();
+            return count;
+        }
+    }
+}
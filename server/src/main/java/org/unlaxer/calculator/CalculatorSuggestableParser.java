@@ -1,8 +1,14 @@
 package org.unlaxer.calculator;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.eclipse.lsp4j.CompletionItem;
+import org.eclipse.lsp4j.CompletionItemKind;
+import org.eclipse.lsp4j.InsertTextFormat;
+import org.eclipse.lsp4j.MarkupContent;
+import org.eclipse.lsp4j.MarkupKind;
 import org.eclipse.lsp4j.Position;
 
 /**
@@ -10,86 +16,109 @@ import org.eclipse.lsp4j.Position;
  *
  * <p>This implementation suggests known function names based on the current word
  * (letters directly before the cursor). Function definitions are sourced from {@link CalculatorParsers}.</p>
+ *
+ * <p>Suggestions and completion items are built once from the function registry and indexed by
+ * name in {@link PrefixTrie}s, so a request walks the current word through the trie and returns
+ * a view of prepared items. Completion items carry only what the list shows; {@link #resolve}
+ * swaps in the item with detail and documentation when the client asks for them.</p>
  */
 public final class CalculatorSuggestableParser implements SuggestableParser {
 
-    @Override
-    public List<String> getTriggerCharacters() {
-        return CalculatorParsers.getFunctionCompletions()
-                .stream()
+    private final List<String> triggerCharacters;
+    private final PrefixTrie<Suggestion> suggestions;
+    private final PrefixTrie<CompletionItem> completionItems;
+    /** Items with detail and documentation, by label. */
+    private final Map<String, CompletionItem> resolvedItems;
+
+    public CalculatorSuggestableParser() {
+        List<CalculatorParsers.FunctionCompletion> functions = CalculatorParsers.getFunctionCompletions();
+        Map<String, Suggestion> suggestionsByName = new HashMap<>();
+        Map<String, CompletionItem> itemsByName = new HashMap<>();
+        Map<String, CompletionItem> resolvedByName = new HashMap<>();
+        for (CalculatorParsers.FunctionCompletion function : functions) {
+            suggestionsByName.put(function.name(),
+                    Suggestion.functionSnippet(function.name(), function.description(), function.insertText()));
+            itemsByName.put(function.name(), completionItem(function));
+            CompletionItem resolved = completionItem(function);
+            resolved.setDetail(function.description());
+            resolved.setDocumentation(new MarkupContent(MarkupKind.MARKDOWN,
+                    "`" + snippetText(function.insertText()) + "`"));
+            resolvedByName.put(function.name(), resolved);
+        }
+        this.triggerCharacters = functions.stream()
                 .map(CalculatorParsers.FunctionCompletion::name)
                 .filter(name -> false == name.isEmpty())
                 .map(name -> name.substring(0, 1))
                 .distinct()
                 .toList();
+        this.suggestions = new PrefixTrie<>(suggestionsByName);
+        this.completionItems = new PrefixTrie<>(itemsByName);
+        this.resolvedItems = Map.copyOf(resolvedByName);
+    }
+
+    @Override
+    public List<String> getTriggerCharacters() {
+        return triggerCharacters;
     }
 
     @Override
-    public List<Suggestion> suggest(String content, Position position) {
-        int offset = positionToOffset(content, position);
-        if (offset < 0) {
+    public List<Suggestion> suggest(String content, LineIndex lineIndex, Position position) {
+        if (position.getLine() >= lineIndex.lineCount()) {
             return List.of();
         }
-        if (offset > content.length()) {
+        return suggestions.withPrefix(currentWord(content, lineIndex.toOffset(position)));
+    }
+
+    @Override
+    public List<CompletionItem> complete(String content, LineIndex lineIndex, Position position) {
+        if (position.getLine() >= lineIndex.lineCount()) {
             return List.of();
         }
+        return completeWord(currentWord(content, lineIndex.toOffset(position)));
+    }
 
-        int wordStart = findWordStart(content, offset);
-        String currentWord = content.substring(wordStart, offset).toLowerCase();
+    @Override
+    public List<CompletionItem> completeWord(String word) {
+        return completionItems.withPrefix(word.toLowerCase());
+    }
 
-        List<Suggestion> suggestions = new ArrayList<>();
-        for (CalculatorParsers.FunctionCompletion function : CalculatorParsers.getFunctionCompletions()) {
-            if (function.name().startsWith(currentWord)) {
-                suggestions.add(Suggestion.functionSnippet(
-                        function.name(),
-                        function.description(),
-                        function.insertText()
-                ));
-            }
-        }
+    @Override
+    public boolean isWordCharacter(int ch) {
+        return Character.isLetter(ch);
+    }
 
-        return suggestions;
+    @Override
+    public CompletionItem resolve(CompletionItem item) {
+        return resolvedItems.getOrDefault(item.getLabel(), item);
     }
 
-    private static int findWordStart(String content, int offset) {
+    private static CompletionItem completionItem(CalculatorParsers.FunctionCompletion function) {
+        CompletionItem item = new CompletionItem(function.name());
+        item.setKind(CompletionItemKind.Function);
+        item.setInsertText(function.insertText());
+        item.setInsertTextFormat(InsertTextFormat.Snippet);
+        return item;
+    }
+
+    /**
+     * The text a snippet inserts with its placeholders left empty, e.g. {@code sin()}.
+     */
+    private static String snippetText(String snippet) {
+        return snippet.replaceAll("\\$\\{\\d+:([^}]*)\\}", "$1").replaceAll("\\$\\d+", "");
+    }
+
+    /**
+     * The letters directly before the offset, in lower case.
+     */
+    private String currentWord(String content, int offset) {
         int wordStart = offset;
         while (wordStart > 0) {
             char previous = content.charAt(wordStart - 1);
-            if (false == Character.isLetter(previous)) {
+            if (false == isWordCharacter(previous)) {
                 break;
             }
             wordStart--;
         }
-        return wordStart;
-    }
-
-    private static int positionToOffset(String content, Position position) {
-        int offset = 0;
-        int line = 0;
-        int column = 0;
-
-        int targetLine = position.getLine();
-        int targetColumn = position.getCharacter();
-
-        while (offset < content.length()) {
-            if (line == targetLine && column == targetColumn) {
-                return offset;
-            }
-
-            char current = content.charAt(offset);
-            if (current == '\n') {
-                line++;
-                column = 0;
-            } else {
-                column++;
-            }
-            offset++;
-        }
-
-        if (line == targetLine && column == targetColumn) {
-            return offset;
-        }
-
-        return -1;
+        return content.substring(wordStart, offset).toLowerCase();
     }
 }
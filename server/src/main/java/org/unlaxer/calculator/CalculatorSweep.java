@@ -0,0 +1,170 @@
+package org.unlaxer.calculator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates one expression with free variables over columns of input values, e.g. {@code sin(x)*t}
+ * for a million {@code (x, t)} pairs.
+ *
+ * <p>The {@link CalculatorBytecode} program runs once per block of points instead of once per
+ * point: each stack slot is a {@code double[]} block, and each instruction is a loop over the
+ * block, so dispatch costs are shared by the whole block and the loops are what the JIT and
+ * the Vector API can vectorize. Addition, subtraction, multiplication, division, negation and
+ * square root go through {@link SweepKernels}, on {@code jdk.incubator.vector} when that kernel
+ * was built and the JVM was started with {@code --add-modules jdk.incubator.vector}, and as scalar
+ * loops otherwise; the other functions call {@link Math} per element. Either way each point's
+ * result has the same bits as {@link CalculatorBytecode#run(double[], double[])} for it.</p>
+ *
+ * <p>Where a point would stop that run with a {@link CalculatorBytecode.Fault}, such as a
+ * division by zero or the logarithm of a negative number, its result is NaN and the other
+ * points are unaffected.</p>
+ */
+public final class CalculatorSweep {
+
+    /** Points per block: a stack slot stays in the L1 cache. */
+    static final int BLOCK = 1024;
+
+    private static final SweepKernels DEFAULT_KERNELS = SweepKernels.select();
+
+    private final CalculatorBytecode program;
+    private final SweepKernels kernels;
+
+    CalculatorSweep(CalculatorBytecode program, SweepKernels kernels) {
+        this.program = program;
+        this.kernels = kernels;
+    }
+
+    public static CalculatorSweep of(CalculatorBytecode program) {
+        return new CalculatorSweep(program, DEFAULT_KERNELS);
+    }
+
+    /**
+     * Compile {@code ast}, or return null when {@link CalculatorBytecode#compile} cannot.
+     */
+    public static CalculatorSweep compile(CalculatorAstNode ast) {
+        CalculatorBytecode program = CalculatorBytecode.compile(ast);
+        return program == null ? null : of(program);
+    }
+
+    /**
+     * Whether the Vector API kernels are in use in this JVM.
+     */
+    public static boolean isVectorized() {
+        return false == DEFAULT_KERNELS instanceof ScalarSweepKernels;
+    }
+
+    /**
+     * Variables to pass columns for, in the order {@link #evaluate(double[][], double[])} expects.
+     */
+    public List<String> variableNames() {
+        return program.variableNames();
+    }
+
+    /**
+     * Evaluate at every point of equally long columns keyed by variable name. An expression
+     * without variables has no columns and is evaluated at one point.
+     *
+     * @throws IllegalArgumentException when a variable has no column or the columns differ in length
+     */
+    public double[] evaluate(Map<String, double[]> columns) {
+        List<String> names = variableNames();
+        double[][] ordered = new double[names.size()][];
+        int length = -1;
+        for (int index = 0; index < ordered.length; index++) {
+            double[] column = columns.get(names.get(index));
+            if (column == null) {
+                throw new IllegalArgumentException("no values for variable " + names.get(index));
+            }
+            if (length >= 0 && column.length != length) {
+                throw new IllegalArgumentException("columns differ in length");
+            }
+            length = column.length;
+            ordered[index] = column;
+        }
+        double[] results = new double[length < 0 ? 1 : length];
+        evaluate(ordered, results);
+        return results;
+    }
+
+    /**
+     * Evaluate at the first {@code results.length} points: the value of {@code variableNames().get(i)}
+     * at point {@code p} is {@code columns[i][p]}.
+     *
+     * @throws IllegalArgumentException when a column is missing or shorter than {@code results}
+     */
+    public void evaluate(double[][] columns, double[] results) {
+        int variables = variableNames().size();
+        if (columns.length < variables) {
+            throw new IllegalArgumentException("expected columns for " + variableNames());
+        }
+        for (int index = 0; index < variables; index++) {
+            if (columns[index].length < results.length) {
+                throw new IllegalArgumentException("column of " + variableNames().get(index) + " is too short");
+            }
+        }
+
+        double[][] stack = new double[program.maxStack()][Math.min(BLOCK, results.length)];
+        for (int offset = 0; offset < results.length; offset += BLOCK) {
+            int length = Math.min(BLOCK, results.length - offset);
+            run(columns, offset, length, stack);
+            System.arraycopy(stack[0], 0, results, offset, length);
+        }
+    }
+
+    private void run(double[][] columns, int offset, int length, double[][] stack) {
+        int top = -1;
+        for (int pc = 0; pc < program.length(); pc++) {
+            int instruction = program.instruction(pc);
+            int operand = CalculatorBytecode.operand(instruction);
+            switch (CalculatorBytecode.opcode(instruction)) {
+                case CalculatorBytecode.CONST -> Arrays.fill(stack[++top], 0, length, program.constant(operand));
+                case CalculatorBytecode.LOAD -> System.arraycopy(columns[operand], offset, stack[++top], 0, length);
+                case CalculatorBytecode.NEG -> kernels.negate(stack[top], length);
+                case CalculatorBytecode.ADD -> {
+                    top--;
+                    kernels.add(stack[top], stack[top + 1], length);
+                }
+                case CalculatorBytecode.SUB -> {
+                    top--;
+                    kernels.subtract(stack[top], stack[top + 1], length);
+                }
+                case CalculatorBytecode.MUL -> {
+                    top--;
+                    kernels.multiply(stack[top], stack[top + 1], length);
+                }
+                case CalculatorBytecode.DIV -> {
+                    top--;
+                    kernels.divide(stack[top], stack[top + 1], length);
+                }
+                case CalculatorBytecode.SQRT -> kernels.sqrt(stack[top], length);
+                case CalculatorBytecode.SIN -> {
+                    double[] values = stack[top];
+                    for (int index = 0; index < length; index++) {
+                        values[index] = Math.sin(values[index]);
+                    }
+                }
+                case CalculatorBytecode.COS -> {
+                    double[] values = stack[top];
+                    for (int index = 0; index < length; index++) {
+                        values[index] = Math.cos(values[index]);
+                    }
+                }
+                case CalculatorBytecode.TAN -> {
+                    double[] values = stack[top];
+                    for (int index = 0; index < length; index++) {
+                        values[index] = Math.tan(values[index]);
+                    }
+                }
+                case CalculatorBytecode.LOG -> {
+                    double[] values = stack[top];
+                    for (int index = 0; index < length; index++) {
+                        values[index] = values[index] <= 0.0d ? Double.NaN : Math.log(values[index]);
+                    }
+                }
+                default -> throw new IllegalStateException("unknown opcode at " + pc + ": " + instruction);
+            }
+        }
+    }
+}
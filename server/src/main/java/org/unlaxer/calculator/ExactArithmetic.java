@@ -0,0 +1,149 @@
+package org.unlaxer.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Operations {@link CalculatorAstAnalyzer} evaluates with in the exact {@link Precision} modes.
+ * Callers check divisors and function domains before calling.
+ */
+abstract class ExactArithmetic<T extends Number> {
+
+    static ExactArithmetic<?> of(Precision precision) {
+        return switch (precision.mode()) {
+            case DECIMAL -> new Decimal(precision.mathContext());
+            case RATIONAL -> new Fraction();
+            default -> throw new IllegalArgumentException("not an exact precision: " + precision);
+        };
+    }
+
+    /**
+     * Value of a number literal from its source text, e.g. {@code 4.5}.
+     */
+    abstract T literal(String text);
+
+    abstract T add(T left, T right);
+
+    abstract T subtract(T left, T right);
+
+    abstract T multiply(T left, T right);
+
+    abstract T divide(T left, T right);
+
+    abstract T negate(T value);
+
+    abstract int signum(T value);
+
+    /**
+     * Square root of a non-negative value, or null when the representation has none; the
+     * caller then computes it in {@code double}.
+     */
+    abstract T sqrt(T value);
+
+    /**
+     * Convert a function result computed in {@code double}.
+     */
+    abstract T fromDouble(double value);
+
+    private static final class Decimal extends ExactArithmetic<BigDecimal> {
+
+        private final MathContext mathContext;
+
+        Decimal(MathContext mathContext) {
+            this.mathContext = mathContext;
+        }
+
+        @Override
+        BigDecimal literal(String text) {
+            return new BigDecimal(text).round(mathContext);
+        }
+
+        @Override
+        BigDecimal add(BigDecimal left, BigDecimal right) {
+            return left.add(right, mathContext);
+        }
+
+        @Override
+        BigDecimal subtract(BigDecimal left, BigDecimal right) {
+            return left.subtract(right, mathContext);
+        }
+
+        @Override
+        BigDecimal multiply(BigDecimal left, BigDecimal right) {
+            return left.multiply(right, mathContext);
+        }
+
+        @Override
+        BigDecimal divide(BigDecimal left, BigDecimal right) {
+            return left.divide(right, mathContext);
+        }
+
+        @Override
+        BigDecimal negate(BigDecimal value) {
+            return value.negate();
+        }
+
+        @Override
+        int signum(BigDecimal value) {
+            return value.signum();
+        }
+
+        @Override
+        BigDecimal sqrt(BigDecimal value) {
+            return value.sqrt(mathContext);
+        }
+
+        @Override
+        BigDecimal fromDouble(double value) {
+            return new BigDecimal(value, mathContext);
+        }
+    }
+
+    private static final class Fraction extends ExactArithmetic<Rational> {
+
+        @Override
+        Rational literal(String text) {
+            return Rational.valueOf(new BigDecimal(text));
+        }
+
+        @Override
+        Rational add(Rational left, Rational right) {
+            return left.add(right);
+        }
+
+        @Override
+        Rational subtract(Rational left, Rational right) {
+            return left.subtract(right);
+        }
+
+        @Override
+        Rational multiply(Rational left, Rational right) {
+            return left.multiply(right);
+        }
+
+        @Override
+        Rational divide(Rational left, Rational right) {
+            return left.divide(right);
+        }
+
+        @Override
+        Rational negate(Rational value) {
+            return value.negate();
+        }
+
+        @Override
+        int signum(Rational value) {
+            return value.signum();
+        }
+
+        @Override
+        Rational sqrt(Rational value) {
+            return value.sqrt();
+        }
+
+        @Override
+        Rational fromDouble(double value) {
+            return Rational.valueOf(value);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.unlaxer.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Static index of intervals that answers, for an offset, which interval containing it starts
+ * last.
+ *
+ * <p>Intervals are sorted by start, ties kept in the order given, and a max-tree over their ends
+ * sits on top: a lookup binary-searches the last interval starting at or before the offset, then
+ * descends the tree to the last one before it that ends after the offset. Both steps are
+ * logarithmic, however many intervals there are and however they overlap. For the nested spans
+ * of a tree given in pre-order, the interval found is the innermost one around the offset.</p>
+ */
+public final class IntervalIndex {
+
+    private final int[] ids;
+    private final int[] starts;
+    /** Max-tree over the ends in sorted order; leaves at {@code [leaves, 2 * leaves)}. */
+    private final int[] maxEnds;
+    private final int leaves;
+
+    /**
+     * @param starts start offsets (inclusive)
+     * @param ends end offsets (exclusive); interval {@code i} is {@code [starts[i], ends[i])}
+     */
+    public IntervalIndex(int[] starts, int[] ends) {
+        int size = starts.length;
+        long[] keys = new long[size];
+        boolean sorted = true;
+        for (int index = 0; index < size; index++) {
+            keys[index] = (long) starts[index] << 32 | index;
+            sorted &= index == 0 || keys[index - 1] < keys[index];
+        }
+        // Spans of a tree in pre-order, and errors, usually come in order already.
+        if (false == sorted) {
+            Arrays.sort(keys);
+        }
+
+        int leaves = 1;
+        while (leaves < size) {
+            leaves <<= 1;
+        }
+        this.leaves = leaves;
+        this.ids = new int[size];
+        this.starts = new int[size];
+        this.maxEnds = new int[2 * leaves];
+        Arrays.fill(maxEnds, Integer.MIN_VALUE);
+        for (int index = 0; index < size; index++) {
+            int id = (int) keys[index];
+            ids[index] = id;
+            this.starts[index] = starts[id];
+            maxEnds[leaves + index] = ends[id];
+        }
+        for (int node = leaves - 1; node > 0; node--) {
+            maxEnds[node] = Math.max(maxEnds[2 * node], maxEnds[2 * node + 1]);
+        }
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Index of the interval containing {@code offset} with the greatest start, the later one given
+     * on ties, or {@code -1} if no interval contains it.
+     */
+    public int find(int offset) {
+        int last = lastStartingAtOrBefore(offset);
+        if (last < 0) {
+            return -1;
+        }
+        int node = leaves + last;
+        if (maxEnds[node] <= offset) {
+            // Climb until a left sibling has an interval ending after the offset.
+            while (node > 1 && ((node & 1) == 0 || maxEnds[node - 1] <= offset)) {
+                node >>= 1;
+            }
+            if (node == 1) {
+                return -1;
+            }
+            node--;
+            // Descend to the last such interval below it.
+            while (node < leaves) {
+                node = maxEnds[2 * node + 1] > offset ? 2 * node + 1 : 2 * node;
+            }
+        }
+        return ids[node - leaves];
+    }
+
+    private int lastStartingAtOrBefore(int offset) {
+        int low = 0;
+        int high = starts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+}
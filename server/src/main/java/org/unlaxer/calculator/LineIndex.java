@@ -0,0 +1,113 @@
+package org.unlaxer.calculator;
+
+import java.util.Arrays;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Line start table for one document version.
+ *
+ * <p>Built once in a single pass over the text; offset and {@link Position} conversions are then a
+ * binary search over the line starts. Columns are UTF-16 code units, which is both how Java
+ * indexes a {@link String} and the LSP default position encoding, so a surrogate pair counts as
+ * two columns on either side of the conversion.</p>
+ */
+public final class LineIndex {
+
+    private final int[] lineStarts;
+    private final int length;
+
+    private LineIndex(int[] lineStarts, int length) {
+        this.lineStarts = lineStarts;
+        this.length = length;
+    }
+
+    public static LineIndex of(CharSequence content) {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int index = 0; index < content.length(); index++) {
+            if (content.charAt(index) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                }
+                starts[count++] = index + 1;
+            }
+        }
+        return new LineIndex(Arrays.copyOf(starts, count), content.length());
+    }
+
+    public int lineCount() {
+        return lineStarts.length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int lineStart(int line) {
+        return lineStarts[line];
+    }
+
+    /**
+     * End offset of the line, excluding its line break.
+     */
+    public int lineEnd(int line) {
+        if (line + 1 < lineStarts.length) {
+            return lineStarts[line + 1] - 1;
+        }
+        return length;
+    }
+
+    /**
+     * Line containing the offset. Offsets outside the document are clamped.
+     */
+    public int lineOf(int offset) {
+        int clamped = clamp(offset);
+        int low = 0;
+        int high = lineStarts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lineStarts[middle] <= clamped) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    public Position toPosition(int offset) {
+        int clamped = clamp(offset);
+        int line = lineOf(clamped);
+        return new Position(line, clamped - lineStarts[line]);
+    }
+
+    public Range toRange(int startOffset, int endOffset) {
+        return new Range(toPosition(startOffset), toPosition(endOffset));
+    }
+
+    /**
+     * Convert an LSP position to an offset.
+     * A character beyond the end of the line is clamped to the line end, as the LSP specification
+     * requires, and a line beyond the last line resolves to the document length.
+     */
+    public int toOffset(int line, int character) {
+        if (line < 0) {
+            return 0;
+        }
+        if (line >= lineStarts.length) {
+            return length;
+        }
+        int start = lineStarts[line];
+        return start + Math.max(0, Math.min(character, lineEnd(line) - start));
+    }
+
+    public int toOffset(Position position) {
+        return toOffset(position.getLine(), position.getCharacter());
+    }
+
+    private int clamp(int offset) {
+        return Math.max(0, Math.min(offset, length));
+    }
+}
@@ -0,0 +1,74 @@
+package org.unlaxer.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Measures how deeply the expressions of a {@link TokenStream} nest, without parsing them.
+ *
+ * <p>Both parsers descend one level per {@code (} (a function call included) and per unary
+ * sign before its operand, so their stack use grows with this depth. Checking it up front lets
+ * an over-deep expression be reported as a diagnostic before any recursive parsing starts.</p>
+ */
+public final class NestingDepth {
+
+    private NestingDepth() {
+    }
+
+    /**
+     * Offset of the first token at which the nesting depth exceeds {@code limit}, or -1 when
+     * it never does.
+     */
+    public static int findExcess(TokenStream tokens, int limit) {
+        // pending[level] counts the unary signs opened inside parenthesis level 'level' that are
+        // still waiting for their operand; the operand's end closes all of them at once.
+        int[] pending = new int[16];
+        int level = 0;
+        int depth = 0;
+        boolean expectOperand = true;
+
+        for (int index = 0; index < tokens.size(); index++) {
+            switch (tokens.kind(index)) {
+                case TokenStream.LEFT_PAREN -> {
+                    depth++;
+                    level++;
+                    if (level == pending.length) {
+                        pending = Arrays.copyOf(pending, level * 2);
+                    }
+                    pending[level] = 0;
+                    expectOperand = true;
+                }
+                case TokenStream.RIGHT_PAREN -> {
+                    if (level > 0) {
+                        // Signs left without an operand close with their parenthesis.
+                        depth -= pending[level] + 1;
+                        level--;
+                    }
+                    // The parenthesized expression is the operand of the signs before it.
+                    depth -= pending[level];
+                    pending[level] = 0;
+                    expectOperand = false;
+                }
+                case TokenStream.PLUS, TokenStream.MINUS -> {
+                    if (expectOperand) {
+                        depth++;
+                        pending[level]++;
+                    }
+                    expectOperand = true;
+                }
+                case TokenStream.STAR, TokenStream.SLASH, TokenStream.UNKNOWN_OPERATOR -> expectOperand = true;
+                case TokenStream.NUMBER, TokenStream.IDENTIFIER -> {
+                    depth -= pending[level];
+                    pending[level] = 0;
+                    expectOperand = false;
+                }
+                default -> {
+                    // Function names wait for their '('; whitespace and invalid text change nothing.
+                }
+            }
+            if (depth > limit) {
+                return tokens.start(index);
+            }
+        }
+        return -1;
+    }
+}
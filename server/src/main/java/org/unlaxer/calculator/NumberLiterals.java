@@ -0,0 +1,86 @@
+package org.unlaxer.calculator;
+
+/**
+ * Reads number literals straight from the text they appear in.
+ *
+ * <p>Literals of the grammar's shape ({@code digits[.digits]}, optionally signed) with at most
+ * 15 significant digits are converted without copying them out of the text: the digits are
+ * exact as a {@code long}, the power of ten is exact as a {@code double}, and one IEEE division
+ * of two exact operands is correctly rounded, so the result equals {@link Double#parseDouble}.
+ * Longer literals fall back to {@link Double#parseDouble} on a copy.</p>
+ */
+public final class NumberLiterals {
+
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private NumberLiterals() {
+    }
+
+    public static double parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Value of the literal at {@code [start, end)} of {@code text}, or NaN when it is not a number.
+     */
+    public static double parse(CharSequence text, int start, int end) {
+        int index = start;
+        boolean negative = false;
+        if (index < end && (text.charAt(index) == '-' || text.charAt(index) == '+')) {
+            negative = text.charAt(index) == '-';
+            index++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int integerDigits = 0;
+        int fractionDigits = 0;
+        while (index < end && isDigit(text.charAt(index))) {
+            mantissa = accumulate(mantissa, text.charAt(index), digits);
+            digits += mantissa == 0 ? 0 : 1;
+            integerDigits++;
+            index++;
+        }
+        if (index < end && text.charAt(index) == '.') {
+            index++;
+            while (index < end && isDigit(text.charAt(index))) {
+                mantissa = accumulate(mantissa, text.charAt(index), digits);
+                digits += mantissa == 0 ? 0 : 1;
+                fractionDigits++;
+                index++;
+            }
+            if (fractionDigits == 0) {
+                return slowParse(text, start, end);
+            }
+        }
+        if (index != end || integerDigits == 0 || digits > MAX_EXACT_DIGITS
+                || fractionDigits >= POWERS_OF_TEN.length) {
+            return slowParse(text, start, end);
+        }
+
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static long accumulate(long mantissa, char digit, int digits) {
+        // Past the exact range the value is discarded for slowParse, so overflow does not matter.
+        return digits > MAX_EXACT_DIGITS ? mantissa : mantissa * 10 + (digit - '0');
+    }
+
+    private static double slowParse(CharSequence text, int start, int end) {
+        try {
+            return Double.parseDouble(text.subSequence(start, end).toString());
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean isDigit(char current) {
+        return current >= '0' && current <= '9';
+    }
+}
@@ -0,0 +1,351 @@
+package org.unlaxer.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Piece-table text buffer used for incremental document synchronization.
+ *
+ * <p>The original text is never copied. Inserted text is appended to a single add buffer and
+ * the document is described by a list of pieces pointing into either buffer, so a range edit
+ * only splits or trims the pieces it touches. Both buffers keep a sorted table of their line
+ * break offsets, which lets {@link #offsetAt(int, int)} skip whole pieces and jump straight to
+ * a line start instead of scanning the text.</p>
+ *
+ * <p>{@link #snapshot()} captures the current text without copying it, so a version can be
+ * handed to another thread while this buffer keeps taking edits.</p>
+ *
+ * <p>Offsets and columns are counted in UTF-16 code units, matching both {@link String}
+ * indexing and the default LSP position encoding.</p>
+ */
+public final class PieceTable {
+
+    private final String original;
+    private final int[] originalBreaks;
+    /**
+     * Append-only: characters below {@link #addedLength} are never overwritten, and growing
+     * copies into a new array, so a snapshot can keep reading the array it was taken with.
+     */
+    private char[] added = new char[64];
+    private int addedLength;
+    private int[] addedBreaks = new int[16];
+    private int addedBreakCount;
+    private final List<Piece> pieces = new ArrayList<>();
+    private int length;
+
+    public PieceTable(String original) {
+        this.original = original;
+        this.originalBreaks = collectLineBreaks(original);
+        this.length = original.length();
+        if (false == original.isEmpty()) {
+            pieces.add(new Piece(false, 0, original.length(), originalBreaks.length));
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Number of lines, one more than the number of line breaks.
+     */
+    public int lineCount() {
+        int lines = 1;
+        for (Piece piece : pieces) {
+            lines += piece.lineBreaks;
+        }
+        return lines;
+    }
+
+    /**
+     * Replace {@code [startOffset, endOffset)} with {@code text}.
+     */
+    public void replace(int startOffset, int endOffset, String text) {
+        int start = clamp(startOffset);
+        int end = Math.max(start, clamp(endOffset));
+        if (end > start) {
+            delete(start, end);
+        }
+        if (false == text.isEmpty()) {
+            insert(start, text);
+        }
+    }
+
+    /**
+     * Resolve an LSP line/character pair to an offset.
+     * A character beyond the end of the line is clamped to the line end,
+     * and a line beyond the end of the document resolves to the document length.
+     */
+    public int offsetAt(int line, int character) {
+        int offset = 0;
+        int remainingLines = line;
+        int index = 0;
+
+        // Skip whole pieces that end before the target line starts.
+        while (index < pieces.size() && pieces.get(index).lineBreaks < remainingLines) {
+            Piece piece = pieces.get(index);
+            remainingLines -= piece.lineBreaks;
+            offset += piece.length;
+            index++;
+        }
+
+        if (index == pieces.size()) {
+            return remainingLines > 0 ? length : offset;
+        }
+
+        int position = pieces.get(index).start;
+        if (remainingLines > 0) {
+            // The target line starts inside this piece, right after its n-th line break.
+            Piece piece = pieces.get(index);
+            int[] breaks = piece.added ? addedBreaks : originalBreaks;
+            int breakCount = piece.added ? addedBreakCount : originalBreaks.length;
+            int first = lowerBound(breaks, breakCount, piece.start);
+            position = breaks[first + remainingLines - 1] + 1;
+            offset += position - piece.start;
+            if (position == piece.start + piece.length) {
+                index++;
+                position = index < pieces.size() ? pieces.get(index).start : 0;
+            }
+        }
+        return advanceColumns(offset, index, position, character);
+    }
+
+    /**
+     * The characters directly before {@code offset} that all match {@code accept}, e.g. the word
+     * left of the cursor. Scans backwards from the offset only as far as the run of matching
+     * characters goes, without building the text.
+     */
+    public String textBefore(int offset, IntPredicate accept) {
+        int end = clamp(offset);
+        int index = 0;
+        int pieceOffset = 0;
+        while (index < pieces.size() && pieceOffset + pieces.get(index).length < end) {
+            pieceOffset += pieces.get(index).length;
+            index++;
+        }
+
+        StringBuilder reversed = new StringBuilder();
+        int inPiece = end - pieceOffset;
+        for (; index >= 0 && index < pieces.size(); index--) {
+            Piece piece = pieces.get(index);
+            for (int position = piece.start + inPiece; position > piece.start; position--) {
+                char previous = piece.added ? added[position - 1] : original.charAt(position - 1);
+                if (false == accept.test(previous)) {
+                    return reversed.reverse().toString();
+                }
+                reversed.append(previous);
+            }
+            if (index > 0) {
+                inPiece = pieces.get(index - 1).length;
+            }
+        }
+        return reversed.reverse().toString();
+    }
+
+    /**
+     * Current text as an immutable view that later edits of this buffer do not change.
+     * Copies the piece list, not the text.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(original, added, pieces.toArray(new Piece[0]), length);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    int pieceCount() {
+        return pieces.size();
+    }
+
+    private int advanceColumns(int offset, int index, int positionInPiece, int character) {
+        int remaining = character;
+        int current = offset;
+        int position = positionInPiece;
+        int pieceIndex = index;
+        while (pieceIndex < pieces.size() && remaining > 0) {
+            Piece piece = pieces.get(pieceIndex);
+            int pieceEnd = piece.start + piece.length;
+            while (position < pieceEnd && remaining > 0) {
+                if ((piece.added ? added[position] : original.charAt(position)) == '\n') {
+                    return current;
+                }
+                position++;
+                current++;
+                remaining--;
+            }
+            pieceIndex++;
+            if (pieceIndex < pieces.size()) {
+                position = pieces.get(pieceIndex).start;
+            }
+        }
+        return current;
+    }
+
+    private void insert(int offset, String text) {
+        int addStart = addedLength;
+        if (addStart + text.length() > added.length) {
+            added = Arrays.copyOf(added, Math.max(added.length * 2, addStart + text.length()));
+        }
+        text.getChars(0, text.length(), added, addStart);
+        addedLength += text.length();
+        for (int index = 0; index < text.length(); index++) {
+            if (text.charAt(index) == '\n') {
+                appendAddedBreak(addStart + index);
+            }
+        }
+        Piece inserted = slice(true, addStart, text.length());
+        length += text.length();
+
+        int pieceOffset = 0;
+        for (int index = 0; index < pieces.size(); index++) {
+            Piece piece = pieces.get(index);
+            int pieceEnd = pieceOffset + piece.length;
+            if (offset == pieceEnd && piece.added && piece.start + piece.length == addStart) {
+                // Typing at the end of the previous insertion: grow that piece in place.
+                pieces.set(index, new Piece(true, piece.start, piece.length + inserted.length,
+                        piece.lineBreaks + inserted.lineBreaks));
+                return;
+            }
+            if (offset == pieceOffset) {
+                pieces.add(index, inserted);
+                return;
+            }
+            if (offset < pieceEnd) {
+                int split = offset - pieceOffset;
+                pieces.set(index, slice(piece.added, piece.start, split));
+                pieces.add(index + 1, inserted);
+                pieces.add(index + 2, slice(piece.added, piece.start + split, piece.length - split));
+                return;
+            }
+            pieceOffset = pieceEnd;
+        }
+        pieces.add(inserted);
+    }
+
+    private void delete(int start, int end) {
+        length -= end - start;
+        int pieceOffset = 0;
+        int index = 0;
+        while (index < pieces.size() && pieceOffset < end) {
+            Piece piece = pieces.get(index);
+            int pieceEnd = pieceOffset + piece.length;
+            if (pieceEnd <= start) {
+                pieceOffset = pieceEnd;
+                index++;
+                continue;
+            }
+
+            int cutStart = Math.max(start, pieceOffset) - pieceOffset;
+            int cutEnd = Math.min(end, pieceEnd) - pieceOffset;
+            pieces.remove(index);
+            if (cutEnd < piece.length) {
+                pieces.add(index, slice(piece.added, piece.start + cutEnd, piece.length - cutEnd));
+            }
+            if (cutStart > 0) {
+                pieces.add(index, slice(piece.added, piece.start, cutStart));
+                index++;
+            }
+            if (cutEnd < piece.length) {
+                index++;
+            }
+            pieceOffset = pieceEnd;
+        }
+    }
+
+    private Piece slice(boolean fromAdded, int start, int sliceLength) {
+        int[] breaks = fromAdded ? addedBreaks : originalBreaks;
+        int breakCount = fromAdded ? addedBreakCount : originalBreaks.length;
+        int lineBreaks = lowerBound(breaks, breakCount, start + sliceLength) - lowerBound(breaks, breakCount, start);
+        return new Piece(fromAdded, start, sliceLength, lineBreaks);
+    }
+
+    private void appendAddedBreak(int offset) {
+        if (addedBreakCount == addedBreaks.length) {
+            addedBreaks = Arrays.copyOf(addedBreaks, addedBreaks.length * 2);
+        }
+        addedBreaks[addedBreakCount++] = offset;
+    }
+
+    private int clamp(int offset) {
+        return Math.max(0, Math.min(offset, length));
+    }
+
+    /**
+     * Index of the first element in {@code values[0, size)} that is greater than or equal to {@code key}.
+     */
+    private static int lowerBound(int[] values, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int[] collectLineBreaks(String text) {
+        int count = 0;
+        for (int index = 0; index < text.length(); index++) {
+            if (text.charAt(index) == '\n') {
+                count++;
+            }
+        }
+        int[] breaks = new int[count];
+        int next = 0;
+        for (int index = 0; index < text.length(); index++) {
+            if (text.charAt(index) == '\n') {
+                breaks[next++] = index;
+            }
+        }
+        return breaks;
+    }
+
+    private record Piece(boolean added, int start, int length, int lineBreaks) {}
+
+    /**
+     * Text of a {@link PieceTable} at the time {@link PieceTable#snapshot()} was called.
+     * Safe to read from another thread once handed over, e.g. through an executor.
+     */
+    public static final class Snapshot {
+
+        private final String original;
+        private final char[] added;
+        private final Piece[] pieces;
+        private final int length;
+
+        private Snapshot(String original, char[] added, Piece[] pieces, int length) {
+            this.original = original;
+            this.added = added;
+            this.pieces = pieces;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            if (pieces.length == 1 && false == pieces[0].added && pieces[0].length == original.length()) {
+                return original;
+            }
+            StringBuilder builder = new StringBuilder(length);
+            for (Piece piece : pieces) {
+                if (piece.added) {
+                    builder.append(added, piece.start, piece.length);
+                } else {
+                    builder.append(original, piece.start, piece.start + piece.length);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.unlaxer.calculator;
+
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+/**
+ * Number representation {@link CalculatorAstAnalyzer} evaluates in.
+ *
+ * <ul>
+ *   <li>{@link Mode#DOUBLE}: IEEE 754 {@code double}, the default and the fastest</li>
+ *   <li>{@link Mode#DECIMAL}: {@link java.math.BigDecimal}, every operation rounded to
+ *       {@link #mathContext()}</li>
+ *   <li>{@link Mode#RATIONAL}: exact fractions ({@link Rational})</li>
+ * </ul>
+ * <p>Literals are read from their source text in the decimal and rational modes, so {@code 0.1}
+ * is exactly one tenth. {@code sqrt} stays exact where the result is representable; {@code sin},
+ * {@code cos}, {@code tan} and {@code log} are computed in {@code double} and converted.</p>
+ *
+ * @param mode representation
+ * @param mathContext rounding of every decimal operation; null for the other modes
+ */
+public record Precision(Mode mode, MathContext mathContext) {
+
+    public enum Mode {
+        DOUBLE,
+        DECIMAL,
+        RATIONAL
+    }
+
+    public static final Precision DOUBLE = new Precision(Mode.DOUBLE, null);
+    public static final Precision RATIONAL = new Precision(Mode.RATIONAL, null);
+    /** Decimal digits when none are given: those of IEEE 754 decimal128. */
+    public static final int DEFAULT_DECIMAL_DIGITS = 34;
+    /**
+     * Most decimal digits allowed. Each operation costs time and memory growing with the digits,
+     * and the digits come from clients, so a single {@code 1/3} must not be asked for millions.
+     */
+    public static final int MAX_DECIMAL_DIGITS = 4000;
+
+    public Precision {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is required");
+        }
+        if ((mode == Mode.DECIMAL) != (mathContext != null)) {
+            throw new IllegalArgumentException("a MathContext is required for, and only for, DECIMAL");
+        }
+        if (mathContext != null && mathContext.getPrecision() == 0) {
+            throw new IllegalArgumentException("unlimited decimal precision cannot divide: " + mathContext);
+        }
+        if (mathContext != null && mathContext.getPrecision() > MAX_DECIMAL_DIGITS) {
+            throw new IllegalArgumentException("decimal digits must be at most " + MAX_DECIMAL_DIGITS + ": "
+                    + mathContext.getPrecision());
+        }
+    }
+
+    public static Precision decimal(int digits) {
+        return decimal(new MathContext(digits, RoundingMode.HALF_EVEN));
+    }
+
+    public static Precision decimal(MathContext mathContext) {
+        return new Precision(Mode.DECIMAL, mathContext);
+    }
+
+    /**
+     * Parse {@code double}, {@code rational}, {@code decimal} or {@code decimal:<digits>}.
+     *
+     * @throws IllegalArgumentException for anything else, including digits beyond
+     *         {@link #MAX_DECIMAL_DIGITS}
+     */
+    public static Precision parse(String text) {
+        String spec = text.trim().toLowerCase(Locale.ROOT);
+        if ("double".equals(spec)) {
+            return DOUBLE;
+        }
+        if ("rational".equals(spec)) {
+            return RATIONAL;
+        }
+        if ("decimal".equals(spec)) {
+            return decimal(DEFAULT_DECIMAL_DIGITS);
+        }
+        if (spec.startsWith("decimal:")) {
+            int digits = Integer.parseInt(spec.substring("decimal:".length()).trim());
+            if (digits < 1) {
+                throw new IllegalArgumentException("decimal digits must be positive: " + digits);
+            }
+            return decimal(digits);
+        }
+        throw new IllegalArgumentException("unknown precision: " + text);
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.DECIMAL
+                ? "decimal:" + mathContext.getPrecision()
+                : mode.name().toLowerCase(Locale.ROOT);
+    }
+}
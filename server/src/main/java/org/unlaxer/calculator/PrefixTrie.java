@@ -0,0 +1,84 @@
+package org.unlaxer.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable map from string keys to values, queried by key prefix.
+ *
+ * <p>Values are stored in key order, so the keys below any trie node form one contiguous run;
+ * each node records its run, and {@link #withPrefix} walks one node per prefix character and
+ * returns a view of that run without copying or filtering. A lookup costs the prefix length
+ * times a binary search over the node's children, whatever the number of keys.</p>
+ */
+public final class PrefixTrie<T> {
+
+    private final List<T> values;
+    private final Node root;
+
+    /**
+     * @param entries keys and their values; each key occurs once
+     */
+    public PrefixTrie(Map<String, T> entries) {
+        TreeMap<String, T> sorted = new TreeMap<>(entries);
+        String[] keys = sorted.keySet().toArray(String[]::new);
+        this.values = List.copyOf(sorted.values());
+        this.root = build(keys, 0, keys.length, 0);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Values of the keys starting with {@code prefix}, in key order.
+     */
+    public List<T> withPrefix(CharSequence prefix) {
+        Node node = root;
+        for (int index = 0; index < prefix.length(); index++) {
+            int child = Arrays.binarySearch(node.labels, prefix.charAt(index));
+            if (child < 0) {
+                return List.of();
+            }
+            node = node.children[child];
+        }
+        return values.subList(node.from, node.to);
+    }
+
+    /**
+     * Node for the keys {@code [from, to)}, which share their first {@code depth} characters.
+     */
+    private static Node build(String[] keys, int from, int to, int depth) {
+        int start = from;
+        // The key that ends here sorts before its extensions.
+        if (start < to && keys[start].length() == depth) {
+            start++;
+        }
+        List<Character> labels = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+        while (start < to) {
+            char label = keys[start].charAt(depth);
+            int end = start + 1;
+            while (end < to && keys[end].charAt(depth) == label) {
+                end++;
+            }
+            labels.add(label);
+            children.add(build(keys, start, end, depth + 1));
+            start = end;
+        }
+        char[] labelArray = new char[labels.size()];
+        for (int index = 0; index < labelArray.length; index++) {
+            labelArray[index] = labels.get(index);
+        }
+        return new Node(labelArray, children.toArray(Node[]::new), from, to);
+    }
+
+    /**
+     * Children sorted by label, and the run of values whose keys pass through this node.
+     */
+    private record Node(char[] labels, Node[] children, int from, int to) {
+    }
+}
@@ -0,0 +1,284 @@
+package org.unlaxer.calculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Exact fraction in lowest terms with a positive denominator.
+ *
+ * <p>Numerator and denominator are {@code long}s as long as they fit, and arithmetic on them
+ * uses overflow-checked {@code long} operations; only a result that overflows is promoted to
+ * {@link BigInteger}, and a {@code BigInteger} result that fits again is demoted. Calculations
+ * with small numbers therefore never allocate a {@code BigInteger}.</p>
+ */
+public final class Rational extends Number implements Comparable<Rational> {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final Rational ZERO = new Rational(0, 1, null, null);
+    public static final Rational ONE = new Rational(1, 1, null, null);
+
+    /** Largest magnitude a {@code double} represents exactly together with all smaller integers. */
+    private static final long EXACT_DOUBLE = 1L << 53;
+    /** Digits of the decimal quotient that {@link #doubleValue()} rounds from in the general case. */
+    private static final MathContext DOUBLE_QUOTIENT = new MathContext(40);
+
+    /** Numerator and denominator when both fit; unused when {@link #bigNumerator} is set. */
+    private final long numerator;
+    private final long denominator;
+    /** Non-null only when numerator or denominator does not fit in a {@code long}. */
+    private final BigInteger bigNumerator;
+    private final BigInteger bigDenominator;
+
+    private Rational(long numerator, long denominator, BigInteger bigNumerator, BigInteger bigDenominator) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+        this.bigNumerator = bigNumerator;
+        this.bigDenominator = bigDenominator;
+    }
+
+    public static Rational valueOf(long value) {
+        return of(value, 1);
+    }
+
+    /**
+     * @throws ArithmeticException when {@code denominator} is zero
+     */
+    public static Rational of(long numerator, long denominator) {
+        if (denominator == 0) {
+            throw new ArithmeticException("zero denominator");
+        }
+        if (numerator == Long.MIN_VALUE || denominator == Long.MIN_VALUE) {
+            // Its negation does not fit; keep every long in the small form negatable.
+            return of(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+        }
+        if (denominator < 0) {
+            numerator = -numerator;
+            denominator = -denominator;
+        }
+        long divisor = gcd(Math.abs(numerator), denominator);
+        return new Rational(numerator / divisor, denominator / divisor, null, null);
+    }
+
+    /**
+     * @throws ArithmeticException when {@code denominator} is zero
+     */
+    public static Rational of(BigInteger numerator, BigInteger denominator) {
+        if (denominator.signum() == 0) {
+            throw new ArithmeticException("zero denominator");
+        }
+        if (denominator.signum() < 0) {
+            numerator = numerator.negate();
+            denominator = denominator.negate();
+        }
+        BigInteger divisor = numerator.gcd(denominator);
+        if (false == divisor.equals(BigInteger.ONE)) {
+            numerator = numerator.divide(divisor);
+            denominator = denominator.divide(divisor);
+        }
+        if (numerator.bitLength() < Long.SIZE - 1 && denominator.bitLength() < Long.SIZE - 1) {
+            // Magnitudes below 2^62 fit with room to spare, and exclude Long.MIN_VALUE.
+            return new Rational(numerator.longValue(), denominator.longValue(), null, null);
+        }
+        return new Rational(0, 0, numerator, denominator);
+    }
+
+    /**
+     * The exact value of a decimal, e.g. one tenth for {@code 0.1}.
+     */
+    public static Rational valueOf(BigDecimal value) {
+        BigInteger unscaled = value.unscaledValue();
+        if (value.scale() <= 0) {
+            return of(unscaled.multiply(BigInteger.TEN.pow(-value.scale())), BigInteger.ONE);
+        }
+        return of(unscaled, BigInteger.TEN.pow(value.scale()));
+    }
+
+    /**
+     * The exact value of a finite {@code double}, a fraction with a power of two as denominator.
+     *
+     * @throws ArithmeticException when {@code value} is infinite or NaN
+     */
+    public static Rational valueOf(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new ArithmeticException("not a finite number: " + value);
+        }
+        return valueOf(new BigDecimal(value));
+    }
+
+    public boolean isBig() {
+        return bigNumerator != null;
+    }
+
+    public BigInteger numerator() {
+        return bigNumerator != null ? bigNumerator : BigInteger.valueOf(numerator);
+    }
+
+    public BigInteger denominator() {
+        return bigDenominator != null ? bigDenominator : BigInteger.valueOf(denominator);
+    }
+
+    public int signum() {
+        return bigNumerator != null ? bigNumerator.signum() : Long.signum(numerator);
+    }
+
+    public Rational negate() {
+        if (bigNumerator == null) {
+            return new Rational(-numerator, denominator, null, null);
+        }
+        return of(bigNumerator.negate(), bigDenominator);
+    }
+
+    public Rational add(Rational other) {
+        if (bigNumerator == null && other.bigNumerator == null) {
+            try {
+                long divisor = gcd(denominator, other.denominator);
+                long left = Math.multiplyExact(numerator, other.denominator / divisor);
+                long right = Math.multiplyExact(other.numerator, denominator / divisor);
+                return of(Math.addExact(left, right), Math.multiplyExact(denominator / divisor, other.denominator));
+            } catch (ArithmeticException overflow) {
+                // Promote below.
+            }
+        }
+        return of(numerator().multiply(other.denominator()).add(other.numerator().multiply(denominator())),
+                denominator().multiply(other.denominator()));
+    }
+
+    public Rational subtract(Rational other) {
+        return add(other.negate());
+    }
+
+    public Rational multiply(Rational other) {
+        if (bigNumerator == null && other.bigNumerator == null) {
+            try {
+                if (numerator == 0 || other.numerator == 0) {
+                    return ZERO;
+                }
+                // Cancel crosswise first, so that the product is already in lowest terms.
+                long first = gcd(Math.abs(numerator), other.denominator);
+                long second = gcd(Math.abs(other.numerator), denominator);
+                long product = Math.multiplyExact(numerator / first, other.numerator / second);
+                long denominatorProduct = Math.multiplyExact(denominator / second, other.denominator / first);
+                if (product != Long.MIN_VALUE) {
+                    return new Rational(product, denominatorProduct, null, null);
+                }
+            } catch (ArithmeticException overflow) {
+                // Promote below.
+            }
+        }
+        return of(numerator().multiply(other.numerator()), denominator().multiply(other.denominator()));
+    }
+
+    /**
+     * @throws ArithmeticException when {@code other} is zero
+     */
+    public Rational divide(Rational other) {
+        return multiply(other.reciprocal());
+    }
+
+    /**
+     * @throws ArithmeticException when this is zero
+     */
+    public Rational reciprocal() {
+        if (bigNumerator == null) {
+            return of(denominator, numerator);
+        }
+        return of(bigDenominator, bigNumerator);
+    }
+
+    /**
+     * The exact square root, or null when it is not rational or this is negative.
+     */
+    public Rational sqrt() {
+        if (signum() < 0) {
+            return null;
+        }
+        BigInteger numeratorRoot = exactSqrt(numerator());
+        BigInteger denominatorRoot = numeratorRoot == null ? null : exactSqrt(denominator());
+        return denominatorRoot == null ? null : of(numeratorRoot, denominatorRoot);
+    }
+
+    private static BigInteger exactSqrt(BigInteger value) {
+        BigInteger root = value.sqrt();
+        return root.multiply(root).equals(value) ? root : null;
+    }
+
+    @Override
+    public double doubleValue() {
+        if (bigNumerator == null && Math.abs(numerator) <= EXACT_DOUBLE && denominator <= EXACT_DOUBLE) {
+            // Both operands are exact doubles, so the one rounding of the division is the only one.
+            return (double) numerator / denominator;
+        }
+        return new BigDecimal(numerator()).divide(new BigDecimal(denominator()), DOUBLE_QUOTIENT).doubleValue();
+    }
+
+    @Override
+    public float floatValue() {
+        return (float) doubleValue();
+    }
+
+    @Override
+    public long longValue() {
+        return bigNumerator == null ? numerator / denominator : bigNumerator.divide(bigDenominator).longValue();
+    }
+
+    @Override
+    public int intValue() {
+        return (int) longValue();
+    }
+
+    @Override
+    public int compareTo(Rational other) {
+        if (bigNumerator == null && other.bigNumerator == null) {
+            try {
+                return Long.compare(Math.multiplyExact(numerator, other.denominator),
+                        Math.multiplyExact(other.numerator, denominator));
+            } catch (ArithmeticException overflow) {
+                // Compare as BigInteger below.
+            }
+        }
+        return numerator().multiply(other.denominator()).compareTo(other.numerator().multiply(denominator()));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (false == other instanceof Rational) {
+            return false;
+        }
+        // Lowest terms with a positive denominator are canonical.
+        Rational rational = (Rational) other;
+        if (bigNumerator == null && rational.bigNumerator == null) {
+            return numerator == rational.numerator && denominator == rational.denominator;
+        }
+        return numerator().equals(rational.numerator()) && denominator().equals(rational.denominator());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * numerator().hashCode() + denominator().hashCode();
+    }
+
+    /**
+     * {@code numerator/denominator}, or just the numerator for an integer.
+     */
+    @Override
+    public String toString() {
+        if (bigNumerator == null) {
+            return denominator == 1 ? Long.toString(numerator) : numerator + "/" + denominator;
+        }
+        return bigDenominator.equals(BigInteger.ONE) ? bigNumerator.toString() : bigNumerator + "/" + bigDenominator;
+    }
+
+    private static long gcd(long first, long second) {
+        while (second != 0) {
+            long remainder = first % second;
+            first = second;
+            second = remainder;
+        }
+        return first;
+    }
+}
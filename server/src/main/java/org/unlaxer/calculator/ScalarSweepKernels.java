@@ -0,0 +1,49 @@
+package org.unlaxer.calculator;
+
+/**
+ * Plain loops; the JIT may still auto-vectorize them.
+ */
+final class ScalarSweepKernels implements SweepKernels {
+
+    @Override
+    public void add(double[] left, double[] right, int length) {
+        for (int index = 0; index < length; index++) {
+            left[index] += right[index];
+        }
+    }
+
+    @Override
+    public void subtract(double[] left, double[] right, int length) {
+        for (int index = 0; index < length; index++) {
+            left[index] -= right[index];
+        }
+    }
+
+    @Override
+    public void multiply(double[] left, double[] right, int length) {
+        for (int index = 0; index < length; index++) {
+            left[index] *= right[index];
+        }
+    }
+
+    @Override
+    public void divide(double[] left, double[] right, int length) {
+        for (int index = 0; index < length; index++) {
+            left[index] = right[index] == 0.0d ? Double.NaN : left[index] / right[index];
+        }
+    }
+
+    @Override
+    public void negate(double[] values, int length) {
+        for (int index = 0; index < length; index++) {
+            values[index] = -values[index];
+        }
+    }
+
+    @Override
+    public void sqrt(double[] values, int length) {
+        for (int index = 0; index < length; index++) {
+            values[index] = Math.sqrt(values[index]);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.unlaxer.calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Analysis caches shared by every session of a multi-tenant server.
+ *
+ * <p>Results are keyed by expression text, so sessions that open the same text share one
+ * analysis. Settings that change results get caches of their own: a session that parses with
+ * another {@link CalculatorLanguageServer.ParserBackend}, nesting limit or {@link Precision}
+ * switches to the cache for its settings instead of clearing the one the others use.</p>
+ *
+ * <p>All caches draw on one {@link AnalysisCache.Store}, so their entries together stay within
+ * one weight limit however many settings clients ask for, and the least recently used entries
+ * are evicted whichever settings they were analyzed with. Only the {@link #MAX_CACHES} most
+ * recently requested caches are kept for reuse; a session that asks for one that was dropped
+ * gets a new cache, which still finds the entries stored under the same settings.</p>
+ */
+public final class SharedAnalysisCaches {
+
+    /**
+     * Default weight limit of all caches together: thirty-two million characters of cached text.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 32L * 1024 * 1024;
+    /** Caches kept for reuse, by the settings that were requested most recently. */
+    static final int MAX_CACHES = 64;
+
+    private final AnalysisCache.Store store;
+    private final Map<Settings, AnalysisCache> caches = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Settings, AnalysisCache> eldest) {
+            return size() > MAX_CACHES;
+        }
+    };
+
+    public SharedAnalysisCaches() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxWeight weight limit of all caches together
+     */
+    public SharedAnalysisCaches(long maxWeight) {
+        this.store = new AnalysisCache.Store(maxWeight);
+    }
+
+    /**
+     * The cache for results analyzed with these settings.
+     */
+    public synchronized AnalysisCache get(CalculatorLanguageServer.ParserBackend parserBackend, int maxNestingDepth,
+            Precision precision) {
+        return caches.computeIfAbsent(new Settings(parserBackend, maxNestingDepth, precision),
+                settings -> new AnalysisCache(store, settings));
+    }
+
+    /**
+     * Total weight of all caches.
+     */
+    public long getWeight() {
+        return store.getWeight();
+    }
+
+    private record Settings(CalculatorLanguageServer.ParserBackend parserBackend, int maxNestingDepth,
+            Precision precision) {
+    }
+}
@@ -0,0 +1,174 @@
+package org.unlaxer.calculator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash-consing table for one evaluation: gives structurally equal {@link CalculatorAstNode}
+ * subtrees the same identity, whatever their source positions.
+ *
+ * <p>Nodes are visited in post-order, so a node is identified by its operator and the
+ * identities of its operands, packed into one {@code long}; number literals are identified by
+ * the bits of their value. Both live in open-addressing tables of primitive arrays, so that
+ * identifying a node costs a multiply and a probe rather than an allocation. In the exact
+ * {@link Precision} modes, literals whose {@code double} values coincide can differ
+ * ({@code 0.1} and {@code 0.10000000000000000001}), so there they are identified by their
+ * source text instead.</p>
+ */
+final class SubexpressionTable {
+
+    /** Identity returned for a node seen for the first time; see {@link #newIdentity()}. */
+    static final int NEW = -1;
+
+    private static final int OPERAND_BITS = 28;
+    private static final int MAX_OPERAND = (1 << OPERAND_BITS) - 1;
+
+    private final LongIntTable numbers = new LongIntTable();
+    private final LongIntTable operators = new LongIntTable();
+    /** Source text numbers are identified by, or null to identify them by value. */
+    private final CharSequence source;
+    private final Map<String, Integer> literals;
+    private int identities;
+    private long pendingKey;
+    private LongIntTable pendingTable;
+    private String pendingLiteral;
+
+    SubexpressionTable() {
+        this(null);
+    }
+
+    /**
+     * @param source text whose offsets the nodes carry, to identify numbers by literal; null to
+     *               identify them by value
+     */
+    SubexpressionTable(CharSequence source) {
+        this.source = source;
+        this.literals = source == null ? null : new HashMap<>();
+    }
+
+    /**
+     * Identity of a number literal or of an operator over operands with the given identities
+     * ({@code -1} when absent), or {@link #NEW} when no equal node was seen; the caller then
+     * evaluates it and calls {@link #newIdentity()}.
+     */
+    int identify(CalculatorAstNode node, int first, int second) {
+        pendingTable = null;
+        pendingLiteral = null;
+        if (node.kind() == CalculatorAstNode.Kind.NUMBER && source != null) {
+            pendingLiteral = source.subSequence(node.start(), node.end()).toString();
+            return literals.getOrDefault(pendingLiteral, NEW);
+        }
+        if (node.kind() == CalculatorAstNode.Kind.NUMBER) {
+            pendingKey = Double.doubleToRawLongBits(node.value());
+            pendingTable = numbers;
+        } else {
+            int code = operatorCode(node);
+            if (code == 0 || first >= MAX_OPERAND || second >= MAX_OPERAND) {
+                return NEW;
+            }
+            pendingKey = ((long) code << (2 * OPERAND_BITS)) | ((long) (first + 1) << OPERAND_BITS) | (second + 1);
+            pendingTable = operators;
+        }
+        return pendingTable.get(pendingKey);
+    }
+
+    /**
+     * Allocate the identity of the node last passed to {@link #identify} that returned {@link #NEW}.
+     */
+    int newIdentity() {
+        int identity = identities++;
+        if (pendingTable != null) {
+            pendingTable.put(pendingKey, identity);
+        } else if (pendingLiteral != null) {
+            literals.put(pendingLiteral, identity);
+        }
+        return identity;
+    }
+
+    /**
+     * Small code per known operator and function; 0 for nodes that are never shared.
+     */
+    private static int operatorCode(CalculatorAstNode node) {
+        String symbol = node.symbol();
+        if (symbol == null) {
+            return 0;
+        }
+        char operator = symbol.length() == 1 ? symbol.charAt(0) : 0;
+        return switch (node.kind()) {
+            case UNARY -> switch (operator) {
+                case '+' -> 1;
+                case '-' -> 2;
+                default -> 0;
+            };
+            case BINARY -> switch (operator) {
+                case '+' -> 3;
+                case '-' -> 4;
+                case '*' -> 5;
+                case '/' -> 6;
+                default -> 0;
+            };
+            case FUNCTION -> switch (symbol) {
+                case "sin" -> 7;
+                case "cos" -> 8;
+                case "tan" -> 9;
+                case "sqrt" -> 10;
+                case "log" -> 11;
+                default -> 0;
+            };
+            default -> 0;
+        };
+    }
+
+    /**
+     * Map from {@code long} keys to non-negative {@code int} values with linear probing.
+     */
+    private static final class LongIntTable {
+
+        private long[] keys = new long[64];
+        /** Value + 1, so that 0 marks an empty slot. */
+        private int[] values = new int[64];
+        private int size;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; values[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot] - 1;
+                }
+            }
+            return NEW;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (values[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value + 1;
+            size++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldValues[slot] != 0) {
+                    put(oldKeys[slot], oldValues[slot] - 1);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32));
+        }
+    }
+}
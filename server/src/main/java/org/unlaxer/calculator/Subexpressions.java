@@ -0,0 +1,169 @@
+package org.unlaxer.calculator;
+
+import java.util.List;
+
+/**
+ * Values and errors of one analysis by source position, for hover.
+ *
+ * <p>Kept from the evaluation: the nodes in post-order, the identity each was given by
+ * {@link SubexpressionTable} and the value of every identity, so a repeated subexpression shares
+ * its value. On the first lookup the source span of every node is worked out (its own token,
+ * its operands and the parentheses around them) and put in an {@link IntervalIndex} in
+ * pre-order, and the errors in another; each lookup after that is logarithmic.</p>
+ *
+ * <p>Offsets are those of the analyzed text, i.e. expression-local.</p>
+ */
+public final class Subexpressions {
+
+    private final String content;
+    private final LineIndex lineIndex;
+    private final List<CalculatorAstNode> nodes;
+    private final int[] identities;
+    private final List<?> values;
+    private final List<CalculatorAstAnalyzer.AstError> errors;
+    private volatile Index index;
+
+    /**
+     * @param nodes the evaluated tree in post-order
+     * @param identities identity of each node, by post-order position
+     * @param values value of each identity, null where evaluation failed
+     */
+    Subexpressions(String content, LineIndex lineIndex, List<CalculatorAstNode> nodes, int[] identities,
+            List<?> values, List<CalculatorAstAnalyzer.AstError> errors) {
+        this.content = content;
+        this.lineIndex = lineIndex;
+        this.nodes = nodes;
+        this.identities = identities;
+        this.values = values;
+        this.errors = errors;
+    }
+
+    /**
+     * Value of the innermost subexpression whose span contains {@code offset}, as shown to users;
+     * null when there is none or it has no value.
+     */
+    public String valueAt(int offset) {
+        Index index = index();
+        int found = index.nodes.find(offset);
+        if (found < 0) {
+            return null;
+        }
+        Object value = values.get(identities[index.preOrder[found]]);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * An error whose range contains {@code offset}, ends included; null when there is none.
+     */
+    public CalculatorAstAnalyzer.AstError errorAt(int offset) {
+        Index index = index();
+        int found = index.errors.find(offset);
+        return found < 0 ? null : errors.get(found);
+    }
+
+    private Index index() {
+        Index built = index;
+        if (built == null) {
+            synchronized (this) {
+                built = index;
+                if (built == null) {
+                    int[] preOrder = new int[nodes.size()];
+                    built = new Index(indexNodes(preOrder), preOrder, indexErrors());
+                    index = built;
+                }
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Index of the node spans in pre-order, with the post-order position of each pre-order one
+     * written to {@code preOrder}.
+     */
+    private IntervalIndex indexNodes(int[] preOrder) {
+        int size = nodes.size();
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        int[] sizes = new int[size];
+        for (int position = 0; position < size; position++) {
+            CalculatorAstNode node = nodes.get(position);
+            int start = node.start();
+            int end = node.end();
+            int subtree = 1;
+            // Operands precede their operator, the last one directly.
+            int child = position - 1;
+            for (int remaining = node.children().size(); remaining > 0; remaining--) {
+                start = Math.min(start, starts[child]);
+                end = Math.max(end, ends[child]);
+                subtree += sizes[child];
+                child -= sizes[child];
+            }
+            while (true) {
+                int before = skipWhitespaceBackward(start - 1);
+                int after = skipWhitespaceForward(end);
+                if (before < 0 || after >= content.length()
+                        || content.charAt(before) != '(' || content.charAt(after) != ')') {
+                    break;
+                }
+                start = before;
+                end = after + 1;
+            }
+            starts[position] = start;
+            ends[position] = end;
+            sizes[position] = subtree;
+        }
+
+        // Pre-order puts enclosing spans before the spans inside them.
+        int[] pending = new int[size];
+        int top = 0;
+        int count = 0;
+        if (size > 0) {
+            pending[top++] = size - 1;
+        }
+        while (top > 0) {
+            int position = pending[--top];
+            preOrder[count++] = position;
+            // Push the operands last to first, so the first is visited first.
+            int child = position - 1;
+            for (int remaining = nodes.get(position).children().size(); remaining > 0; remaining--) {
+                pending[top++] = child;
+                child -= sizes[child];
+            }
+        }
+        int[] preOrderStarts = new int[size];
+        int[] preOrderEnds = new int[size];
+        for (int index = 0; index < size; index++) {
+            preOrderStarts[index] = starts[preOrder[index]];
+            preOrderEnds[index] = ends[preOrder[index]];
+        }
+        return new IntervalIndex(preOrderStarts, preOrderEnds);
+    }
+
+    private IntervalIndex indexErrors() {
+        int[] starts = new int[errors.size()];
+        int[] ends = new int[errors.size()];
+        for (int index = 0; index < errors.size(); index++) {
+            CalculatorAstAnalyzer.AstError error = errors.get(index);
+            starts[index] = lineIndex.toOffset(error.range().getStart());
+            ends[index] = lineIndex.toOffset(error.range().getEnd()) + 1;
+        }
+        return new IntervalIndex(starts, ends);
+    }
+
+    private int skipWhitespaceBackward(int offset) {
+        while (offset >= 0 && Character.isWhitespace(content.charAt(offset))) {
+            offset--;
+        }
+        return offset;
+    }
+
+    private int skipWhitespaceForward(int offset) {
+        while (offset < content.length() && Character.isWhitespace(content.charAt(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private record Index(IntervalIndex nodes, int[] preOrder, IntervalIndex errors) {
+    }
+}
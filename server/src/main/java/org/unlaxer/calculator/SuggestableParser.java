@@ -2,6 +2,7 @@ package org.unlaxer.calculator;
 
 import java.util.List;
 
+import org.eclipse.lsp4j.CompletionItem;
 import org.eclipse.lsp4j.CompletionItemKind;
 import org.eclipse.lsp4j.InsertTextFormat;
 import org.eclipse.lsp4j.Position;
@@ -13,7 +14,38 @@ public interface SuggestableParser {
 
     List<String> getTriggerCharacters();
 
-    List<Suggestion> suggest(String content, Position position);
+    default List<Suggestion> suggest(String content, Position position) {
+        return suggest(content, LineIndex.of(content), position);
+    }
+
+    /**
+     * Suggest using a line index that was already built for this document version.
+     */
+    List<Suggestion> suggest(String content, LineIndex lineIndex, Position position);
+
+    /**
+     * LSP completion items for the position. Items may be shared between calls and must not be
+     * modified; they may leave out detail and documentation, which {@link #resolve} adds.
+     */
+    List<CompletionItem> complete(String content, LineIndex lineIndex, Position position);
+
+    /**
+     * LSP completion items for the word left of the cursor, for callers that read the word from
+     * the document themselves instead of handing over its whole text.
+     */
+    List<CompletionItem> completeWord(String word);
+
+    /**
+     * Whether {@code ch} can be part of the word that {@link #completeWord} completes.
+     */
+    boolean isWordCharacter(int ch);
+
+    /**
+     * The item with the details that {@link #complete} left out, for {@code completionItem/resolve}.
+     */
+    default CompletionItem resolve(CompletionItem item) {
+        return item;
+    }
 
     record Suggestion(
             String label,
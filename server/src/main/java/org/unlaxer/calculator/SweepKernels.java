@@ -0,0 +1,48 @@
+package org.unlaxer.calculator;
+
+/**
+ * Element-wise arithmetic over the first {@code length} elements of {@code double[]} blocks,
+ * used by {@link CalculatorSweep}. Binary operations store their result in {@code left}.
+ *
+ * <p>Only operations that IEEE 754 rounds exactly are here, so every implementation produces
+ * the same bits as the scalar {@link CalculatorBytecode} interpreter.</p>
+ */
+interface SweepKernels {
+
+    void add(double[] left, double[] right, int length);
+
+    void subtract(double[] left, double[] right, int length);
+
+    void multiply(double[] left, double[] right, int length);
+
+    /**
+     * Divide, with NaN where {@code right} is zero instead of an infinity.
+     */
+    void divide(double[] left, double[] right, int length);
+
+    void negate(double[] values, int length);
+
+    /**
+     * Square root; negative values become NaN, as {@link Math#sqrt(double)} makes them.
+     */
+    void sqrt(double[] values, int length);
+
+    /**
+     * Kernels on {@code jdk.incubator.vector} when they were built ({@code mvn -Pvector}) and the
+     * module is in the boot layer ({@code --add-modules jdk.incubator.vector}), scalar loops
+     * otherwise.
+     */
+    static SweepKernels select() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded by name so that nothing links against the module when it is absent.
+                return (SweepKernels) Class.forName("org.unlaxer.calculator.VectorSweepKernels")
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                // Fall back to scalar loops.
+            }
+        }
+        return new ScalarSweepKernels();
+    }
+}
@@ -0,0 +1,104 @@
+package org.unlaxer.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Lexed tokens of a text, stored as parallel {@code int} arrays.
+ *
+ * <p>Tokens are contiguous and cover the whole text, whitespace and invalid characters included,
+ * so token {@code i + 1} starts where token {@code i} ends. Produced by {@link CalculatorLexer}.</p>
+ */
+public final class TokenStream {
+
+    /** Number literal: {@code digit+ ('.' digit+)?}. */
+    public static final int NUMBER = 0;
+    /** Run of letters that is exactly a built-in function name. */
+    public static final int FUNCTION = 1;
+    /** Any other run of letters: a variable name. */
+    public static final int IDENTIFIER = 2;
+    public static final int PLUS = 3;
+    public static final int MINUS = 4;
+    public static final int STAR = 5;
+    public static final int SLASH = 6;
+    public static final int LEFT_PAREN = 7;
+    public static final int RIGHT_PAREN = 8;
+    /** Single symbol the grammar parses as an unknown binary operator. */
+    public static final int UNKNOWN_OPERATOR = 9;
+    /** Run of whitespace other than line breaks. */
+    public static final int WHITESPACE = 10;
+    /** A single {@code '\n'}. */
+    public static final int NEWLINE = 11;
+    /** Single character that starts no token, such as a stray {@code '.'}. */
+    public static final int INVALID = 12;
+
+    private int size;
+    private int[] kinds;
+    private int[] starts;
+    private int[] lengths;
+
+    TokenStream(int capacity) {
+        int initial = Math.max(capacity, 4);
+        this.kinds = new int[initial];
+        this.starts = new int[initial];
+        this.lengths = new int[initial];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int index) {
+        return kinds[index];
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    public int end(int index) {
+        return starts[index] + lengths[index];
+    }
+
+    /**
+     * Index of the token containing {@code offset}, or {@link #size()} when it is past the last token.
+     */
+    public int indexAt(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (end(middle) <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    void add(int kind, int start, int length) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        kinds[size] = kind;
+        starts[size] = start;
+        lengths[size] = length;
+        size++;
+    }
+
+    /**
+     * Append tokens {@code [from, to)} of {@code other}, moving their offsets by {@code shift}.
+     */
+    void addAll(TokenStream other, int from, int to, int shift) {
+        for (int index = from; index < to; index++) {
+            add(other.kinds[index], other.starts[index] + shift, other.lengths[index]);
+        }
+    }
+}
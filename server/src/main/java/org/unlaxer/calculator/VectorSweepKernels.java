@@ -0,0 +1,95 @@
+package org.unlaxer.calculator;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels on the incubating Vector API, at the platform's preferred vector width; the tail of
+ * each block that does not fill a vector runs as a scalar loop. Only created through
+ * {@link SweepKernels#select()}.
+ */
+final class VectorSweepKernels implements SweepKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void add(double[] left, double[] right, int length) {
+        int index = 0;
+        for (int bound = SPECIES.loopBound(length); index < bound; index += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, index)
+                    .add(DoubleVector.fromArray(SPECIES, right, index))
+                    .intoArray(left, index);
+        }
+        for (; index < length; index++) {
+            left[index] += right[index];
+        }
+    }
+
+    @Override
+    public void subtract(double[] left, double[] right, int length) {
+        int index = 0;
+        for (int bound = SPECIES.loopBound(length); index < bound; index += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, index)
+                    .sub(DoubleVector.fromArray(SPECIES, right, index))
+                    .intoArray(left, index);
+        }
+        for (; index < length; index++) {
+            left[index] -= right[index];
+        }
+    }
+
+    @Override
+    public void multiply(double[] left, double[] right, int length) {
+        int index = 0;
+        for (int bound = SPECIES.loopBound(length); index < bound; index += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, index)
+                    .mul(DoubleVector.fromArray(SPECIES, right, index))
+                    .intoArray(left, index);
+        }
+        for (; index < length; index++) {
+            left[index] *= right[index];
+        }
+    }
+
+    @Override
+    public void divide(double[] left, double[] right, int length) {
+        int index = 0;
+        for (int bound = SPECIES.loopBound(length); index < bound; index += SPECIES.length()) {
+            DoubleVector divisor = DoubleVector.fromArray(SPECIES, right, index);
+            VectorMask<Double> zero = divisor.eq(0.0d);
+            DoubleVector.fromArray(SPECIES, left, index)
+                    .div(divisor)
+                    .blend(Double.NaN, zero)
+                    .intoArray(left, index);
+        }
+        for (; index < length; index++) {
+            left[index] = right[index] == 0.0d ? Double.NaN : left[index] / right[index];
+        }
+    }
+
+    @Override
+    public void negate(double[] values, int length) {
+        int index = 0;
+        for (int bound = SPECIES.loopBound(length); index < bound; index += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, values, index).neg().intoArray(values, index);
+        }
+        for (; index < length; index++) {
+            values[index] = -values[index];
+        }
+    }
+
+    @Override
+    public void sqrt(double[] values, int length) {
+        int index = 0;
+        for (int bound = SPECIES.loopBound(length); index < bound; index += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, values, index)
+                    .lanewise(VectorOperators.SQRT)
+                    .intoArray(values, index);
+        }
+        for (; index < length; index++) {
+            values[index] = Math.sqrt(values[index]);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class AnalysisCacheTest {
+
+    @Test
+    public void countsHitsAndMisses() {
+        AnalysisCache cache = new AnalysisCache(AnalysisCache.DEFAULT_MAX_WEIGHT);
+        CalculatorLanguageServer.ExpressionState state = expression("1+2");
+
+        assertNull(cache.get("1+2"));
+        cache.put("1+2", state);
+        assertSame(state, cache.get(new String("1+2")));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedByWeight() {
+        AnalysisCache cache = new AnalysisCache(100);
+        String first = "1+".repeat(20) + "1";
+        String second = "2*".repeat(20) + "2";
+        String third = "3-".repeat(20) + "3";
+
+        cache.put(first, expression(first));
+        cache.put(second, expression(second));
+        cache.get(first);
+        cache.put(third, expression(third));
+
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(second));
+        assertEquals(first.length() + third.length(), cache.getWeight());
+    }
+
+    @Test
+    public void skipsEntriesLargerThanTheLimit() {
+        AnalysisCache cache = new AnalysisCache(100);
+        String text = "1+".repeat(100) + "1";
+
+        cache.put(text, expression(text));
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void analyzesConcurrentRequestsForTheSameTextOnce() throws Exception {
+        AnalysisCache cache = new AnalysisCache(AnalysisCache.DEFAULT_MAX_WEIGHT);
+        AtomicInteger analyses = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<CalculatorLanguageServer.ExpressionState> first = CompletableFuture.supplyAsync(
+                () -> cache.computeIfAbsent("1+2", text -> {
+                    analyses.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    return expression(text);
+                }));
+        started.await(10, TimeUnit.SECONDS);
+        CompletableFuture<CalculatorLanguageServer.ExpressionState> second = CompletableFuture.supplyAsync(
+                () -> cache.computeIfAbsent("1+2", text -> {
+                    analyses.incrementAndGet();
+                    return expression(text);
+                }));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, analyses.get());
+        assertEquals(1, cache.size());
+    }
+
+    private static CalculatorLanguageServer.ExpressionState expression(String text) {
+        CalculatorLanguageServer.ParseResult parseResult = CalculatorPrattParser.parse(text);
+        return new CalculatorLanguageServer.ExpressionState(0, 0, text.length(), parseResult,
+                new CalculatorAstAnalyzer().analyze(text, parseResult));
+    }
+}
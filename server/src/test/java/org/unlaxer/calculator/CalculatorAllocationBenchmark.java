@@ -0,0 +1,105 @@
+package org.unlaxer.calculator;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Manual benchmark for bytes allocated per parse.
+ *
+ * <p>Not a JUnit test; run it like {@link CalculatorParserBenchmark}. Allocation is read from
+ * {@code com.sun.management.ThreadMXBean#getCurrentThreadAllocatedBytes} around each call, after
+ * a warm-up so that allocation eliminated by the JIT is not counted. The literal rows compare
+ * reading every number through a copied {@code String} with reading it in place; the parse rows
+ * cover a whole parse and analysis per backend.</p>
+ */
+public final class CalculatorAllocationBenchmark {
+
+    private static final int TERMS = 1_000;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 50;
+
+    private CalculatorAllocationBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        String text = "12.5*3+".repeat(TERMS) + "1";
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+
+        Map<String, ToDoubleFunction<String>> cases = new LinkedHashMap<>();
+        cases.put("literals via String", CalculatorAllocationBenchmark::sumCopiedLiterals);
+        cases.put("literals in place", CalculatorAllocationBenchmark::sumLiteralsInPlace);
+        cases.put("combinator parse", source -> {
+            CalculatorLanguageServer server = new CalculatorLanguageServer(new AnalysisCache(0));
+            return server.parseDocument("file:///allocation.calc", source).consumedLength;
+        });
+        cases.put("pratt parse", source -> {
+            CalculatorLanguageServer.ParseResult parseResult = CalculatorPrattParser.parse(source);
+            return analyzer.analyze(source, parseResult).value();
+        });
+
+        System.out.printf("%-22s %14s %12s%n", "case", "bytes/parse", "bytes/char");
+        for (Map.Entry<String, ToDoubleFunction<String>> entry : cases.entrySet()) {
+            long bytes = measure(entry.getValue(), text);
+            System.out.printf("%-22s %14d %12.1f%n", entry.getKey(), bytes, (double) bytes / text.length());
+        }
+    }
+
+    private static double sumCopiedLiterals(String text) {
+        double sum = 0;
+        int start = -1;
+        for (int index = 0; index <= text.length(); index++) {
+            boolean literal = index < text.length() && isLiteralChar(text.charAt(index));
+            if (literal && start < 0) {
+                start = index;
+            } else if (false == literal && start >= 0) {
+                sum += Double.parseDouble(text.substring(start, index));
+                start = -1;
+            }
+        }
+        return sum;
+    }
+
+    private static double sumLiteralsInPlace(String text) {
+        double sum = 0;
+        int start = -1;
+        for (int index = 0; index <= text.length(); index++) {
+            boolean literal = index < text.length() && isLiteralChar(text.charAt(index));
+            if (literal && start < 0) {
+                start = index;
+            } else if (false == literal && start >= 0) {
+                sum += NumberLiterals.parse(text, start, index);
+                start = -1;
+            }
+        }
+        return sum;
+    }
+
+    private static boolean isLiteralChar(char current) {
+        return (current >= '0' && current <= '9') || current == '.';
+    }
+
+    private static long measure(ToDoubleFunction<String> parse, String text) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        double sink = 0;
+        try {
+            for (int iteration = 0; iteration < WARMUP; iteration++) {
+                sink += parse.applyAsDouble(text);
+            }
+            long best = Long.MAX_VALUE;
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                sink += parse.applyAsDouble(text);
+                best = Math.min(best, threads.getCurrentThreadAllocatedBytes() - before);
+            }
+            if (sink == 42) {
+                System.out.print("");
+            }
+            return best;
+        } catch (RuntimeException | StackOverflowError error) {
+            return -1;
+        }
+    }
+}
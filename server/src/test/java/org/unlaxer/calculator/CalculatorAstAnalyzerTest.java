@@ -4,12 +4,16 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.List;
+
 import org.junit.jupiter.api.Test;
 import org.unlaxer.Parsed;
 import org.unlaxer.StringSource;
 import org.unlaxer.Token;
 import org.unlaxer.TokenKind;
 import org.unlaxer.parser.Parser;
+import org.unlaxer.parser.ascii.MinusParser;
+import org.unlaxer.parser.ascii.PlusParser;
 import org.unlaxer.parser.elementary.MappedSingleCharacterParser;
 import org.unlaxer.parser.elementary.WordParser;
 
@@ -134,6 +138,31 @@ public class CalculatorAstAnalyzerTest {
                 .anyMatch(error -> error.message().contains("不明な二項演算子")));
     }
 
+    @Test
+    public void reportsErrorsAtTheirSourceOffsets() {
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+        // As the mapper leaves them: each token has its own source, and an operator token spans
+        // its operands.
+        Token division = createOperatorToken(new CalculatorParsers.DivisionParser(),
+                createNumberToken("3"), createNumberToken("0"));
+        Token sum = createOperatorToken(new PlusParser(), createNumberToken("12"), division);
+
+        CalculatorAstAnalyzer.AnalysisResult result = analyzer.analyze("(12)+3/0", createParseResult("(12)+3/0", sum));
+
+        assertEquals(List.of("0 で除算できません"), result.errors().stream().map(CalculatorAstAnalyzer.AstError::message).toList());
+        assertEquals(6, result.errors().get(0).range().getStart().getCharacter());
+        assertEquals(7, result.errors().get(0).range().getEnd().getCharacter());
+        assertEquals(4, result.ast().start());
+        assertEquals(1, result.ast().children().get(0).start());
+        assertEquals(3, result.ast().children().get(0).end());
+
+        Token unknown = createOperatorToken(new CalculatorParsers.UnknownOperatorParser(),
+                createNumberToken("1"), createNumberToken("2"));
+        CalculatorAstAnalyzer.AnalysisResult caret = analyzer.analyze("1^2", createParseResult("1^2", unknown));
+        assertEquals("(^ 1 2)", caret.ast().toSExpression());
+        assertEquals(1, caret.errors().get(0).range().getStart().getCharacter());
+    }
+
     @Test
     public void reportsUnknownFunction() {
         CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
@@ -176,6 +205,101 @@ public class CalculatorAstAnalyzerTest {
                 .anyMatch(error -> error.message().contains("0 以下の対数は計算できません")));
     }
 
+    @Test
+    public void reportsEveryCopyOfASharedSubexpression() {
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+        String content = "sqrt(2)*sqrt(2)+1/0+sqrt(2)*sqrt(2)+1/0";
+
+        CalculatorAstAnalyzer.AnalysisResult result = analyzer.analyze(content, CalculatorPrattParser.parse(content));
+
+        assertEquals(List.of(17, 37), result.errors().stream()
+                .filter(error -> error.message().equals("0 で除算できません"))
+                .map(error -> error.range().getStart().getCharacter())
+                .toList());
+        assertEquals(2, result.errors().size());
+
+        String shared = "(sqrt(2)*sqrt(2)+log(3))*(sqrt(2)*sqrt(2)+log(3))";
+        double expected = (Math.sqrt(2) * Math.sqrt(2) + Math.log(3)) * (Math.sqrt(2) * Math.sqrt(2) + Math.log(3));
+        assertEquals(expected, analyzer.analyze(shared, CalculatorPrattParser.parse(shared)).value());
+    }
+
+    @Test
+    public void leavesFreeVariablesUnevaluated() {
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+
+        CalculatorAstAnalyzer.AnalysisResult free = analyzer.analyze("2*x+t", CalculatorPrattParser.parse("2*x+t"));
+        assertTrue(free.errors().isEmpty());
+        assertTrue(false == free.hasValue());
+        assertEquals(List.of("x", "t"), free.ast().variableNames());
+
+        CalculatorAstAnalyzer.AnalysisResult uncalled = analyzer.analyze("sin+1", CalculatorPrattParser.parse("sin+1"));
+        assertEquals(1, uncalled.errors().size());
+        assertEquals("関数の後に開き括弧がありません: sin", uncalled.errors().get(0).message());
+        assertEquals(3, uncalled.errors().get(0).range().getEnd().getCharacter());
+    }
+
+    @Test
+    public void evaluatesInTheRequestedPrecision() {
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+        String content = "0.1+0.2-1/3*3";
+
+        CalculatorAstAnalyzer.AnalysisResult inDouble = analyzer.analyze(content, LineIndex.of(content),
+                CalculatorPrattParser.parse(content), Precision.DOUBLE);
+        CalculatorAstAnalyzer.AnalysisResult inDecimal = analyzer.analyze(content, LineIndex.of(content),
+                CalculatorPrattParser.parse(content), Precision.decimal(10));
+        CalculatorAstAnalyzer.AnalysisResult inRational = analyzer.analyze(content, LineIndex.of(content),
+                CalculatorPrattParser.parse(content), Precision.RATIONAL);
+
+        assertEquals(0.1 + 0.2 - 1.0 / 3 * 3, inDouble.value());
+        assertEquals(null, inDouble.exactValue());
+        assertEquals("-0.6999999999", inDecimal.displayValue());
+        assertEquals("-7/10", inRational.displayValue());
+        assertEquals(-0.7, inRational.value());
+
+        String roots = "sqrt(0.25)*log(1)+sqrt(2)/0";
+        CalculatorAstAnalyzer.AnalysisResult failed = analyzer.analyze(roots, LineIndex.of(roots),
+                CalculatorPrattParser.parse(roots), Precision.RATIONAL);
+        assertEquals(List.of("0 で除算できません"), failed.errors().stream().map(CalculatorAstAnalyzer.AstError::message).toList());
+        assertEquals("1/2", analyzer.analyze("sqrt(0.25)", LineIndex.of("sqrt(0.25)"),
+                CalculatorPrattParser.parse("sqrt(0.25)"), Precision.RATIONAL).displayValue());
+    }
+
+    @Test
+    public void evaluatesExactlyOnTheCombinatorBackend() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setPrecision(Precision.RATIONAL);
+
+        assertEquals("6", exactValue(server, "2*3"));
+        assertEquals("3", exactValue(server, "1+2"));
+        assertEquals("6", exactValue(server, "10-4"));
+        assertEquals("1/2", exactValue(server, "1/3+1/6"));
+        assertEquals("3/10", exactValue(server, "0.1+0.2"));
+        // Equal literals share one value; "3" and "30" do not.
+        assertEquals("-8", exactValue(server, "(1/3+1/3)*3-30/3"));
+
+        server.setPrecision(Precision.decimal(10));
+        assertEquals("0.3", exactValue(server, "0.1+0.2"));
+        assertEquals("-0.6999999999", exactValue(server, "0.1+0.2-1/3*3"));
+    }
+
+    @Test
+    public void readsExactLiteralsFromMappedTokens() {
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+        Token difference = createOperatorToken(new MinusParser(), createNumberToken("10"), createNumberToken("4"));
+        Token sum = createOperatorToken(new PlusParser(), createNumberToken("0.1"), createNumberToken("0.2"));
+
+        assertEquals("6", analyzer.analyze("10-4", LineIndex.of("10-4"), createParseResult("10-4", difference),
+                Precision.RATIONAL).displayValue());
+        assertEquals("0.3", analyzer.analyze("0.1+0.2", LineIndex.of("0.1+0.2"), createParseResult("0.1+0.2", sum),
+                Precision.decimal(10)).displayValue());
+    }
+
+    private static String exactValue(CalculatorLanguageServer server, String content) {
+        String uri = "file:///exact.calc";
+        server.parseDocument(uri, content);
+        return server.getDocuments().get(uri).analysis.displayValue();
+    }
+
     private CalculatorLanguageServer.ParseResult createParseResult(String content, Token token) {
         Parsed parsed = new Parsed(token);
         return new CalculatorLanguageServer.ParseResult(true, content.length(), content.length(), parsed);
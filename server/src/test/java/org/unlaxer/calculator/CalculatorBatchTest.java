@@ -0,0 +1,130 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CalculatorBatchTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void reportsResultsAndErrorsInInputOrder() throws IOException {
+        Path file = directory.resolve("corpus.calc");
+        Files.writeString(file, "1+2\n\n  2*(3\r\n4/0\nsqrt(16)\n2*x+t");
+
+        StringWriter out = new StringWriter();
+        int exitCode = run(out, "", "--parser", "pratt", file.toString());
+
+        assertEquals(1, exitCode);
+        assertEquals(String.join("\n",
+                file + ":1: = 3.0",
+                file + ":3:5: error: 開き括弧が閉じられていません",
+                file + ":4:2: error: 0 で除算できません",
+                file + ":5: = 4.0",
+                file + ":6:1: error: Unbound variables: x, t",
+                ""), out.toString());
+    }
+
+    @Test
+    public void keepsOrderAcrossManyChunks() throws IOException {
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int line = 1; line <= 20_000; line++) {
+            input.append(line).append("*2\n");
+            expected.append("<stdin>:").append(line).append(": = ").append(line * 2.0).append('\n');
+        }
+        Path file = directory.resolve("large.calc");
+        // Long enough for several mapped chunks.
+        Files.writeString(file, ("12345678+87654321\n").repeat(200_000));
+
+        StringWriter out = new StringWriter();
+        int exitCode = run(out, input.toString(), "--parser", "pratt", "--threads", "4", "-", file.toString());
+
+        assertEquals(0, exitCode);
+        String[] lines = out.toString().split("\n");
+        assertEquals(220_000, lines.length);
+        assertEquals(expected.toString(), String.join("\n", Arrays.copyOf(lines, 20_000)) + "\n");
+        assertEquals(file + ":200000: = 9.9999999E7", lines[lines.length - 1]);
+    }
+
+    @Test
+    public void evaluatesInTheRequestedPrecision() {
+        StringWriter out = new StringWriter();
+        int exitCode = run(out, "1/3+1/6\n0.1*3\n", "--parser", "pratt", "--precision", "rational");
+
+        assertEquals(0, exitCode);
+        assertEquals("<stdin>:1: = 1/2\n<stdin>:2: = 3/10\n", out.toString());
+        assertEquals(2, run(new StringWriter(), "", "--precision", "quad"));
+    }
+
+    @Test
+    public void bytecodeEvaluatorWritesTheSameOutput() throws IOException {
+        Path file = directory.resolve("corpus.calc");
+        Files.writeString(file, "1+2\n\n  2*(3\r\n4/0\nsqrt(16)-log(2)\n2*x+t\nsqrt(1-2)+1/0\n-(-3)*+4");
+
+        StringWriter tree = new StringWriter();
+        StringWriter bytecode = new StringWriter();
+        int treeExitCode = run(tree, "", "--parser", "pratt", file.toString());
+        int bytecodeExitCode = run(bytecode, "", "--parser", "pratt", "--evaluator", "bytecode", file.toString());
+
+        assertEquals(1, bytecodeExitCode);
+        assertEquals(treeExitCode, bytecodeExitCode);
+        assertEquals(tree.toString(), bytecode.toString());
+        assertEquals(2, run(new StringWriter(), "", "--evaluator", "bytecode", "--precision", "rational"));
+        assertEquals(2, run(new StringWriter(), "", "--evaluator", "jit"));
+    }
+
+    @Test
+    public void rejectsUnknownOptions() {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitCode = CalculatorBatch.run(new String[] {"--fast"}, new ByteArrayInputStream(new byte[0]),
+                new StringWriter(), new PrintStream(err, true, StandardCharsets.UTF_8));
+
+        assertEquals(2, exitCode);
+        assertEquals(CalculatorBatch.USAGE + System.lineSeparator(), err.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void failsWithCode2WhenOutputCannotBeWritten() {
+        Writer closed = new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitCode = CalculatorBatch.run(new String[] {"--parser", "pratt"},
+                new ByteArrayInputStream("1+2\n".getBytes(StandardCharsets.UTF_8)), closed,
+                new PrintStream(err, true, StandardCharsets.UTF_8));
+
+        assertEquals(2, exitCode);
+        assertEquals("calculator batch: Broken pipe" + System.lineSeparator(), err.toString(StandardCharsets.UTF_8));
+    }
+
+    private static int run(StringWriter out, String stdin, String... args) {
+        return CalculatorBatch.run(args, new ByteArrayInputStream(stdin.getBytes(StandardCharsets.UTF_8)), out,
+                new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8));
+    }
+}
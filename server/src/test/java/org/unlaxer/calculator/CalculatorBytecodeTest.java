@@ -0,0 +1,71 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CalculatorBytecodeTest {
+
+    private static final String[] OPERATORS = {"+", "-", "*", "/"};
+    private static final String[] FUNCTIONS = {"sin", "cos", "tan", "sqrt", "log"};
+
+    private final CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+
+    @Test
+    public void matchesTheTreeWalker() {
+        Random random = new Random(7);
+        int faults = 0;
+        for (int count = 0; count < 2000; count++) {
+            String text = randomExpression(random, 4);
+            CalculatorAstAnalyzer.AnalysisResult analysis = analyzer.analyze(text, CalculatorPrattParser.parse(text));
+            CalculatorBytecode bytecode = CalculatorBytecode.compile(analysis.ast());
+            if (analysis.hasValue()) {
+                assertEquals(analysis.value(), bytecode.run(), text);
+                continue;
+            }
+            // The interpreter stops at the first error the tree walker reports.
+            CalculatorBytecode.Fault fault = assertThrows(CalculatorBytecode.Fault.class, bytecode::run, text);
+            assertTrue(analysis.errors().stream().anyMatch(error -> error.message().equals(fault.getMessage())
+                    && error.range().getStart().getCharacter() == fault.start()), text);
+            faults++;
+        }
+        assertTrue(faults > 0);
+    }
+
+    @Test
+    public void mapsFaultsToSourceRanges() {
+        CalculatorBytecode bytecode = CalculatorBytecode.compile(CalculatorPrattParser.parse("1+sqrt(2-3)").ast);
+
+        CalculatorBytecode.Fault fault = assertThrows(CalculatorBytecode.Fault.class, bytecode::run);
+        assertEquals("負の数の平方根は計算できません", fault.getMessage());
+        assertEquals(2, fault.start());
+        assertEquals(6, fault.end());
+    }
+
+    @Test
+    public void encodesLongChainsFlat() {
+        String text = "+1-2".repeat(250_000);
+        CalculatorBytecode bytecode = CalculatorBytecode.compile(CalculatorPrattParser.parse(text).ast);
+
+        assertEquals(-250_000.0, bytecode.run(new double[bytecode.maxStack()]));
+        assertEquals(2, bytecode.maxStack());
+        assertNull(CalculatorBytecode.compile(CalculatorRecoveringParser.parse("1*").ast()));
+    }
+
+    private static String randomExpression(Random random, int depth) {
+        int choice = depth == 0 ? 0 : random.nextInt(6);
+        return switch (choice) {
+            case 0, 1 -> Integer.toString(random.nextInt(10));
+            case 2 -> "-" + randomExpression(random, depth - 1);
+            case 3 -> "(" + randomExpression(random, depth - 1) + ")";
+            case 4 -> FUNCTIONS[random.nextInt(FUNCTIONS.length)] + "(" + randomExpression(random, depth - 1) + ")";
+            default -> randomExpression(random, depth - 1) + OPERATORS[random.nextInt(OPERATORS.length)]
+                    + randomExpression(random, depth - 1);
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package org.unlaxer.calculator;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Manual benchmark for re-evaluating an already parsed expression.
+ *
+ * <p>Not a JUnit test; run it like {@link CalculatorParserBenchmark}. Each row evaluates the
+ * same AST repeatedly and reports the mean time and the bytes allocated per evaluation, the
+ * latter read as in {@link CalculatorAllocationBenchmark}. The tree walker is
+ * {@link CalculatorAstAnalyzer#analyze} on a parse that already carries its AST; the bytecode
+ * rows run the interpreter of {@link CalculatorBytecode}, compiled once outside the timing.
+ * The repeated rows use input in which one subexpression occurs many times, which the tree
+ * walker evaluates once. The decimal and rational rows run the tree walker in those
+ * {@link Precision} modes; they are left out for the repeated input, whose product of forty
+ * converted function results grows fractions of thousands of bits.</p>
+ */
+public final class CalculatorEvaluationBenchmark {
+
+    private static final String TEXT = "sqrt(12.5*3+4)/(2-sin(0.5))+log(10)*3-7/2+cos(1)*(1+2*(3-4/5))";
+    /** Machine-generated shape: one subexpression copied many times. */
+    private static final String REPEATED = "(sqrt(2)*sin(1)+log(3)/cos(2))*".repeat(40) + "1";
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 200_000;
+
+    private CalculatorEvaluationBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        System.out.printf("%-20s %12s %12s %s%n", "case", "ns/eval", "bytes/eval", "value");
+        run("", TEXT, true);
+        run("repeated ", REPEATED, false);
+    }
+
+    private static void run(String prefix, String text, boolean exact) {
+        CalculatorLanguageServer.ParseResult parseResult = CalculatorPrattParser.parse(text);
+        CalculatorAstAnalyzer analyzer = new CalculatorAstAnalyzer();
+        LineIndex lineIndex = LineIndex.of(text);
+        CalculatorBytecode bytecode = CalculatorBytecode.compile(parseResult.ast);
+        double[] stack = new double[bytecode.maxStack()];
+
+        Map<String, DoubleSupplier> cases = new LinkedHashMap<>();
+        cases.put(prefix + "tree walker", () -> analyzer.analyze(text, lineIndex, parseResult).value());
+        if (exact) {
+            Precision decimal = Precision.decimal(Precision.DEFAULT_DECIMAL_DIGITS);
+            cases.put(prefix + "decimal", () -> analyzer.analyze(text, lineIndex, parseResult, decimal).value());
+            cases.put(prefix + "rational",
+                    () -> analyzer.analyze(text, lineIndex, parseResult, Precision.RATIONAL).value());
+        }
+        cases.put(prefix + "bytecode", () -> bytecode.run(stack));
+
+        for (Map.Entry<String, DoubleSupplier> entry : cases.entrySet()) {
+            measure(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void measure(String name, DoubleSupplier evaluation) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        double sink = 0;
+        for (int iteration = 0; iteration < WARMUP; iteration++) {
+            sink += evaluation.getAsDouble();
+        }
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            sink += evaluation.getAsDouble();
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+        System.out.printf("%-20s %12.1f %12.1f %s%n", name, (double) elapsed / ITERATIONS,
+                (double) bytes / ITERATIONS, evaluation.getAsDouble());
+        if (sink == 42) {
+            System.out.print("");
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonObject;
+
+import org.eclipse.lsp4j.CompletionItem;
+import org.eclipse.lsp4j.CompletionParams;
+import org.eclipse.lsp4j.DidChangeTextDocumentParams;
+import org.eclipse.lsp4j.DidOpenTextDocumentParams;
+import org.eclipse.lsp4j.DocumentDiagnosticParams;
+import org.eclipse.lsp4j.DocumentDiagnosticReport;
+import org.eclipse.lsp4j.Hover;
+import org.eclipse.lsp4j.HoverParams;
+import org.eclipse.lsp4j.InitializeParams;
+import org.eclipse.lsp4j.MessageActionItem;
+import org.eclipse.lsp4j.MessageParams;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.PreviousResultId;
+import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.ShowMessageRequestParams;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.TextDocumentItem;
+import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
+import org.eclipse.lsp4j.WorkspaceDiagnosticParams;
+import org.eclipse.lsp4j.WorkspaceDocumentDiagnosticReport;
+import org.eclipse.lsp4j.services.LanguageClient;
+import org.junit.jupiter.api.Test;
+
+public class CalculatorLanguageServerTest {
+
+    @Test
+    public void appliesIncrementalChanges() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        String uri = "file:///incremental.calc";
+
+        server.getTextDocumentService().didOpen(new DidOpenTextDocumentParams(
+                new TextDocumentItem(uri, "calculator", 1, "1+2*3")));
+        server.getTextDocumentService().didChange(new DidChangeTextDocumentParams(
+                new VersionedTextDocumentIdentifier(uri, 2),
+                List.of(new TextDocumentContentChangeEvent(
+                        new Range(new Position(0, 2), new Position(0, 3)), "4"))));
+
+        CalculatorLanguageServer.DocumentState state = server.getDocument(uri).join();
+        assertEquals(2, state.version);
+        assertEquals("1+4*3", state.content);
+        assertEquals(13.0d, state.analysis.value(), 0.0001d);
+    }
+
+    @Test
+    public void completesTheWordTypedIntoTheBuffer() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        String uri = "file:///completion.calc";
+
+        server.getTextDocumentService().didOpen(new DidOpenTextDocumentParams(
+                new TextDocumentItem(uri, "calculator", 1, "1\n2+s")));
+        server.getTextDocumentService().didChange(new DidChangeTextDocumentParams(
+                new VersionedTextDocumentIdentifier(uri, 2),
+                List.of(new TextDocumentContentChangeEvent(
+                        new Range(new Position(1, 3), new Position(1, 3)), "Q"))));
+
+        List<CompletionItem> items = server.getTextDocumentService().completion(new CompletionParams(
+                new TextDocumentIdentifier(uri), new Position(1, 4))).join().getLeft();
+        assertEquals(List.of("sqrt"), items.stream().map(CompletionItem::getLabel).toList());
+        assertTrue(server.getTextDocumentService().completion(new CompletionParams(
+                new TextDocumentIdentifier(uri), new Position(2, 0))).join().getLeft().isEmpty());
+    }
+
+    @Test
+    public void evaluatesEachLineInLinesMode() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setDocumentMode(CalculatorLanguageServer.DocumentMode.LINES);
+        String uri = "file:///lines.calc";
+
+        server.parseDocument(uri, "1+2\n\n3*4\n");
+        CalculatorLanguageServer.DocumentState state = server.getDocuments().get(uri);
+
+        assertEquals(2, state.expressions.size());
+        assertEquals(0, state.expressions.get(0).line);
+        assertEquals(3.0d, state.expressions.get(0).analysis.value(), 0.0001d);
+        assertEquals(2, state.expressions.get(1).line);
+        assertEquals(12.0d, state.expressions.get(1).analysis.value(), 0.0001d);
+        assertTrue(state.analysis.errors().isEmpty());
+    }
+
+    @Test
+    public void reportsErrorsOnTheirOwnLineInLinesMode() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setDocumentMode(CalculatorLanguageServer.DocumentMode.LINES);
+        String uri = "file:///line-errors.calc";
+
+        server.parseDocument(uri, "1+2\n  (1+2");
+        CalculatorLanguageServer.DocumentState state = server.getDocuments().get(uri);
+
+        assertEquals(3.0d, state.expressions.get(0).analysis.value(), 0.0001d);
+        CalculatorAstAnalyzer.AstError error = state.expressions.get(1).analysis.errors().get(0);
+        assertEquals(new Position(1, 2), error.range().getStart());
+    }
+
+    @Test
+    public void reusesUnchangedLinesInLinesMode() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setDocumentMode(CalculatorLanguageServer.DocumentMode.LINES);
+        String uri = "file:///cache.calc";
+
+        server.parseDocument(uri, "1+2\n3*4");
+        CalculatorLanguageServer.DocumentState before = server.getDocuments().get(uri);
+        server.parseDocument(uri, "1+2\n3*5");
+        CalculatorLanguageServer.DocumentState after = server.getDocuments().get(uri);
+
+        assertSame(before.expressions.get(0).parseResult, after.expressions.get(0).parseResult);
+        assertNotSame(before.expressions.get(1).parseResult, after.expressions.get(1).parseResult);
+        assertEquals(15.0d, after.expressions.get(1).analysis.value(), 0.0001d);
+    }
+
+    @Test
+    public void reusesAnalysisOfRepeatedText() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        String uri = "file:///undo.calc";
+
+        server.parseDocument(uri, "1+2*3");
+        CalculatorLanguageServer.DocumentState original = server.getDocuments().get(uri);
+        server.parseDocument(uri, "1+2*30");
+        server.parseDocument(uri, "1+2*3");
+        CalculatorLanguageServer.DocumentState undone = server.getDocuments().get(uri);
+
+        assertSame(original.parseResult, undone.parseResult);
+        assertSame(original.analysis, undone.analysis);
+        assertEquals(1, server.getAnalysisCache().getHits());
+        assertEquals(2, server.getAnalysisCache().getMisses());
+    }
+
+    @Test
+    public void analyzesOnlyTheNewestVersion() {
+        List<Runnable> queued = new ArrayList<>();
+        CalculatorLanguageServer server = new CalculatorLanguageServer(
+                new AnalysisCache(AnalysisCache.DEFAULT_MAX_WEIGHT), queued::add);
+        String uri = "file:///async.calc";
+
+        server.getTextDocumentService().didOpen(new DidOpenTextDocumentParams(
+                new TextDocumentItem(uri, "calculator", 1, "1+2")));
+        server.getTextDocumentService().didChange(new DidChangeTextDocumentParams(
+                new VersionedTextDocumentIdentifier(uri, 2),
+                List.of(new TextDocumentContentChangeEvent(
+                        new Range(new Position(0, 2), new Position(0, 3)), "5"))));
+        CompletableFuture<Hover> hover = server.getTextDocumentService().hover(
+                new HoverParams(new TextDocumentIdentifier(uri), new Position(0, 1)));
+
+        assertEquals("1+5", server.getText(uri));
+        assertFalse(hover.isDone());
+        // The newer analysis runs first; the older one then finds itself cancelled.
+        queued.get(1).run();
+        queued.get(0).run();
+
+        assertEquals("= 6.0", hover.join().getContents().getRight().getValue());
+        assertEquals(2, server.getDocuments().get(uri).version);
+        assertEquals(1, server.getAnalysisCache().getMisses());
+    }
+
+    @Test
+    public void sharesAnalysesBetweenSessions() {
+        for (CalculatorLanguageServer.ParserBackend backend : CalculatorLanguageServer.ParserBackend.values()) {
+            SharedAnalysisCaches caches = new SharedAnalysisCaches();
+            CalculatorLanguageServer first = new CalculatorLanguageServer(caches, Runnable::run);
+            CalculatorLanguageServer second = new CalculatorLanguageServer(caches, Runnable::run);
+            CalculatorLanguageServer rational = new CalculatorLanguageServer(caches, Runnable::run);
+            first.setParserBackend(backend);
+            second.setParserBackend(backend);
+            rational.setParserBackend(backend);
+            rational.setPrecision(Precision.RATIONAL);
+
+            first.parseDocument("file:///a/library.calc", "1/3+1/6");
+            second.parseDocument("file:///b/library.calc", "1/3+1/6");
+            rational.parseDocument("file:///c/library.calc", "1/3+1/6");
+
+            assertSame(first.getAnalysisCache(), second.getAnalysisCache());
+            assertSame(first.getDocuments().get("file:///a/library.calc").analysis,
+                    second.getDocuments().get("file:///b/library.calc").analysis);
+            assertEquals(1, first.getAnalysisCache().getMisses());
+            assertEquals(1, first.getAnalysisCache().getHits());
+            // Other settings analyze differently and use a cache of their own.
+            assertNotSame(first.getAnalysisCache(), rational.getAnalysisCache());
+            assertEquals("1/2", rational.getDocuments().get("file:///c/library.calc").analysis.displayValue());
+        }
+    }
+
+    @Test
+    public void keepsSharedCachesWithinOneBudget() {
+        SharedAnalysisCaches caches = new SharedAnalysisCaches(1000);
+        for (int depth = 1; depth <= 2 * SharedAnalysisCaches.MAX_CACHES; depth++) {
+            CalculatorLanguageServer session = new CalculatorLanguageServer(caches, Runnable::run);
+            session.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+            session.setMaxNestingDepth(depth);
+            session.parseDocument("file:///session.calc", "1+".repeat(20) + depth);
+
+            assertTrue(caches.getWeight() <= 1000, "weight after " + depth + " settings");
+        }
+
+        // Clients cannot ask for deeper nesting than the parsers' stacks are meant for.
+        CalculatorLanguageServer session = new CalculatorLanguageServer(caches, Runnable::run);
+        InitializeParams params = new InitializeParams();
+        JsonObject options = new JsonObject();
+        options.addProperty("maxNestingDepth", 1_000_000_000);
+        params.setInitializationOptions(options);
+        session.initialize(params).join();
+        assertEquals(CalculatorLanguageServer.MAX_REQUESTED_NESTING_DEPTH, session.getMaxNestingDepth());
+    }
+
+    @Test
+    public void rejectsDecimalDigitsPastTheLimit() {
+        CalculatorLanguageServer accepted = new CalculatorLanguageServer();
+        accepted.initialize(decimalParams(Precision.MAX_DECIMAL_DIGITS)).join();
+        assertEquals(Precision.decimal(Precision.MAX_DECIMAL_DIGITS), accepted.getPrecision());
+
+        // Rejected like any other invalid precision: the session keeps computing in double.
+        CalculatorLanguageServer rejected = new CalculatorLanguageServer();
+        rejected.initialize(decimalParams(1_000_000_000)).join();
+        assertEquals(Precision.DOUBLE, rejected.getPrecision());
+        assertThrows(IllegalArgumentException.class,
+                () -> Precision.parse("decimal:" + (Precision.MAX_DECIMAL_DIGITS + 1)));
+    }
+
+    private static InitializeParams decimalParams(int digits) {
+        InitializeParams params = new InitializeParams();
+        JsonObject options = new JsonObject();
+        options.addProperty("precision", "decimal");
+        options.addProperty("decimalDigits", digits);
+        params.setInitializationOptions(options);
+        return params;
+    }
+
+    @Test
+    public void stopsAnalyzingPastTheSessionLimit() {
+        RecordingClient client = new RecordingClient();
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setDiagnosticsDelayMillis(0);
+        server.setMaxDocumentWeight(10);
+        server.connect(client);
+
+        server.parseDocument("file:///small.calc", "1+2");
+        assertNull(server.parseDocument("file:///large.calc", "1+2+3+4+5+6"));
+
+        assertEquals(14, server.getDocumentWeight());
+        assertNull(server.getDocuments().get("file:///large.calc"));
+        assertEquals(1, client.published.get(1).getDiagnostics().size());
+
+        // Closing documents frees their share of the limit.
+        server.closeDocument("file:///small.calc");
+        assertEquals(11, server.getDocumentWeight());
+        server.setMaxDocumentWeight(11);
+        server.parseDocument("file:///large.calc", "1+2+3+4+5+6");
+        assertEquals(21.0d, server.getDocuments().get("file:///large.calc").analysis.value(), 0.0001d);
+    }
+
+    @Test
+    public void hoversTheInnermostSubexpression() {
+        for (CalculatorLanguageServer.ParserBackend backend : CalculatorLanguageServer.ParserBackend.values()) {
+            CalculatorLanguageServer server = new CalculatorLanguageServer();
+            server.setParserBackend(backend);
+            server.setDocumentMode(CalculatorLanguageServer.DocumentMode.LINES);
+            String uri = "file:///hover.calc";
+            server.parseDocument(uri, "1\n2*(3+4)-sqrt(16)\n1/0+5");
+
+            assertEquals("= 2.0", hover(server, uri, 1, 0), backend.name());
+            assertEquals("= 7.0", hover(server, uri, 1, 4), backend.name());
+            assertEquals("= 7.0", hover(server, uri, 1, 6), backend.name());
+            assertEquals("= 3.0", hover(server, uri, 1, 3), backend.name());
+            assertEquals("= 14.0", hover(server, uri, 1, 1), backend.name());
+            assertEquals("= 10.0", hover(server, uri, 1, 7), backend.name());
+            assertEquals("= 4.0", hover(server, uri, 1, 9), backend.name());
+            assertEquals("= 16.0", hover(server, uri, 1, 13), backend.name());
+            // Past the last character: the whole line.
+            assertEquals("= 10.0", hover(server, uri, 1, 16), backend.name());
+            // The error under the cursor, and the values around it.
+            assertEquals(server.getDocuments().get(uri).expressions.get(2).analysis.errors().get(0).message(),
+                    hover(server, uri, 2, 1), backend.name());
+            assertEquals("= 5.0", hover(server, uri, 2, 4), backend.name());
+        }
+    }
+
+    private static String hover(CalculatorLanguageServer server, String uri, int line, int character) {
+        Hover hover = server.getTextDocumentService().hover(
+                new HoverParams(new TextDocumentIdentifier(uri), new Position(line, character))).join();
+        return hover == null ? null : hover.getContents().getRight().getValue();
+    }
+
+    @Test
+    public void skipsUnchangedDiagnostics() {
+        RecordingClient client = new RecordingClient();
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        server.setDiagnosticsDelayMillis(0);
+        server.connect(client);
+        String uri = "file:///unchanged.calc";
+
+        server.parseDocument(uri, "1+2");
+        server.parseDocument(uri, "1+3");
+        server.parseDocument(uri, "1+");
+        server.parseDocument(uri, "1+");
+
+        assertEquals(List.of(0, 2), client.published.stream().map(PublishDiagnosticsParams::getVersion).toList());
+        assertEquals(1, client.published.get(1).getDiagnostics().size());
+    }
+
+    @Test
+    public void coalescesDiagnosticsWithinTheWindow() throws Exception {
+        RecordingClient client = new RecordingClient();
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        server.setDiagnosticsDelayMillis(300);
+        server.connect(client);
+        String uri = "file:///coalesced.calc";
+
+        server.parseDocument(uri, "1+");
+        server.parseDocument(uri, "1+2");
+        server.parseDocument(uri, "(1+2");
+        client.first.get(10, TimeUnit.SECONDS);
+        Thread.sleep(600);
+
+        assertEquals(1, client.published.size());
+        assertEquals(2, client.published.get(0).getVersion());
+        assertEquals(1, client.published.get(0).getDiagnostics().size());
+    }
+
+    @Test
+    public void answersPulledDiagnosticsUnchangedWhileTheyAreTheSame() {
+        RecordingClient client = new RecordingClient();
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        server.setDiagnosticsDelayMillis(0);
+        server.setPullDiagnostics(true);
+        server.connect(client);
+        String uri = "file:///pulled.calc";
+
+        server.parseDocument(uri, "1+");
+        DocumentDiagnosticReport first = pull(server, uri, null);
+        String resultId = first.getLeft().getResultId();
+        assertEquals(1, first.getLeft().getItems().size());
+
+        // Another version with the same diagnostics.
+        server.parseDocument(uri, "2+");
+        DocumentDiagnosticReport unchanged = pull(server, uri, resultId);
+        assertTrue(unchanged.isRight());
+        assertNotEquals(resultId, unchanged.getRight().getResultId());
+
+        server.parseDocument(uri, "2+3");
+        DocumentDiagnosticReport fixed = pull(server, uri, unchanged.getRight().getResultId());
+        assertTrue(fixed.getLeft().getItems().isEmpty());
+
+        // A report whose diagnostics differ is not unchanged, even when the hashes are equal.
+        server.parseDocument(uri, "3+");
+        String current = pull(server, uri, null).getLeft().getResultId();
+        String fixedVersion = fixed.getLeft().getResultId().substring(0, fixed.getLeft().getResultId().indexOf(':'));
+        DocumentDiagnosticReport colliding = pull(server, uri,
+                fixedVersion + current.substring(current.indexOf(':')));
+        assertEquals(1, colliding.getLeft().getItems().size());
+        // Nothing is pushed to a client that pulls.
+        assertTrue(client.published.isEmpty());
+    }
+
+    @Test
+    public void pullsDiagnosticsOfTheWorkspace() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        server.setPullDiagnostics(true);
+        server.parseDocument("file:///a.calc", "1+");
+        server.parseDocument("file:///b.calc", "1*");
+        String resultId = pull(server, "file:///a.calc", null).getLeft().getResultId();
+
+        List<WorkspaceDocumentDiagnosticReport> items = server.getWorkspaceService().diagnostic(
+                new WorkspaceDiagnosticParams(List.of(new PreviousResultId("file:///a.calc", resultId))))
+                .join().getItems();
+
+        assertEquals(2, items.size());
+        for (WorkspaceDocumentDiagnosticReport item : items) {
+            if (item.isRight()) {
+                assertEquals("file:///a.calc", item.getRight().getUri());
+            } else {
+                assertEquals("file:///b.calc", item.getLeft().getUri());
+                assertEquals(1, item.getLeft().getItems().size());
+            }
+        }
+        assertEquals(1, items.stream().filter(WorkspaceDocumentDiagnosticReport::isRight).count());
+    }
+
+    private static DocumentDiagnosticReport pull(CalculatorLanguageServer server, String uri, String previousResultId) {
+        DocumentDiagnosticParams params = new DocumentDiagnosticParams(new TextDocumentIdentifier(uri));
+        params.setPreviousResultId(previousResultId);
+        return server.getTextDocumentService().diagnostic(params).join();
+    }
+
+    private static final class RecordingClient implements LanguageClient {
+
+        final List<PublishDiagnosticsParams> published = new ArrayList<>();
+        final CompletableFuture<PublishDiagnosticsParams> first = new CompletableFuture<>();
+
+        @Override
+        public synchronized void publishDiagnostics(PublishDiagnosticsParams diagnostics) {
+            published.add(diagnostics);
+            first.complete(diagnostics);
+        }
+
+        @Override
+        public void telemetryEvent(Object object) {
+        }
+
+        @Override
+        public void showMessage(MessageParams messageParams) {
+        }
+
+        @Override
+        public CompletableFuture<MessageActionItem> showMessageRequest(ShowMessageRequestParams requestParams) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void logMessage(MessageParams message) {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CalculatorLexerTest {
+
+    private static final String[] FRAGMENTS = {
+            "1", "23", "4.5", ".", "+", "-", "*", "/", "^", "(", ")", "sin", "sqrt", "x", " ", "\n"
+    };
+
+    @Test
+    public void classifiesTokens() {
+        TokenStream tokens = CalculatorLexer.lex("sqrt(1.5)*-sinx ^2.\n");
+
+        assertEquals(List.of(
+                "FUNCTION sqrt", "LEFT_PAREN (", "NUMBER 1.5", "RIGHT_PAREN )", "STAR *", "MINUS -",
+                "IDENTIFIER sinx", "WHITESPACE  ", "UNKNOWN_OPERATOR ^", "NUMBER 2", "INVALID .", "NEWLINE \n"),
+                describe(tokens, "sqrt(1.5)*-sinx ^2.\n"));
+    }
+
+    @Test
+    public void findsTheTokenAtAnOffset() {
+        TokenStream tokens = CalculatorLexer.lex("12+345");
+
+        assertEquals(0, tokens.indexAt(1));
+        assertEquals(1, tokens.indexAt(2));
+        assertEquals(2, tokens.indexAt(5));
+        assertEquals(3, tokens.indexAt(6));
+    }
+
+    @Test
+    public void relexMatchesFullLexAfterRandomEdits() {
+        Random random = new Random(5);
+        String text = randomText(random, 40);
+        TokenStream tokens = CalculatorLexer.lex(text);
+        for (int edit = 0; edit < 5_000; edit++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + random.nextInt(4));
+            String edited = text.substring(0, start) + randomText(random, random.nextInt(3)) + text.substring(end);
+
+            tokens = CalculatorLexer.relex(tokens, text, edited);
+            text = edited;
+
+            assertEquals(describe(CalculatorLexer.lex(text), text), describe(tokens, text), text);
+        }
+    }
+
+    private static String randomText(Random random, int fragments) {
+        StringBuilder text = new StringBuilder();
+        for (int index = 0; index < fragments; index++) {
+            text.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return text.toString();
+    }
+
+    private static List<String> describe(TokenStream tokens, String text) {
+        String[] names = {
+                "NUMBER", "FUNCTION", "IDENTIFIER", "PLUS", "MINUS", "STAR", "SLASH", "LEFT_PAREN",
+                "RIGHT_PAREN", "UNKNOWN_OPERATOR", "WHITESPACE", "NEWLINE", "INVALID"
+        };
+        List<String> described = new ArrayList<>();
+        for (int index = 0; index < tokens.size(); index++) {
+            described.add(names[tokens.kind(index)] + " " + text.substring(tokens.start(index), tokens.end(index)));
+        }
+        return described;
+    }
+}
@@ -0,0 +1,77 @@
+package org.unlaxer.calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Manual benchmark for deeply nested input on an ordinary thread stack.
+ *
+ * <p>Not a JUnit test; run it like {@link CalculatorParserBenchmark}, but without enlarging the
+ * stack. Each shape is analyzed by the server at nesting depths up to one million, once with the
+ * default {@link CalculatorLanguageServer#DEFAULT_MAX_NESTING_DEPTH} and once with the limit
+ * lifted. With the limit, over-deep input yields one diagnostic in time linear in its length;
+ * without it, the recursive parsers overflow the stack, reported as {@code overflow}. The
+ * left-deep sum is not nested at all and is evaluated completely at every length, since AST
+ * mapping and evaluation use explicit stacks.</p>
+ */
+public final class CalculatorNestingBenchmark {
+
+    private static final int[] DEPTHS = {1_000, 10_000, 100_000, 1_000_000};
+    private static final int ITERATIONS = 5;
+
+    private CalculatorNestingBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        Map<String, Function<Integer, String>> shapes = new LinkedHashMap<>();
+        shapes.put("parentheses", depth -> "(".repeat(depth) + "1" + ")".repeat(depth));
+        shapes.put("unary chain", depth -> "-".repeat(depth) + "1");
+        shapes.put("functions", depth -> "sqrt(".repeat(depth) + "1" + ")".repeat(depth));
+        shapes.put("left-deep sum", depth -> "1+".repeat(depth) + "1");
+
+        System.out.printf("%-14s %-11s %-8s %8s %14s %10s  %s%n",
+                "shape", "backend", "limit", "depth", "ns/analysis", "ns/char", "outcome");
+        for (Map.Entry<String, Function<Integer, String>> shape : shapes.entrySet()) {
+            for (CalculatorLanguageServer.ParserBackend backend : CalculatorLanguageServer.ParserBackend.values()) {
+                for (int limit : new int[] {CalculatorLanguageServer.DEFAULT_MAX_NESTING_DEPTH, Integer.MAX_VALUE}) {
+                    for (int depth : DEPTHS) {
+                        String text = shape.getValue().apply(depth);
+                        run(shape.getKey(), backend, limit, depth, text);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(String shape, CalculatorLanguageServer.ParserBackend backend, int limit, int depth,
+            String text) {
+        long best = Long.MAX_VALUE;
+        String outcome = "";
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            CalculatorLanguageServer server = new CalculatorLanguageServer(new AnalysisCache(0));
+            server.setParserBackend(backend);
+            server.setMaxNestingDepth(limit);
+            long start = System.nanoTime();
+            try {
+                server.parseDocument("file:///nesting.calc", text);
+            } catch (StackOverflowError error) {
+                best = -1;
+                outcome = "overflow";
+                break;
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            outcome = describe(server.getDocuments().get("file:///nesting.calc"));
+        }
+        System.out.printf("%-14s %-11s %-8s %8d %14d %10.1f  %s%n", shape, backend.name().toLowerCase(),
+                limit == Integer.MAX_VALUE ? "none" : Integer.toString(limit), depth, best,
+                (double) best / text.length(), outcome);
+    }
+
+    private static String describe(CalculatorLanguageServer.DocumentState state) {
+        if (state.analysis.hasValue()) {
+            return "value " + state.analysis.value();
+        }
+        return state.analysis.errors().isEmpty() ? "no value" : state.analysis.errors().get(0).message();
+    }
+}
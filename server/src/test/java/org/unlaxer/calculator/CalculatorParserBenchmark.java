@@ -0,0 +1,72 @@
+package org.unlaxer.calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Manual benchmark for parse time on pathologically nested input.
+ *
+ * <p>Not a JUnit test; run it from the IDE or with
+ * {@code java -cp target/classes:target/test-classes:<deps> org.unlaxer.calculator.CalculatorParserBenchmark}.
+ * Every backend is timed at increasing nesting depths; time per character that stays flat
+ * as the depth grows means parsing is linear. Parsing runs on a thread with a large stack and
+ * without the server's nesting limit, so that deep nesting measures time rather than stack depth.</p>
+ */
+public final class CalculatorParserBenchmark {
+
+    private static final int[] DEPTHS = {1_000, 10_000, 100_000};
+    private static final int ITERATIONS = 20;
+
+    private CalculatorParserBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Function<Integer, String>> shapes = new LinkedHashMap<>();
+        shapes.put("parentheses", depth -> "(".repeat(depth) + "1" + ")".repeat(depth));
+        shapes.put("unary chain", depth -> "-".repeat(depth) + "1");
+        shapes.put("unclosed products", depth -> "1*(".repeat(depth) + "1");
+        shapes.put("functions", depth -> "sqrt(".repeat(depth) + "1" + ")".repeat(depth));
+
+        Map<String, Function<String, CalculatorLanguageServer.ParseResult>> backends = new LinkedHashMap<>();
+        backends.put("combinator", text -> {
+            CalculatorLanguageServer server = new CalculatorLanguageServer();
+            server.setMaxNestingDepth(Integer.MAX_VALUE);
+            return server.parseDocument("file:///bench.calc", text);
+        });
+        backends.put("pratt", CalculatorPrattParser::parse);
+
+        Thread thread = new Thread(null, () -> run(shapes, backends), "benchmark", 1L << 30);
+        thread.start();
+        thread.join();
+    }
+
+    private static void run(Map<String, Function<Integer, String>> shapes,
+            Map<String, Function<String, CalculatorLanguageServer.ParseResult>> backends) {
+        System.out.printf("%-18s %-12s %8s %14s %10s%n", "shape", "backend", "depth", "ns/parse", "ns/char");
+        for (Map.Entry<String, Function<Integer, String>> shape : shapes.entrySet()) {
+            for (Map.Entry<String, Function<String, CalculatorLanguageServer.ParseResult>> backend : backends.entrySet()) {
+                for (int depth : DEPTHS) {
+                    String text = shape.getValue().apply(depth);
+                    long best = measure(backend.getValue(), text);
+                    System.out.printf("%-18s %-12s %8d %14d %10.1f%n",
+                            shape.getKey(), backend.getKey(), depth, best, (double) best / text.length());
+                }
+            }
+        }
+    }
+
+    private static long measure(Function<String, CalculatorLanguageServer.ParseResult> backend, String text) {
+        long best = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            try {
+                backend.apply(text);
+            } catch (StackOverflowError error) {
+                return -1;
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,113 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CalculatorPrattParserTest {
+
+    private static final List<String> INPUTS = List.of(
+            "1", "1.5", "1+2*3", "(1+2)*3", "1-(2+3)", "2*-3", "-+1", "--(4)",
+            "sin(1)+cos(2)", "sqrt(4)/2", "tan(log(3))*-sqrt(2)", "((((1))))",
+            "1^2", "1^2*3", "1+", "1+*2", "(1+2", ")1", "1.", "1.*2", "sinx(1)",
+            "sin1", "", "+", "1 + 2", "2/0", "3*(4-5)/6+7", "1++2", "1-+-2",
+            "x", "2*x+t", "-x", "sin(x)*t", "sin", "sin(1", "xy(1)", "sinx");
+
+    private static final String[] FRAGMENTS = {
+            "1", "23", "4.5", "+", "-", "*", "/", "^", "(", ")", "sin(", "sqrt(", "log(", "x", ".", " "
+    };
+
+    @Test
+    public void buildsPrecedenceShapedAst() {
+        assertEquals("(+ 1 (* 2 3))", CalculatorPrattParser.parse("1+2*3").ast.toSExpression());
+        assertEquals("(- (- 1 2) 3)", CalculatorPrattParser.parse("1-2-3").ast.toSExpression());
+        assertEquals("(- 1 (+ 2 3))", CalculatorPrattParser.parse("1-(2+3)").ast.toSExpression());
+        assertEquals("(* 2 (- 3))", CalculatorPrattParser.parse("2*-3").ast.toSExpression());
+        assertEquals("(sqrt (+ 1 3))", CalculatorPrattParser.parse("sqrt(1+3)").ast.toSExpression());
+        assertEquals("(^ 1 (* 2 3))", CalculatorPrattParser.parse("1^2*3").ast.toSExpression());
+    }
+
+    @Test
+    public void stopsAtTheLongestValidPrefix() {
+        CalculatorLanguageServer.ParseResult partial = CalculatorPrattParser.parse("1+2*");
+        assertTrue(partial.succeeded);
+        assertEquals(3, partial.consumedLength);
+        assertEquals("(+ 1 2)", partial.ast.toSExpression());
+
+        CalculatorLanguageServer.ParseResult failed = CalculatorPrattParser.parse("*1");
+        assertTrue(false == failed.succeeded);
+        assertEquals(0, failed.consumedLength);
+    }
+
+    @Test
+    public void parsesFreeVariables() {
+        assertEquals("(+ (* 2 x) (sin t))", CalculatorPrattParser.parse("2*x+sin(t)").ast.toSExpression());
+        assertEquals(List.of("x", "t"), CalculatorPrattParser.parse("x*t-x").ast.variableNames());
+
+        // A function name without its call is the grammar's variable alternative.
+        CalculatorLanguageServer.ParseResult call = CalculatorPrattParser.parse("sin(1");
+        assertTrue(call.succeeded);
+        assertEquals(3, call.consumedLength);
+        assertEquals("sin", call.ast.toSExpression());
+    }
+
+    @Test
+    public void recordsOperatorOffsets() {
+        CalculatorAstNode root = CalculatorPrattParser.parse("12/sin(0)").ast;
+
+        assertEquals(2, root.start());
+        assertEquals(3, root.end());
+        assertEquals(3, root.children().get(1).start());
+        assertEquals(6, root.children().get(1).end());
+    }
+
+    @Test
+    public void matchesCombinatorOnHandWrittenInputs() {
+        for (String input : INPUTS) {
+            assertSameParse(input);
+        }
+    }
+
+    @Test
+    public void matchesCombinatorOnGeneratedInputs() {
+        Random random = new Random(42);
+        for (int count = 0; count < 500; count++) {
+            StringBuilder input = new StringBuilder();
+            int fragments = 1 + random.nextInt(12);
+            for (int index = 0; index < fragments; index++) {
+                input.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            assertSameParse(input.toString());
+        }
+    }
+
+    @Test
+    public void evaluatesThroughTheServerWithPrattBackend() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        String uri = "file:///pratt.calc";
+
+        server.parseDocument(uri, "(1+2)*sqrt(16)");
+        CalculatorLanguageServer.DocumentState state = server.getDocuments().get(uri);
+
+        assertTrue(state.analysis.errors().isEmpty());
+        assertEquals(12.0d, state.analysis.value(), 0.0001d);
+    }
+
+    private void assertSameParse(String input) {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        CalculatorLanguageServer.ParseResult combinator = server.parseDocument("file:///differential.calc", input);
+        CalculatorLanguageServer.ParseResult pratt = CalculatorPrattParser.parse(input);
+
+        assertEquals(combinator.succeeded, pratt.succeeded, "succeeded: " + input);
+        assertEquals(combinator.consumedLength, pratt.consumedLength, "consumedLength: " + input);
+        if (combinator.succeeded) {
+            CalculatorAstNode mapped = new CalculatorAstAnalyzer().mapAst(combinator.parsed, input);
+            assertEquals(mapped.toSExpression(), pratt.ast.toSExpression(), "ast: " + input);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CalculatorRecoveringParserTest {
+
+    private static final String[] FRAGMENTS = {
+            "1", "23", "4.5", "+", "-", "*", "/", "^", "(", ")", "sin(", "sqrt(", "log(", "x", ".", " ", "\n"
+    };
+
+    @Test
+    public void reportsEverySyntaxError() {
+        CalculatorRecoveringParser.Result result = CalculatorRecoveringParser.parse("1+*2)+(3");
+
+        assertEquals(List.of(
+                new CalculatorRecoveringParser.SyntaxError(1, 2, "右辺のない二項演算子: +"),
+                new CalculatorRecoveringParser.SyntaxError(4, 5, "閉じ括弧に対応する開き括弧がありません"),
+                new CalculatorRecoveringParser.SyntaxError(6, 7, "開き括弧が閉じられていません")),
+                result.errors());
+        assertEquals("(+ (+ 1 (* (error) 2)) 3)", result.ast().toSExpression());
+    }
+
+    @Test
+    public void skipsUnexpectedCharactersUpToTheNextOperator() {
+        CalculatorRecoveringParser.Result result = CalculatorRecoveringParser.parse("1 +. 2");
+
+        assertEquals(List.of(
+                new CalculatorRecoveringParser.SyntaxError(1, 2, "予期しない文字です"),
+                new CalculatorRecoveringParser.SyntaxError(3, 5, "予期しない文字です")),
+                result.errors());
+        assertEquals("(+ 1 2)", result.ast().toSExpression());
+    }
+
+    @Test
+    public void keepsFragmentsSeparatedByLineBreaks() {
+        CalculatorRecoveringParser.Result result = CalculatorRecoveringParser.parse("1+2\n3*");
+
+        assertEquals(List.of(
+                new CalculatorRecoveringParser.SyntaxError(3, 4, "予期しない文字です"),
+                new CalculatorRecoveringParser.SyntaxError(5, 6, "右辺のない二項演算子: *")),
+                result.errors());
+        assertEquals("(error (+ 1 2) (* 3 (error)))", result.ast().toSExpression());
+    }
+
+    @Test
+    public void matchesPrattParserOnValidInput() {
+        Random random = new Random(11);
+        for (int count = 0; count < 1000; count++) {
+            String text = randomInput(random);
+            CalculatorLanguageServer.ParseResult pratt = CalculatorPrattParser.parse(text);
+            CalculatorRecoveringParser.Result recovered = CalculatorRecoveringParser.parse(text);
+
+            if (pratt.isFullyValid()) {
+                assertTrue(recovered.errors().isEmpty(), text);
+                assertEquals(pratt.ast.toSExpression(), recovered.ast().toSExpression(), text);
+            } else if (false == text.isEmpty()) {
+                assertTrue(false == recovered.errors().isEmpty(), text);
+                assertNotNull(recovered.ast(), text);
+            }
+        }
+    }
+
+    @Test
+    public void evaluatesValidSubexpressionsOfABrokenInput() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        String uri = "file:///recovery.calc";
+
+        server.parseDocument(uri, "(1/0)+*sqrt(-4)");
+        CalculatorLanguageServer.DocumentState state = server.getDocuments().get(uri);
+
+        List<String> messages = state.analysis.errors().stream()
+                .map(CalculatorAstAnalyzer.AstError::message)
+                .toList();
+        assertTrue(messages.contains("右辺のない二項演算子: +"), messages.toString());
+        assertTrue(messages.contains("0 で除算できません"), messages.toString());
+        assertTrue(messages.contains("負の数の平方根は計算できません"), messages.toString());
+        assertNull(state.analysis.value());
+    }
+
+    private static String randomInput(Random random) {
+        StringBuilder input = new StringBuilder();
+        int fragments = random.nextInt(12);
+        for (int index = 0; index < fragments; index++) {
+            input.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return input.toString();
+    }
+}
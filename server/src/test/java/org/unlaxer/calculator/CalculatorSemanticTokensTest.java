@@ -0,0 +1,120 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensDeltaParams;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SemanticTokensParams;
+import org.eclipse.lsp4j.SemanticTokensRangeParams;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.junit.jupiter.api.Test;
+
+public class CalculatorSemanticTokensTest {
+
+    private static final int FUNCTION = CalculatorSemanticTokens.FUNCTION;
+    private static final int NUMBER = CalculatorSemanticTokens.NUMBER;
+    private static final int OPERATOR = CalculatorSemanticTokens.OPERATOR;
+    private static final int VARIABLE = CalculatorSemanticTokens.VARIABLE;
+    private static final int INVALID = CalculatorSemanticTokens.INVALID;
+
+    @Test
+    public void encodesEveryTokenWithItsType() {
+        CalculatorLanguageServer server = server();
+        server.setDocumentMode(CalculatorLanguageServer.DocumentMode.LINES);
+        server.parseDocument("file:///tokens.calc", "sin(x)*2.5\n10/4)");
+
+        int[] data = server.getDocuments().get("file:///tokens.calc").semanticTokens().getData();
+
+        assertArrayEquals(new int[] {
+                0, 0, 3, FUNCTION, 0,
+                0, 4, 1, VARIABLE, 0,
+                0, 2, 1, OPERATOR, 0,
+                0, 1, 3, NUMBER, 0,
+                1, 0, 2, NUMBER, 0,
+                0, 2, 1, OPERATOR, 0,
+                0, 1, 1, NUMBER, 0,
+                // Not consumed by the parser.
+                0, 1, 1, INVALID, 0,
+        }, data);
+    }
+
+    @Test
+    public void cachesTokensPerVersion() {
+        CalculatorLanguageServer server = server();
+        server.parseDocument("file:///cached.calc", "1+2");
+        CalculatorLanguageServer.DocumentState state = server.getDocuments().get("file:///cached.calc");
+
+        assertSame(state.semanticTokens(), state.semanticTokens());
+        server.parseDocument("file:///cached.calc", "1+2");
+        assertNotEquals(state.semanticTokens().getResultId(),
+                server.getDocuments().get("file:///cached.calc").semanticTokens().getResultId());
+    }
+
+    @Test
+    public void sendsOnlyTheChangedSpanAsDelta() {
+        CalculatorLanguageServer server = server();
+        String uri = "file:///delta.calc";
+        TextDocumentIdentifier document = new TextDocumentIdentifier(uri);
+        server.parseDocument(uri, "1+2*3+4+5");
+        SemanticTokens full = server.getTextDocumentService()
+                .semanticTokensFull(new SemanticTokensParams(document)).join();
+        assertEquals(45, full.getData().size());
+
+        server.parseDocument(uri, "1+2*30+4+5");
+        Either<SemanticTokens, SemanticTokensDelta> delta = server.getTextDocumentService()
+                .semanticTokensFullDelta(new SemanticTokensDeltaParams(document, full.getResultId())).join();
+
+        assertTrue(delta.isRight());
+        List<SemanticTokensEdit> edits = delta.getRight().getEdits();
+        assertEquals(1, edits.size());
+        // The length of "30", and the start of the "+" after it.
+        assertEquals(22, edits.get(0).getStart());
+        assertEquals(List.of(2, NUMBER, 0, 0, 2), edits.get(0).getData());
+
+        // A result ID the server no longer has gets all tokens.
+        Either<SemanticTokens, SemanticTokensDelta> unknown = server.getTextDocumentService()
+                .semanticTokensFullDelta(new SemanticTokensDeltaParams(document, full.getResultId())).join();
+        assertTrue(unknown.isLeft());
+    }
+
+    @Test
+    public void encodesOnlyTheRequestedRange() {
+        CalculatorLanguageServer server = server();
+        server.setDocumentMode(CalculatorLanguageServer.DocumentMode.LINES);
+        String uri = "file:///range.calc";
+        TextDocumentIdentifier document = new TextDocumentIdentifier(uri);
+        server.parseDocument(uri, "1+2\nsin(3)*4)\n5-6");
+
+        SemanticTokens range = server.getTextDocumentService().semanticTokensRange(
+                new SemanticTokensRangeParams(document, new Range(new Position(1, 0), new Position(2, 0)))).join();
+
+        // Positions are relative to the document start, as in a full result.
+        assertEquals(List.of(
+                1, 0, 3, FUNCTION, 0,
+                0, 4, 1, NUMBER, 0,
+                0, 2, 1, OPERATOR, 0,
+                0, 1, 1, NUMBER, 0,
+                0, 1, 1, INVALID, 0), range.getData());
+        SemanticTokens whole = server.getTextDocumentService().semanticTokensRange(
+                new SemanticTokensRangeParams(document, new Range(new Position(0, 0), new Position(3, 0)))).join();
+        assertEquals(server.getTextDocumentService().semanticTokensFull(new SemanticTokensParams(document))
+                .join().getData(), whole.getData());
+    }
+
+    private static CalculatorLanguageServer server() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        return server;
+    }
+}
@@ -0,0 +1,84 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+public class CalculatorSocketServerTest {
+
+    @Test
+    public void capsSessionsAndClosesIdleOnes() throws Exception {
+        CalculatorSocketServer socketServer = new CalculatorSocketServer(1, Duration.ofSeconds(2));
+        Thread serving;
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            serving = Thread.ofVirtual().start(() -> {
+                try {
+                    socketServer.serve(serverSocket);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+
+            try (Socket first = connect(serverSocket); Socket second = connect(serverSocket)) {
+                // The session over the cap is closed at once; the first one answers requests.
+                assertEquals(-1, second.getInputStream().read());
+                send(first.getOutputStream(),
+                        "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{\"capabilities\":{}}}");
+                String response = readMessage(first.getInputStream());
+                assertTrue(response.contains("\"id\":1") && response.contains("hoverProvider"), response);
+                assertEquals(1, socketServer.getActiveSessions());
+
+                // Idle for longer than the timeout: the reaper closes it.
+                assertEquals(-1, first.getInputStream().read());
+                await(() -> socketServer.getActiveSessions() == 0);
+            }
+        }
+        // Closing the server socket stops serve().
+        serving.join(Duration.ofSeconds(10));
+    }
+
+    private static Socket connect(ServerSocket serverSocket) throws IOException {
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static void send(OutputStream out, String json) throws IOException {
+        byte[] content = json.getBytes(StandardCharsets.UTF_8);
+        out.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    private static String readMessage(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while (false == header.toString().endsWith("\r\n\r\n")) {
+            int next = in.read();
+            if (next < 0) {
+                throw new IOException("closed after " + header);
+            }
+            header.append((char) next);
+        }
+        int length = Integer.parseInt(header.substring("Content-Length: ".length(), header.indexOf("\r\n")).trim());
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (false == condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
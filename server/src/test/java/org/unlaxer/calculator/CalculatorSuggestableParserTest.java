@@ -1,11 +1,15 @@
 package org.unlaxer.calculator;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.eclipse.lsp4j.CompletionItem;
+import org.eclipse.lsp4j.InsertTextFormat;
 import org.eclipse.lsp4j.Position;
 import org.junit.jupiter.api.Test;
 
@@ -48,4 +52,20 @@ public class CalculatorSuggestableParserTest {
 
         assertTrue(labels.contains("log"));
     }
+
+    @Test
+    public void completesWithoutDetailsAndResolvesThem() {
+        CalculatorSuggestableParser parser = new CalculatorSuggestableParser();
+        String content = "1+s";
+
+        List<CompletionItem> items = parser.complete(content, LineIndex.of(content), new Position(0, 3));
+
+        assertEquals(List.of("sin", "sqrt"), items.stream().map(CompletionItem::getLabel).toList());
+        CompletionItem sin = items.get(0);
+        assertEquals(InsertTextFormat.Snippet, sin.getInsertTextFormat());
+        assertNull(sin.getDetail());
+        CompletionItem resolved = parser.resolve(sin);
+        assertEquals("Sine function", resolved.getDetail());
+        assertEquals("`sin()`", resolved.getDocumentation().getRight().getValue());
+    }
 }
@@ -0,0 +1,84 @@
+package org.unlaxer.calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Manual benchmark for evaluating one expression over columns of variable values.
+ *
+ * <p>Not a JUnit test; run it like {@link CalculatorParserBenchmark}, built with
+ * {@code mvn -Pvector} and run with {@code --add-modules jdk.incubator.vector} for the vector row.
+ * The point-by-point row runs the {@link CalculatorBytecode} interpreter once per point, the
+ * sweep rows run {@link CalculatorSweep} over the whole columns with scalar and with Vector API
+ * kernels. The first expression is arithmetic only, which the kernels cover completely; the
+ * second spends most of its time in {@link Math#sin} and {@link Math#log}, which no kernel
+ * vectorizes.</p>
+ */
+public final class CalculatorSweepBenchmark {
+
+    private static final String[] TEXTS = {
+            "x*x*t-3*x/(t+2)+sqrt(x*x+t*t)-(x-t)*(x+t)/4",
+            "sin(x)*t+log(x*x+1)",
+    };
+    private static final int POINTS = 1 << 20;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 20;
+
+    private interface Evaluation {
+        void run(double[] x, double[] t, double[] results);
+    }
+
+    private CalculatorSweepBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        double[] x = new double[POINTS];
+        double[] t = new double[POINTS];
+        for (int index = 0; index < POINTS; index++) {
+            x[index] = random.nextDouble() * 100;
+            t[index] = random.nextDouble() * 100;
+        }
+        System.out.printf("%-44s %-16s %12s%n", "expression", "case", "ns/point");
+        for (String text : TEXTS) {
+            run(text, x, t);
+        }
+    }
+
+    private static void run(String text, double[] x, double[] t) {
+        CalculatorBytecode program = CalculatorBytecode.compile(CalculatorPrattParser.parse(text).ast);
+        double[] stack = new double[program.maxStack()];
+        double[] variables = new double[2];
+
+        Map<String, Evaluation> cases = new LinkedHashMap<>();
+        cases.put("point by point", (xs, ts, results) -> {
+            for (int index = 0; index < results.length; index++) {
+                variables[0] = xs[index];
+                variables[1] = ts[index];
+                results[index] = program.run(stack, variables);
+            }
+        });
+        CalculatorSweep scalar = new CalculatorSweep(program, new ScalarSweepKernels());
+        cases.put("sweep, scalar", (xs, ts, results) -> scalar.evaluate(new double[][] {xs, ts}, results));
+        SweepKernels selected = SweepKernels.select();
+        if (false == selected instanceof ScalarSweepKernels) {
+            CalculatorSweep vector = new CalculatorSweep(program, selected);
+            cases.put("sweep, vector", (xs, ts, results) -> vector.evaluate(new double[][] {xs, ts}, results));
+        }
+
+        for (Map.Entry<String, Evaluation> entry : cases.entrySet()) {
+            double[] results = new double[x.length];
+            for (int iteration = 0; iteration < WARMUP; iteration++) {
+                entry.getValue().run(x, t, results);
+            }
+            long start = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                entry.getValue().run(x, t, results);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-44s %-16s %12.2f%n", text, entry.getKey(),
+                    (double) elapsed / ITERATIONS / x.length);
+        }
+    }
+}
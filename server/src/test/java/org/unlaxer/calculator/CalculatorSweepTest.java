@@ -0,0 +1,84 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CalculatorSweepTest {
+
+    private static final String[] OPERATORS = {"+", "-", "*", "/"};
+    private static final String[] FUNCTIONS = {"sin", "cos", "tan", "sqrt", "log"};
+    private static final String[] OPERANDS = {"x", "t", "0", "1", "2.5"};
+
+    @Test
+    public void matchesTheInterpreterAtEveryPoint() {
+        Random random = new Random(5);
+        // Longer than a block, and not a multiple of the block or of any vector width.
+        int points = 2 * CalculatorSweep.BLOCK + 37;
+        double[] x = new double[points];
+        double[] t = new double[points];
+        for (int index = 0; index < points; index++) {
+            x[index] = random.nextInt(5) == 0 ? 0.0d : random.nextGaussian() * 10;
+            t[index] = random.nextInt(5) == 0 ? -0.0d : random.nextGaussian();
+        }
+
+        for (int count = 0; count < 300; count++) {
+            String text = "x*t+" + randomExpression(random, 4);
+            CalculatorBytecode program = CalculatorBytecode.compile(CalculatorPrattParser.parse(text).ast);
+            assertEquals(List.of("x", "t"), program.variableNames(), text);
+            // The Vector API kernels when built and enabled (mvn -Pvector), otherwise scalar twice.
+            for (SweepKernels kernels : List.of(new ScalarSweepKernels(), SweepKernels.select())) {
+                double[] results = new double[points];
+                new CalculatorSweep(program, kernels).evaluate(new double[][] {x, t}, results);
+                assertMatchesInterpreter(text, program, x, t, results);
+            }
+        }
+    }
+
+    @Test
+    public void evaluatesNamedColumns() {
+        CalculatorSweep sweep = CalculatorSweep.compile(CalculatorPrattParser.parse("t/x-sqrt(x)").ast);
+
+        double[] results = sweep.evaluate(Map.of("x", new double[] {4, 0, -1}, "t", new double[] {8, 1, 1}));
+
+        assertArrayEquals(new double[] {0, Double.NaN, Double.NaN}, results);
+        assertArrayEquals(new double[] {3}, CalculatorSweep.compile(CalculatorPrattParser.parse("1+2").ast)
+                .evaluate(Map.of()));
+        assertArrayEquals(new double[0], sweep.evaluate(Map.of("x", new double[0], "t", new double[0])));
+        assertThrows(IllegalArgumentException.class, () -> sweep.evaluate(Map.of("x", new double[1])));
+        assertNull(CalculatorSweep.compile(CalculatorPrattParser.parse("sin*x").ast));
+    }
+
+    private static void assertMatchesInterpreter(String text, CalculatorBytecode program, double[] x, double[] t,
+            double[] results) {
+        double[] stack = new double[program.maxStack()];
+        for (int index = 0; index < results.length; index++) {
+            double expected;
+            try {
+                expected = program.run(stack, new double[] {x[index], t[index]});
+            } catch (CalculatorBytecode.Fault fault) {
+                expected = Double.NaN;
+            }
+            assertEquals(expected, results[index], text + " at " + index);
+        }
+    }
+
+    private static String randomExpression(Random random, int depth) {
+        int choice = depth == 0 ? 0 : random.nextInt(6);
+        return switch (choice) {
+            case 0, 1 -> OPERANDS[random.nextInt(OPERANDS.length)];
+            case 2 -> "-" + randomExpression(random, depth - 1);
+            case 3 -> "(" + randomExpression(random, depth - 1) + ")";
+            case 4 -> FUNCTIONS[random.nextInt(FUNCTIONS.length)] + "(" + randomExpression(random, depth - 1) + ")";
+            default -> randomExpression(random, depth - 1) + OPERATORS[random.nextInt(OPERATORS.length)]
+                    + randomExpression(random, depth - 1);
+        };
+    }
+}
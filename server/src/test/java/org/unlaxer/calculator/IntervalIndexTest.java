@@ -0,0 +1,48 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class IntervalIndexTest {
+
+    @Test
+    public void findsTheInnermostNestedSpan() {
+        // Spans of (1+2)*3 in pre-order: the product, the parenthesized sum, 1, 2, 3.
+        IntervalIndex index = new IntervalIndex(new int[] {0, 0, 1, 3, 6}, new int[] {7, 5, 2, 4, 7});
+
+        assertEquals(0, index.find(5));
+        assertEquals(1, index.find(0));
+        assertEquals(1, index.find(2));
+        assertEquals(2, index.find(1));
+        assertEquals(3, index.find(3));
+        assertEquals(4, index.find(6));
+        assertEquals(-1, index.find(7));
+    }
+
+    @Test
+    public void agreesWithAScanOverOverlappingIntervals() {
+        Random random = new Random(42);
+        int size = 300;
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        for (int index = 0; index < size; index++) {
+            starts[index] = random.nextInt(1000);
+            ends[index] = starts[index] + 1 + random.nextInt(random.nextBoolean() ? 5 : 200);
+        }
+        IntervalIndex intervals = new IntervalIndex(starts, ends);
+
+        for (int offset = -1; offset < 1300; offset++) {
+            int expected = -1;
+            for (int index = 0; index < size; index++) {
+                if (starts[index] <= offset && offset < ends[index]
+                        && (expected < 0 || starts[index] >= starts[expected])) {
+                    expected = index;
+                }
+            }
+            assertEquals(expected, intervals.find(offset), "offset " + offset);
+        }
+    }
+}
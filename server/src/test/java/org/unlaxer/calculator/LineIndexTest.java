@@ -0,0 +1,43 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.eclipse.lsp4j.Position;
+import org.junit.jupiter.api.Test;
+
+public class LineIndexTest {
+
+    @Test
+    public void convertsOffsetsToPositions() {
+        LineIndex lineIndex = LineIndex.of("1+2\n\n3*4");
+
+        assertEquals(3, lineIndex.lineCount());
+        assertEquals(new Position(0, 0), lineIndex.toPosition(0));
+        assertEquals(new Position(0, 3), lineIndex.toPosition(3));
+        assertEquals(new Position(1, 0), lineIndex.toPosition(4));
+        assertEquals(new Position(2, 0), lineIndex.toPosition(5));
+        assertEquals(new Position(2, 3), lineIndex.toPosition(8));
+        assertEquals(new Position(2, 3), lineIndex.toPosition(100));
+    }
+
+    @Test
+    public void convertsPositionsToOffsetsWithClamping() {
+        LineIndex lineIndex = LineIndex.of("1+2\n\n3*4");
+
+        assertEquals(2, lineIndex.toOffset(new Position(0, 2)));
+        assertEquals(3, lineIndex.toOffset(new Position(0, 42)));
+        assertEquals(4, lineIndex.toOffset(new Position(1, 5)));
+        assertEquals(7, lineIndex.toOffset(new Position(2, 2)));
+        assertEquals(8, lineIndex.toOffset(new Position(9, 0)));
+    }
+
+    @Test
+    public void countsColumnsInUtf16CodeUnits() {
+        // U+1D7D9 (mathematical double-struck digit one) is a surrogate pair.
+        String content = "𝟙+2";
+        LineIndex lineIndex = LineIndex.of(content);
+
+        assertEquals(new Position(0, 2), lineIndex.toPosition(content.indexOf('+')));
+        assertEquals(3, lineIndex.toOffset(new Position(0, 3)));
+    }
+}
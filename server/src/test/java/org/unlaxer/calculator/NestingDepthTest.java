@@ -0,0 +1,80 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class NestingDepthTest {
+
+    @Test
+    public void countsParenthesesAndUnarySigns() {
+        assertEquals(-1, findExcess("((1))", 2));
+        assertEquals(1, findExcess("((1))", 1));
+        assertEquals(-1, findExcess("--1", 2));
+        assertEquals(2, findExcess("---1", 2));
+        assertEquals(-1, findExcess("sqrt(-1)+sqrt(-1)", 2));
+        // Binary operators and siblings do not nest.
+        assertEquals(-1, findExcess("-1+-1*-(2)-3", 2));
+        // Signs without an operand close with their parenthesis.
+        assertEquals(-1, findExcess("(-)+(-)+(-)+(-)", 2));
+    }
+
+    @Test
+    public void reportsTooDeepNestingAsADiagnostic() {
+        CalculatorLanguageServer server = new CalculatorLanguageServer();
+        server.setParserBackend(CalculatorLanguageServer.ParserBackend.PRATT);
+        server.setMaxNestingDepth(100);
+        String uri = "file:///nesting.calc";
+
+        server.parseDocument(uri, "(".repeat(1_000_000) + "1" + ")".repeat(1_000_000));
+        CalculatorLanguageServer.DocumentState state = server.getDocuments().get(uri);
+
+        assertEquals(List.of("式の入れ子が深すぎます (上限 100)"), state.analysis.errors().stream()
+                .map(CalculatorAstAnalyzer.AstError::message)
+                .toList());
+        assertEquals(100, state.analysis.errors().get(0).range().getStart().getCharacter());
+        assertNull(state.analysis.value());
+    }
+
+    @Test
+    public void parsesTheDefaultDepthOnTheCombinatorBackend() throws Exception {
+        // 128 parentheses and 128 unary signs: exactly the default limit, so it is parsed.
+        String text = "(-".repeat(128) + "1" + ")".repeat(128);
+        CalculatorLanguageServer.DocumentState[] states = new CalculatorLanguageServer.DocumentState[1];
+        Throwable[] failure = new Throwable[1];
+        // A platform thread with the default stack size, as the analysis executor uses.
+        Thread thread = new Thread(() -> {
+            try {
+                CalculatorLanguageServer server = new CalculatorLanguageServer();
+                server.setParserBackend(CalculatorLanguageServer.ParserBackend.COMBINATOR);
+                server.parseDocument("file:///deep.calc", text);
+                states[0] = server.getDocuments().get("file:///deep.calc");
+            } catch (Throwable ex) {
+                failure[0] = ex;
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertNull(failure[0]);
+        assertEquals(2 * 128, CalculatorLanguageServer.DEFAULT_MAX_NESTING_DEPTH);
+        assertEquals(List.of(), states[0].analysis.errors());
+        assertEquals(1.0, states[0].analysis.value());
+    }
+
+    @Test
+    public void evaluatesLongChainsWithoutRecursion() {
+        String text = "1+".repeat(500_000) + "1";
+        CalculatorAstAnalyzer.AnalysisResult analysis =
+                new CalculatorAstAnalyzer().analyze(text, CalculatorPrattParser.parse(text));
+
+        assertEquals(500_001.0, analysis.value());
+    }
+
+    private static int findExcess(String text, int limit) {
+        return NestingDepth.findExcess(CalculatorLexer.lex(text), limit);
+    }
+}
@@ -0,0 +1,48 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class NumberLiteralsTest {
+
+    @Test
+    public void parsesLiteralsInsideLargerText() {
+        String text = "sqrt(12.5)*-007+0.1";
+
+        assertEquals(12.5d, NumberLiterals.parse(text, 5, 9));
+        assertEquals(7.0d, NumberLiterals.parse(text, 12, 15));
+        assertEquals(0.1d, NumberLiterals.parse(text, 16, 19));
+        assertEquals(-1.0d, NumberLiterals.parse("-1"));
+    }
+
+    @Test
+    public void matchesParseDoubleExactly() {
+        Random random = new Random(3);
+        for (int count = 0; count < 10_000; count++) {
+            String literal = randomDigits(random, 1 + random.nextInt(20));
+            if (random.nextBoolean()) {
+                literal += "." + randomDigits(random, 1 + random.nextInt(20));
+            }
+            assertEquals(Double.parseDouble(literal), NumberLiterals.parse(literal), literal);
+        }
+    }
+
+    @Test
+    public void returnsNaNForNonNumbers() {
+        assertTrue(Double.isNaN(NumberLiterals.parse("abc")));
+        assertTrue(Double.isNaN(NumberLiterals.parse("")));
+        assertTrue(Double.isNaN(NumberLiterals.parse("1.2.3")));
+    }
+
+    private static String randomDigits(Random random, int length) {
+        StringBuilder digits = new StringBuilder();
+        for (int index = 0; index < length; index++) {
+            digits.append((char) ('0' + random.nextInt(10)));
+        }
+        return digits.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class PieceTableTest {
+
+    @Test
+    public void appliesInsertDeleteAndReplace() {
+        PieceTable buffer = new PieceTable("1+2*3");
+
+        buffer.replace(1, 1, "0");
+        assertEquals("10+2*3", buffer.toString());
+
+        buffer.replace(3, 4, "");
+        assertEquals("10+*3", buffer.toString());
+
+        buffer.replace(2, 5, "-sqrt(4)");
+        assertEquals("10-sqrt(4)", buffer.toString());
+        assertEquals(10, buffer.length());
+    }
+
+    @Test
+    public void coalescesConsecutiveTyping() {
+        PieceTable buffer = new PieceTable("1+");
+
+        buffer.replace(2, 2, "2");
+        buffer.replace(3, 3, "3");
+        buffer.replace(4, 4, "4");
+
+        assertEquals("1+234", buffer.toString());
+        assertEquals(2, buffer.pieceCount());
+    }
+
+    @Test
+    public void resolvesPositionsAcrossPieces() {
+        PieceTable buffer = new PieceTable("1+2\n3*4\n5");
+        buffer.replace(4, 4, "(0)\n");
+
+        assertEquals("1+2\n(0)\n3*4\n5", buffer.toString());
+        assertEquals(0, buffer.offsetAt(0, 0));
+        assertEquals(3, buffer.offsetAt(0, 3));
+        assertEquals(4, buffer.offsetAt(1, 0));
+        assertEquals(8, buffer.offsetAt(2, 0));
+        assertEquals(10, buffer.offsetAt(2, 2));
+        assertEquals(12, buffer.offsetAt(3, 0));
+    }
+
+    @Test
+    public void snapshotKeepsItsTextWhileTheBufferIsEdited() {
+        PieceTable buffer = new PieceTable("1+2");
+        PieceTable.Snapshot unedited = buffer.snapshot();
+        buffer.replace(3, 3, "*3");
+        PieceTable.Snapshot typed = buffer.snapshot();
+
+        // Enough typing to grow the add buffer, plus an edit inside the earlier insertion.
+        for (int index = 0; index < 100; index++) {
+            buffer.replace(buffer.length(), buffer.length(), "+1");
+        }
+        buffer.replace(4, 5, "4");
+
+        assertEquals("1+2", unedited.toString());
+        assertEquals("1+2*3", typed.toString());
+        assertEquals(5, typed.length());
+        assertEquals("1+2*4" + "+1".repeat(100), buffer.toString());
+    }
+
+    @Test
+    public void clampsPositionsOutsideTheDocument() {
+        PieceTable buffer = new PieceTable("12\n34");
+
+        assertEquals(2, buffer.offsetAt(0, 10));
+        assertEquals(5, buffer.offsetAt(1, 10));
+        assertEquals(5, buffer.offsetAt(7, 0));
+    }
+
+    @Test
+    public void readsTheWordBeforeAnOffsetAcrossPieces() {
+        PieceTable buffer = new PieceTable("1+s\n2");
+        buffer.replace(3, 3, "q");
+        buffer.replace(4, 4, "r");
+
+        assertEquals("sqr", buffer.textBefore(5, Character::isLetter));
+        assertEquals("sq", buffer.textBefore(4, Character::isLetter));
+        assertEquals("", buffer.textBefore(2, Character::isLetter));
+        assertEquals("", new PieceTable("").textBefore(0, Character::isLetter));
+        assertEquals(2, buffer.lineCount());
+        assertEquals(1, new PieceTable("").lineCount());
+    }
+}
@@ -0,0 +1,40 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class PrefixTrieTest {
+
+    @Test
+    public void returnsValuesOfKeysWithThePrefixInKeyOrder() {
+        PrefixTrie<String> trie = new PrefixTrie<>(Map.of(
+                "sin", "SIN", "sinh", "SINH", "sqrt", "SQRT", "cos", "COS", "s", "S"));
+
+        assertEquals(List.of("S", "SIN", "SINH", "SQRT"), trie.withPrefix("s"));
+        assertEquals(List.of("SIN", "SINH"), trie.withPrefix("sin"));
+        assertEquals(List.of("SINH"), trie.withPrefix("sinh"));
+        assertEquals(List.of(), trie.withPrefix("sinhx"));
+        assertEquals(List.of(), trie.withPrefix("t"));
+        assertEquals(5, trie.withPrefix("").size());
+    }
+
+    @Test
+    public void matchesAFilterOverManyKeys() {
+        Map<String, String> entries = new HashMap<>();
+        for (int index = 0; index < 2000; index++) {
+            String key = Integer.toString(index * 7919, 26);
+            entries.put(key, key);
+        }
+        PrefixTrie<String> trie = new PrefixTrie<>(entries);
+
+        for (String prefix : List.of("", "1", "a", "1a", "2b3", "p", "zz")) {
+            List<String> expected = entries.keySet().stream().filter(key -> key.startsWith(prefix)).sorted().toList();
+            assertEquals(expected, trie.withPrefix(prefix), prefix);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.unlaxer.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class RationalTest {
+
+    @Test
+    public void keepsLowestTerms() {
+        assertEquals("1/2", Rational.of(3, 6).toString());
+        assertEquals("-1/2", Rational.of(1, -2).toString());
+        assertEquals("1/2", Rational.of(1, 3).add(Rational.of(1, 6)).toString());
+        assertEquals("3", Rational.of(9, 4).multiply(Rational.of(4, 3)).toString());
+        assertEquals("1/10", Rational.valueOf(new BigDecimal("0.1")).toString());
+        assertEquals(Rational.ZERO, Rational.of(0, 5).multiply(Rational.of(7, 3)));
+        assertThrows(ArithmeticException.class, () -> Rational.ONE.divide(Rational.ZERO));
+    }
+
+    @Test
+    public void promotesOnOverflowAndDemotesAgain() {
+        Rational large = Rational.valueOf(Long.MAX_VALUE);
+        Rational sum = large.add(large);
+        assertTrue(sum.isBig());
+        assertEquals(BigInteger.valueOf(Long.MAX_VALUE).shiftLeft(1), sum.numerator());
+
+        Rational back = sum.subtract(large);
+        assertEquals(large, back);
+        assertEquals(Rational.valueOf(Long.MIN_VALUE).negate().negate(), Rational.valueOf(Long.MIN_VALUE));
+
+        Rational tiny = Rational.of(1, Long.MAX_VALUE);
+        assertEquals(Rational.ONE, tiny.multiply(tiny).multiply(large).multiply(large));
+    }
+
+    @Test
+    public void convertsToTheNearestDouble() {
+        assertEquals(1.0 / 3, Rational.of(1, 3).doubleValue());
+        assertEquals(0.1, Rational.valueOf(0.1).doubleValue());
+        assertEquals(1e30 / 7, Rational.valueOf(new BigDecimal("1e30")).divide(Rational.valueOf(7)).doubleValue());
+        assertEquals(Rational.of(2, 3), Rational.of(4, 9).sqrt());
+        assertNull(Rational.valueOf(2).sqrt());
+    }
+}
@@ -15,6 +15,12 @@ export async function activate(context: vscode.ExtensionContext): Promise<void>
   const javaPath: string = config.get<string>("server.javaPath", "java");
   const configuredJarPath: string = config.get<string>("server.jarPath", "");
   const jvmArgs: string[] = config.get<string[]>("server.jvmArgs", []) ?? [];
+  const documentMode: string = config.get<string>("documentMode", "document");
+  const parser: string = config.get<string>("parser", "combinator");
+  const maxNestingDepth: number = config.get<number>("maxNestingDepth", 256);
+  const precision: string = config.get<string>("precision", "double");
+  const decimalDigits: number = config.get<number>("decimalDigits", 34);
+  const diagnosticsDelay: number = config.get<number>("diagnosticsDelay", 50);
 
   const jarPath: string = configuredJarPath.trim().length > 0
     ? configuredJarPath
@@ -31,7 +37,14 @@ export async function activate(context: vscode.ExtensionContext): Promise<void>
   const clientOptions: LanguageClientOptions = {
     documentSelector: [{ scheme: "file", language: "calculator" }],
     outputChannel: vscode.window.createOutputChannel("Calculator LSP"),
-    // If you want per-workspace settings, you can add initializationOptions here.
+    initializationOptions: {
+      documentMode,
+      parser,
+      maxNestingDepth,
+      precision,
+      decimalDigits,
+      diagnosticsDelay
+    }
   };
 
   client = new LanguageClient(